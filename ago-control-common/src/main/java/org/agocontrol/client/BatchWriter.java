@@ -0,0 +1,538 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.apache.log4j.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Group commit writer which collects items to batches bounded by size and linger time
+ * and saves each batch in single transaction. Items are buffered in bounded in-memory queue
+ * and spilled to disk journal when queue is full. Journal is replayed in order once the database
+ * catches up. While database is unavailable the failed batch is retried with exponential backoff.
+ *
+ * @param <T> the item type
+ * @author Tommi S.E. Laukkanen
+ */
+public abstract class BatchWriter<T> {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(BatchWriter.class);
+    /** The statistics logging interval in milliseconds. */
+    private static final long STATISTICS_INTERVAL_MILLIS = 60000;
+    /** The initial retry delay in milliseconds when database is unavailable. */
+    private static final long INITIAL_RETRY_MILLIS = 100;
+    /** The maximum retry delay in milliseconds when database is unavailable. */
+    private static final long MAX_RETRY_MILLIS = 30000;
+    /**
+     * The name of the writer used in logging.
+     */
+    private final String name;
+    /**
+     * The maximum number of items in batch.
+     */
+    private final int batchSize;
+    /**
+     * The maximum time in milliseconds first item of batch waits for batch to fill.
+     */
+    private final long maxLingerMillis;
+    /**
+     * The in-memory queue capacity.
+     */
+    private final int queueCapacity;
+    /**
+     * The pending items.
+     */
+    private final BlockingQueue<T> queue;
+    /**
+     * The journal for items which did not fit to queue.
+     */
+    private final SpillJournal journal;
+    /**
+     * The writer thread.
+     */
+    private final Thread writerThread;
+    /**
+     * Set true to flush pending items and shutdown writer thread.
+     */
+    private volatile boolean closeRequested = false;
+    /**
+     * The number of committed batches.
+     */
+    private final AtomicLong commitCount = new AtomicLong();
+    /**
+     * The number of committed items.
+     */
+    private final AtomicLong committedCount = new AtomicLong();
+    /**
+     * The number of items discarded due to errors.
+     */
+    private final AtomicLong failedCount = new AtomicLong();
+    /**
+     * The number of items spilled to journal.
+     */
+    private final AtomicLong spilledCount = new AtomicLong();
+    /**
+     * The number of batch retries due to database being unavailable.
+     */
+    private final AtomicLong retryCount = new AtomicLong();
+    /**
+     * The commits per second during last statistics interval.
+     */
+    private volatile double commitsPerSecond = 0;
+    /**
+     * The items per second during last statistics interval.
+     */
+    private volatile double itemsPerSecond = 0;
+
+    /**
+     * Constructor which opens the journal and starts the writer thread.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param name the name of the writer used in logging
+     * @param batchSize the maximum number of items in batch
+     * @param maxLingerMillis the maximum time in milliseconds first item of batch waits for batch to fill
+     * @param queueCapacity the maximum number of items buffered in memory before spilling to journal
+     * @param journalDirectory the journal directory
+     * @param journalSegmentSize the journal segment file size in bytes
+     * @throws IOException if journal can not be opened.
+     */
+    public BatchWriter(final EntityManagerFactory entityManagerFactory, final String name,
+                       final int batchSize, final long maxLingerMillis, final int queueCapacity,
+                       final File journalDirectory, final int journalSegmentSize) throws IOException {
+        this.name = name;
+        this.batchSize = batchSize;
+        this.maxLingerMillis = maxLingerMillis;
+        this.queueCapacity = queueCapacity;
+        this.queue = new LinkedBlockingQueue<T>(queueCapacity);
+        this.journal = new SpillJournal(journalDirectory, journalSegmentSize);
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                long statisticsStartMillis = System.currentTimeMillis();
+                long statisticsStartCommitCount = 0;
+                long statisticsStartCount = 0;
+                while (!closeRequested || !queue.isEmpty() || !journal.isEmpty()) {
+                    try {
+                        if (!writeBatch(entityManager)) {
+                            break;
+                        }
+                    } catch (final InterruptedException e) {
+                        LOGGER.debug("Batch writer wait interrupted: " + name);
+                    } catch (final Throwable t) {
+                        LOGGER.error("Error in writing batch: " + name, t);
+                    }
+                    final long elapsedMillis = System.currentTimeMillis() - statisticsStartMillis;
+                    if (elapsedMillis >= STATISTICS_INTERVAL_MILLIS) {
+                        commitsPerSecond = 1000.0 * (commitCount.get() - statisticsStartCommitCount) / elapsedMillis;
+                        itemsPerSecond = 1000.0 * (committedCount.get() - statisticsStartCount) / elapsedMillis;
+                        LOGGER.info(getStatistics());
+                        statisticsStartMillis = System.currentTimeMillis();
+                        statisticsStartCommitCount = commitCount.get();
+                        statisticsStartCount = committedCount.get();
+                    }
+                }
+                entityManager.close();
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     * Adds item to be written in next batch. Item is spilled to journal if queue is full or
+     * journal has items waiting to preserve write order. When spilling begins the queued items
+     * are moved to journal ahead of the item so that queue never holds items newer than journal.
+     *
+     * @param item the item
+     */
+    public final void write(final T item) {
+        if (closeRequested) {
+            throw new IllegalStateException("Batch writer is closed: " + name);
+        }
+        synchronized (journal) {
+            if (journal.isEmpty()) {
+                if (queue.offer(item)) {
+                    return;
+                }
+                final List<T> items = new ArrayList<T>(queueCapacity);
+                queue.drainTo(items);
+                for (final T queuedItem : items) {
+                    spill(queuedItem);
+                }
+            }
+            spill(item);
+        }
+    }
+
+    /**
+     * Flushes pending items and stops the writer thread. If database is unavailable
+     * pending items are left in journal to be written after restart.
+     *
+     * @throws InterruptedException if interrupted while waiting for the writer to finish.
+     * @throws IOException if exception occurs in closing journal.
+     */
+    public final void close() throws InterruptedException, IOException {
+        closeRequested = true;
+        writerThread.interrupt();
+        writerThread.join();
+        journal.close();
+        LOGGER.info(getStatistics());
+    }
+
+    /**
+     * @return the number of items waiting in memory to be written
+     */
+    public final int getPendingCount() {
+        return queue.size();
+    }
+
+    /**
+     * @return the in-memory queue capacity
+     */
+    public final int getQueueCapacity() {
+        return queueCapacity;
+    }
+
+    /**
+     * @return the number of committed batches
+     */
+    public final long getCommitCount() {
+        return commitCount.get();
+    }
+
+    /**
+     * @return the number of committed items
+     */
+    public final long getCommittedCount() {
+        return committedCount.get();
+    }
+
+    /**
+     * @return the number of items discarded due to write errors
+     */
+    public final long getFailedCount() {
+        return failedCount.get();
+    }
+
+    /**
+     * @return the number of items spilled to journal
+     */
+    public final long getSpilledCount() {
+        return spilledCount.get();
+    }
+
+    /**
+     * @return the number of items waiting in journal
+     */
+    public final long getJournalEntryCount() {
+        return journal.getEntryCount();
+    }
+
+    /**
+     * @return the number of bytes waiting in journal
+     */
+    public final long getJournalByteCount() {
+        return journal.getByteCount();
+    }
+
+    /**
+     * @return the number of batch retries due to database being unavailable
+     */
+    public final long getRetryCount() {
+        return retryCount.get();
+    }
+
+    /**
+     * @return the commits per second during last statistics interval
+     */
+    public final double getCommitsPerSecond() {
+        return commitsPerSecond;
+    }
+
+    /**
+     * @return the items per second during last statistics interval
+     */
+    public final double getItemsPerSecond() {
+        return itemsPerSecond;
+    }
+
+    /**
+     * @return the statistics in human readable form
+     */
+    public final String getStatistics() {
+        return getClass().getSimpleName() + " " + name + ": pending=" + getPendingCount() + "/" + queueCapacity
+                + " journal=" + getJournalEntryCount()
+                + " journal-bytes=" + getJournalByteCount()
+                + " spilled=" + spilledCount.get()
+                + " retries=" + retryCount.get()
+                + " commits=" + commitCount.get()
+                + " items=" + committedCount.get()
+                + " failed=" + failedCount.get()
+                + " commits/s=" + Math.round(commitsPerSecond)
+                + " items/s=" + Math.round(itemsPerSecond);
+    }
+
+    /**
+     * Saves batch of items in single transaction.
+     *
+     * @param entityManager the entity manager
+     * @param batch the items
+     */
+    protected abstract void saveBatch(final EntityManager entityManager, final List<T> batch);
+
+    /**
+     * Serializes item for journal.
+     *
+     * @param item the item
+     * @return the serialized item
+     * @throws IOException if exception occurs in serialization.
+     */
+    protected abstract byte[] serialize(final T item) throws IOException;
+
+    /**
+     * Deserializes item from journal.
+     *
+     * @param entityManager the entity manager
+     * @param data the serialized item
+     * @return the item
+     * @throws IOException if exception occurs in deserialization.
+     */
+    protected abstract T deserialize(final EntityManager entityManager, final byte[] data) throws IOException;
+
+    /**
+     * Waits for items and writes one batch.
+     *
+     * @param entityManager the entity manager
+     * @return false if writer should stop as database is unavailable during close
+     * @throws InterruptedException if interrupted while waiting for items.
+     */
+    private boolean writeBatch(final EntityManager entityManager) throws InterruptedException {
+        final List<T> batch = new ArrayList<T>(batchSize);
+        final boolean fromJournal = queue.isEmpty() && !journal.isEmpty();
+        if (fromJournal) {
+            readJournal(entityManager, batch);
+        } else {
+            readQueue(batch);
+        }
+        if (batch.isEmpty()) {
+            if (fromJournal) {
+                journal.acknowledge();
+            }
+            return true;
+        }
+
+        long retryMillis = INITIAL_RETRY_MILLIS;
+        while (true) {
+            try {
+                saveBatch(entityManager, batch);
+                commitCount.incrementAndGet();
+                committedCount.addAndGet(batch.size());
+                break;
+            } catch (final Exception e) {
+                LOGGER.debug("Error saving batch of " + batch.size() + " items in " + name + ".", e);
+            } finally {
+                // Detach written entities so that persistence context does not grow.
+                entityManager.clear();
+            }
+
+            if (isDatabaseAvailable(entityManager)) {
+                // Database is up so some of the items can not be written. Save rest of the items one by one.
+                saveIndividually(entityManager, batch);
+                break;
+            }
+
+            if (closeRequested) {
+                LOGGER.warn("Database unavailable on close, leaving pending items to journal: " + name);
+                // Clear pending close interrupt as it would close the channels of new journal segments.
+                Thread.interrupted();
+                synchronized (journal) {
+                    if (fromJournal) {
+                        // Journal batch stays unacknowledged in journal and is replayed on next open.
+                        // Queue is only filled while journal has no unread items so queue follows the batch.
+                        final List<T> items = new ArrayList<T>(queue.size());
+                        queue.drainTo(items);
+                        for (final T item : items) {
+                            spill(item);
+                        }
+                    } else {
+                        // Batch and queue are older than the spilled items so they are replayed first.
+                        final List<T> items = new ArrayList<T>(batch);
+                        queue.drainTo(items);
+                        prepend(items);
+                    }
+                }
+                return false;
+            }
+
+            retryCount.incrementAndGet();
+            LOGGER.warn("Database unavailable, retrying batch of " + batch.size() + " items in "
+                    + retryMillis + " ms: " + name);
+            try {
+                Thread.sleep(retryMillis);
+            } catch (final InterruptedException e) {
+                LOGGER.debug("Batch writer retry wait interrupted: " + name);
+            }
+            retryMillis = Math.min(retryMillis * 2, MAX_RETRY_MILLIS);
+        }
+
+        if (fromJournal) {
+            journal.acknowledge();
+        }
+        return true;
+    }
+
+    /**
+     * Reads batch from queue waiting at most linger time for the batch to fill.
+     *
+     * @param batch the batch to add items to
+     * @throws InterruptedException if interrupted while waiting for items.
+     */
+    private void readQueue(final List<T> batch) throws InterruptedException {
+        final T first = closeRequested ? queue.poll() : queue.poll(maxLingerMillis, TimeUnit.MILLISECONDS);
+        if (first == null) {
+            return;
+        }
+        batch.add(first);
+
+        final long lingerEndMillis = System.currentTimeMillis() + maxLingerMillis;
+        while (batch.size() < batchSize) {
+            queue.drainTo(batch, batchSize - batch.size());
+            final long remainingMillis = lingerEndMillis - System.currentTimeMillis();
+            if (batch.size() >= batchSize || remainingMillis <= 0 || closeRequested) {
+                break;
+            }
+            final T next;
+            try {
+                next = queue.poll(remainingMillis, TimeUnit.MILLISECONDS);
+            } catch (final InterruptedException e) {
+                break; // Close requested, flush what we have.
+            }
+            if (next == null) {
+                break;
+            }
+            batch.add(next);
+        }
+    }
+
+    /**
+     * Reads batch from journal.
+     *
+     * @param entityManager the entity manager
+     * @param batch the batch to add items to
+     */
+    private void readJournal(final EntityManager entityManager, final List<T> batch) {
+        while (batch.size() < batchSize) {
+            final byte[] data = journal.read();
+            if (data == null) {
+                break;
+            }
+            try {
+                batch.add(deserialize(entityManager, data));
+            } catch (final Exception e) {
+                failedCount.incrementAndGet();
+                LOGGER.error("Error reading item from journal in " + name + ".", e);
+            }
+        }
+    }
+
+    /**
+     * Saves items one by one discarding items which fail.
+     *
+     * @param entityManager the entity manager
+     * @param batch the items
+     */
+    private void saveIndividually(final EntityManager entityManager, final List<T> batch) {
+        for (final T item : batch) {
+            try {
+                saveBatch(entityManager, Collections.singletonList(item));
+                commitCount.incrementAndGet();
+                committedCount.incrementAndGet();
+            } catch (final Exception e) {
+                failedCount.incrementAndGet();
+                LOGGER.error("Error saving item in " + name + ": " + item, e);
+            } finally {
+                entityManager.clear();
+            }
+        }
+    }
+
+    /**
+     * Checks whether database responds to query.
+     *
+     * @param entityManager the entity manager
+     * @return true if database is available
+     */
+    private boolean isDatabaseAvailable(final EntityManager entityManager) {
+        try {
+            entityManager.createQuery("select count(c) from Company as c").getSingleResult();
+            return true;
+        } catch (final Exception e) {
+            LOGGER.debug("Database availability check failed in " + name + ".", e);
+            return false;
+        }
+    }
+
+    /**
+     * Inserts items to journal ahead of the unread items. Caller holds journal lock.
+     *
+     * @param items the items
+     */
+    private void prepend(final List<T> items) {
+        final List<byte[]> entries = new ArrayList<byte[]>(items.size());
+        for (final T item : items) {
+            try {
+                entries.add(serialize(item));
+            } catch (final IOException e) {
+                failedCount.incrementAndGet();
+                LOGGER.error("Error spilling item to journal in " + name + ": " + item, e);
+            }
+        }
+        try {
+            journal.prepend(entries);
+            spilledCount.addAndGet(entries.size());
+        } catch (final IOException e) {
+            failedCount.addAndGet(entries.size());
+            LOGGER.error("Error spilling " + entries.size() + " items to journal in " + name + ".", e);
+        }
+    }
+
+    /**
+     * Appends item to journal. Caller holds journal lock.
+     *
+     * @param item the item
+     */
+    private void spill(final T item) {
+        try {
+            journal.append(serialize(item));
+            spilledCount.incrementAndGet();
+        } catch (final IOException e) {
+            failedCount.incrementAndGet();
+            LOGGER.error("Error spilling item to journal in " + name + ": " + item, e);
+        }
+    }
+}
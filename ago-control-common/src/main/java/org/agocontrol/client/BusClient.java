@@ -15,10 +15,7 @@
  */
 package org.agocontrol.client;
 
-import com.fasterxml.jackson.databind.ObjectMapper;
 import org.agocontrol.dao.BusDao;
-import org.agocontrol.dao.ElementDao;
-import org.agocontrol.dao.EventDao;
 import org.agocontrol.model.Bus;
 import org.agocontrol.model.Element;
 import org.agocontrol.model.ElementType;
@@ -28,14 +25,17 @@ import org.apache.qpid.client.AMQAnyDestination;
 import org.apache.qpid.client.message.JMSBytesMessage;
 import org.apache.qpid.messaging.Address;
 import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
 
 import javax.jms.Connection;
 import javax.jms.ConnectionFactory;
 import javax.jms.Destination;
+import javax.jms.ExceptionListener;
 import javax.jms.JMSException;
 import javax.jms.Message;
 import javax.jms.MapMessage;
 import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
 import javax.jms.MessageProducer;
 import javax.jms.Queue;
 import javax.jms.Session;
@@ -43,23 +43,31 @@ import javax.naming.Context;
 import javax.naming.InitialContext;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import java.io.File;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
 import java.util.Date;
 import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Set;
-import java.util.TreeSet;
 import java.util.UUID;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
  * Ago control qpid client.
@@ -69,16 +77,40 @@ import java.util.concurrent.TimeoutException;
 public class BusClient {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(BusClient.class);
-    /** Default bus name. */
-    private static final String DEFAULT = "Default";
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
+    /** The UTF-8 charset. */
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    /** The default command reply timeout in milliseconds. */
+    public static final long COMMAND_TIMEOUT_MILLIS = 5000;
+    /** The inventory request retry delay in milliseconds after failed reconciliation. */
+    private static final long INVENTORY_RETRY_MILLIS = 5 * 60 * 1000;
+    /** Device announce event subject. */
+    private static final String DEVICE_ANNOUNCE = "event.device.announce";
+    /** Device remove event subject. */
+    private static final String DEVICE_REMOVE = "event.device.remove";
+    /** Device name changed event subject. */
+    private static final String DEVICE_NAME_CHANGED = "event.system.devicenamechanged";
+    /** Device room changed event subject. */
+    private static final String DEVICE_ROOM_CHANGED = "event.system.deviceroomchanged";
+    /** Room name changed event subject. */
+    private static final String ROOM_NAME_CHANGED = "event.system.roomnamechanged";
+    /** Room deleted event subject. */
+    private static final String ROOM_DELETED = "event.system.roomdeleted";
+    /** The event subjects which change inventory. */
+    private static final Set<String> INVENTORY_EVENT_SUBJECTS = new HashSet<String>(Arrays.asList(
+            DEVICE_ANNOUNCE, DEVICE_REMOVE, DEVICE_NAME_CHANGED, DEVICE_ROOM_CHANGED, ROOM_NAME_CHANGED,
+            ROOM_DELETED));
+    /** The time in milliseconds to wait for map reply after non map reply has been received. */
+    private static final long SECOND_REPLY_WAIT_MILLIS = 300;
     /**
      * The entityManagerFactory.
      */
     private EntityManagerFactory entityManagerFactory;
     /**
-     * JSON object mapper.
-     * */
-    private final ObjectMapper mapper = new ObjectMapper();
+     * Encoder writing event messages to JSON. Used only from event session thread.
+     */
+    private final MapMessageJsonEncoder eventEncoder = new MapMessageJsonEncoder();
     /**
      * The context.
      */
@@ -92,9 +124,17 @@ public class BusClient {
      */
     private final Connection connection;
     /**
-     * The session.
+     * The session used for sending messages.
      */
     private final Session session;
+    /**
+     * The session dispatching event messages to event listener.
+     */
+    private final Session eventSession;
+    /**
+     * The session dispatching reply messages to reply listener.
+     */
+    private final Session replySession;
     /**
      * The reply queue.
      */
@@ -104,9 +144,25 @@ public class BusClient {
      */
     private final MessageProducer messageProducer;
     /**
-     * The message consumer.
+     * The event consumers, one for each subscription subject.
+     */
+    private final List<MessageConsumer> eventConsumers = new ArrayList<MessageConsumer>();
+    /**
+     * The subscription subjects bound at broker.
+     */
+    private final List<String> subscriptionSubjects;
+    /**
+     * The event subjects ignored in process.
+     */
+    private final Set<String> ignoredSubjects;
+    /**
+     * The number of messages received through event subscriptions.
      */
-    private final MessageConsumer messageConsumer;
+    private final AtomicLong receivedMessageCount = new AtomicLong();
+    /**
+     * The number of received messages discarded in process.
+     */
+    private final AtomicLong filteredMessageCount = new AtomicLong();
     /**
      * The reply consumer.
      */
@@ -114,15 +170,40 @@ public class BusClient {
     /**
      * Set true to shutdown threads.
      */
-    private boolean closeRequested = false;
+    private volatile boolean closeRequested = false;
+    /**
+     * The inventory events waiting to be applied to element tree.
+     */
+    private final BlockingQueue<Map<String, Object>> inventoryEvents =
+            new LinkedBlockingQueue<Map<String, Object>>();
+    /**
+     * The interval of full inventory reconciliation in milliseconds.
+     */
+    private final long inventoryReconciliationIntervalMillis;
+    /**
+     * The event batch writer.
+     */
+    private final EventBatchWriter eventBatchWriter;
+    /**
+     * The record batch writer for direct ingestion.
+     */
+    private final RecordBatchWriter recordBatchWriter;
     /**
-     * Event handler thread.
+     * True if readings are written directly as records instead of processing stored events.
      */
-    private final Thread eventHandlerThread;
+    private final boolean directIngestion;
     /**
-     * Reply handler thread.
+     * Every Nth event is stored for audit in direct ingestion or 0 if events are not stored.
      */
-    private final Thread replyHandlerThread;
+    private final int eventAuditSampleInterval;
+    /**
+     * True if raw JSON content is stored with events in addition to the structured fields.
+     */
+    private final boolean storeEventContent;
+    /**
+     * The number of events received.
+     */
+    private final AtomicLong receivedEventCount = new AtomicLong();
     /**
      * Inventory request thread.
      */
@@ -132,9 +213,29 @@ public class BusClient {
      */
     private final Bus bus;
     /**
-     * Reply message queue.
+     * Commands waiting for reply by correlation ID in the order they were sent.
+     */
+    private final Map<String, CommandFuture> pendingCommands = new LinkedHashMap<String, CommandFuture>();
+    /**
+     * The scheduler for command timeouts.
+     */
+    private final ScheduledExecutorService commandScheduler = Executors.newSingleThreadScheduledExecutor();
+    /**
+     * The number of replies received after command had timed out or already been replied.
+     */
+    private final AtomicLong lateReplyCount = new AtomicLong();
+    /**
+     * The number of replies without correlation ID which could not be matched to single pending command.
      */
-    private final BlockingQueue<Message> replyMessageQueue = new LinkedBlockingQueue<Message>(10);
+    private final AtomicLong unmatchedReplyCount = new AtomicLong();
+    /**
+     * The number of elements added, changed or removed in last inventory synchronization.
+     */
+    private volatile int lastInventoryTouchedCount = 0;
+    /**
+     * The duration of last inventory synchronization in milliseconds.
+     */
+    private volatile long lastInventoryDurationMillis = 0;
 
     /**
      * Constructor which sets entityManagerFactory.
@@ -145,97 +246,201 @@ public class BusClient {
      * @throws Exception if exception occurs in connecting to bus.
      */
     public BusClient(final EntityManagerFactory entityManagerFactory, final Bus bus) throws Exception {
+        this(entityManagerFactory, bus, (ExceptionListener) null);
+    }
+
+    /**
+     * Constructor which sets entityManagerFactory and listener notified of connection failures.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param bus the bus to connect to
+     * @param exceptionListener the connection exception listener or null
+     *
+     * @throws Exception if exception occurs in connecting to bus.
+     */
+    public BusClient(final EntityManagerFactory entityManagerFactory, final Bus bus,
+                     final ExceptionListener exceptionListener) throws Exception {
+        this(entityManagerFactory, bus, createContext(bus), exceptionListener);
+    }
+
+    /**
+     * Constructor which looks up connection factory from the given context.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param bus the bus to connect to
+     * @param context the JNDI context
+     * @param exceptionListener the connection exception listener or null
+     *
+     * @throws Exception if exception occurs in connecting to bus.
+     */
+    private BusClient(final EntityManagerFactory entityManagerFactory, final Bus bus, final Context context,
+                      final ExceptionListener exceptionListener) throws Exception {
+        this(entityManagerFactory, bus, context, (ConnectionFactory) context.lookup("qpidConnectionfactory"),
+                exceptionListener);
+    }
+
+    /**
+     * Constructor which connects to bus with given connection factory.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param bus the bus to connect to
+     * @param context the JNDI context or null if connection factory was not looked up from JNDI
+     * @param connectionFactory the connection factory
+     *
+     * @throws Exception if exception occurs in connecting to bus.
+     */
+    BusClient(final EntityManagerFactory entityManagerFactory, final Bus bus, final Context context,
+              final ConnectionFactory connectionFactory) throws Exception {
+        this(entityManagerFactory, bus, context, connectionFactory, null);
+    }
+
+    /**
+     * Constructor which connects to bus with given connection factory.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param bus the bus to connect to
+     * @param context the JNDI context or null if connection factory was not looked up from JNDI
+     * @param connectionFactory the connection factory
+     * @param exceptionListener the connection exception listener or null
+     *
+     * @throws Exception if exception occurs in connecting to bus.
+     */
+    BusClient(final EntityManagerFactory entityManagerFactory, final Bus bus, final Context context,
+              final ConnectionFactory connectionFactory, final ExceptionListener exceptionListener)
+            throws Exception {
         this.entityManagerFactory = entityManagerFactory;
         this.bus = bus;
+        this.context = context;
+        this.connectionFactory = connectionFactory;
 
-        final String userName = bus.getUserName();
-        final String password = bus.getUserPassword();
-        final String host = bus.getHost();
-        final Integer port = bus.getPort();
-        //final String userName = "agocontrol";
-        //final String password = "letmein";
-
+        inventoryReconciliationIntervalMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "inventory-reconciliation-interval-millis"));
+        subscriptionSubjects = getBusPropertyList(bus, "subscription-subjects");
+        ignoredSubjects = new HashSet<String>(getBusPropertyList(bus, "subscription-ignored-subjects"));
+        directIngestion = "direct".equals(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "event-ingestion"));
+        eventAuditSampleInterval = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-audit-sample-interval"));
+        storeEventContent = Boolean.parseBoolean(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-store-content"));
 
-        final Properties properties = new Properties();
-        properties.put("java.naming.factory.initial",
-                "org.apache.qpid.jndi.PropertiesFileInitialContextFactory");
-        properties.put("connectionfactory.qpidConnectionfactory",
-                "amqp://" + userName + ":" + password + "@agocontrolvaadinsite/client" +
-                        "?brokerlist='tcp://" + host + ":" + port + "'");
+        final int batchSize = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "event-batch-size"));
+        final long maxLingerMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-batch-max-linger-millis"));
+        final int queueCapacity = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "batch-queue-capacity"));
+        final File spillDirectory = new File(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "batch-spill-directory"), bus.getBusId());
+        final int spillSegmentBytes = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "batch-spill-segment-bytes"));
 
-        context = new InitialContext(properties);
-        connectionFactory = (ConnectionFactory) context.lookup("qpidConnectionfactory");
-        connection = connectionFactory.createConnection();
+        eventBatchWriter = new EventBatchWriter(entityManagerFactory, bus.getName(), batchSize, maxLingerMillis,
+                queueCapacity, new File(spillDirectory, "event"), spillSegmentBytes);
+        try {
+            recordBatchWriter = new RecordBatchWriter(entityManagerFactory, bus.getName(), batchSize,
+                    maxLingerMillis, queueCapacity, new File(spillDirectory, "record"), spillSegmentBytes);
+        } catch (final Exception e) {
+            eventBatchWriter.close();
+            throw e;
+        }
 
-        connection.start();
+        Connection createdConnection = null;
+        try {
+            createdConnection = connectionFactory.createConnection();
+            if (exceptionListener != null) {
+                createdConnection.setExceptionListener(exceptionListener);
+            }
 
-        session = connection.createSession(false, Session.AUTO_ACKNOWLEDGE);
-        final Destination sendDestination = new AMQAnyDestination(new Address("agocontrol", "", null));
-        final Destination receiveDestination = new AMQAnyDestination(new Address("agocontrol", "#", null));
+            session = createdConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            eventSession = createdConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            replySession = createdConnection.createSession(false, Session.AUTO_ACKNOWLEDGE);
+            final Destination sendDestination = new AMQAnyDestination(new Address("agocontrol", "", null));
 
-        replyQueue = session.createTemporaryQueue();
+            replyQueue = session.createTemporaryQueue();
 
-        messageProducer = session.createProducer(sendDestination);
-        messageConsumer = session.createConsumer(receiveDestination);
-        replyConsumer = session.createConsumer(replyQueue);
+            messageProducer = session.createProducer(sendDestination);
+            for (final String subject : subscriptionSubjects) {
+                // Subject becomes the binding key of the subscription queue so filtering happens at broker.
+                eventConsumers.add(eventSession.createConsumer(
+                        new AMQAnyDestination(new Address("agocontrol", subject, null))));
+            }
+            replyConsumer = replySession.createConsumer(replyQueue);
+        } catch (final Exception e) {
+            // Release connection, writer threads and journal locks so that connect can be retried.
+            if (createdConnection != null) {
+                try {
+                    createdConnection.close();
+                } catch (final Exception closeException) {
+                    LOGGER.debug("Error closing connection after failed connect to bus: " + bus.getName(),
+                            closeException);
+                }
+            }
+            eventBatchWriter.close();
+            recordBatchWriter.close();
+            throw e;
+        }
+        connection = createdConnection;
 
-        eventHandlerThread = new Thread(new Runnable() {
+        final MessageListener eventListener = new MessageListener() {
             @Override
-            public void run() {
-                final EntityManager entityManager = entityManagerFactory.createEntityManager();
-                final Company company = entityManager.getReference(Company.class, bus.getOwner().getCompanyId());
-                while (!closeRequested) {
-                    try {
-                        Thread.sleep(100);
-                        handleEvent(entityManager, company);
-                    } catch (final Throwable t) {
-                        LOGGER.error("Error in handling events.", t);
-                    }
+            public void onMessage(final Message message) {
+                try {
+                    handleEvent(bus.getOwner(), message);
+                } catch (final Throwable t) {
+                    LOGGER.error("Error in handling events.", t);
                 }
-                entityManager.close();
             }
-        });
-        eventHandlerThread.start();
+        };
+        for (final MessageConsumer eventConsumer : eventConsumers) {
+            eventConsumer.setMessageListener(eventListener);
+        }
 
-        replyHandlerThread = new Thread(new Runnable() {
+        replyConsumer.setMessageListener(new MessageListener() {
             @Override
-            public void run() {
-                final EntityManager entityManager = entityManagerFactory.createEntityManager();
-                while (!closeRequested) {
-                    try {
-                        Thread.sleep(100);
-                        handleReply(entityManager);
-                    } catch (final Throwable t) {
-                        LOGGER.error("Error in handling events.", t);
-                    }
+            public void onMessage(final Message message) {
+                try {
+                    handleReply(message);
+                } catch (final Throwable t) {
+                    LOGGER.error("Error in handling replies.", t);
                 }
-                entityManager.close();
             }
         });
-        replyHandlerThread.start();
+
+        connection.start();
 
         inventoryRequestThread = new Thread(new Runnable() {
             @Override
             public void run() {
                 final EntityManager entityManager = entityManagerFactory.createEntityManager();
                 final Company company = entityManager.getReference(Company.class, bus.getOwner().getCompanyId());
+                long reconciliationTimeMillis = 0;
                 while (!closeRequested) {
                     try {
-                        requestInventory(entityManager, company);
-                    } catch (final Throwable t) {
-                        LOGGER.error("Error in inventory request message sending.", t);
-                    }
-                    try {
-                        Thread.sleep(5 * 60 * 1000);
+                        if (System.currentTimeMillis() >= reconciliationTimeMillis) {
+                            reconciliationTimeMillis = System.currentTimeMillis() + INVENTORY_RETRY_MILLIS;
+                            requestInventory(entityManager, company);
+                            reconciliationTimeMillis = System.currentTimeMillis()
+                                    + inventoryReconciliationIntervalMillis;
+                        }
+                        final Map<String, Object> inventoryEvent = inventoryEvents.poll(
+                                Math.max(1, reconciliationTimeMillis - System.currentTimeMillis()),
+                                TimeUnit.MILLISECONDS);
+                        if (inventoryEvent != null) {
+                            final List<Map<String, Object>> events = new ArrayList<Map<String, Object>>();
+                            events.add(inventoryEvent);
+                            inventoryEvents.drainTo(events);
+                            applyInventoryEvents(entityManager, company, events);
+                        }
+                    } catch (final InterruptedException e) {
+                        LOGGER.debug("Interrupted inventory event wait.");
                     } catch (final Throwable t) {
-                        LOGGER.debug("Interrupted inventory request message send wait.");
+                        LOGGER.error("Error in inventory synchronization.", t);
                     }
                 }
                 entityManager.close();
             }
         });
         inventoryRequestThread.start();
-        LOGGER.info("Connected to bus: " + bus.getName());
+        LOGGER.info("Connected to bus: " + bus.getName() + " subscriptions: " + subscriptionSubjects);
     }
 
 
@@ -248,13 +453,98 @@ public class BusClient {
         closeRequested = true;
         inventoryRequestThread.interrupt();
         inventoryRequestThread.join();
-        replyHandlerThread.interrupt();
-        replyHandlerThread.join();
-        eventHandlerThread.interrupt();
-        eventHandlerThread.join();
-        connection.close();
-        context.close();
-        LOGGER.info("Disconnected from bus: " + bus.getName());
+        // Connection close waits for message listeners in progress to return.
+        try {
+            connection.close();
+        } catch (final JMSException e) {
+            LOGGER.warn("Error closing connection to bus: " + bus.getName(), e);
+        }
+        commandScheduler.shutdownNow();
+        synchronized (pendingCommands) {
+            for (final CommandFuture command : pendingCommands.values()) {
+                command.fail(new IllegalStateException("Bus client closed."));
+            }
+            pendingCommands.clear();
+        }
+        eventBatchWriter.close();
+        recordBatchWriter.close();
+        if (context != null) {
+            context.close();
+        }
+        LOGGER.info("Disconnected from bus: " + bus.getName() + " (received=" + receivedMessageCount.get()
+                + " filtered=" + filteredMessageCount.get() + ")");
+    }
+
+    /**
+     * @return the number of commands waiting for reply
+     */
+    public final int getPendingCommandCount() {
+        synchronized (pendingCommands) {
+            return pendingCommands.size();
+        }
+    }
+
+    /**
+     * @return the number of replies received after command had timed out or already been replied
+     */
+    public final long getLateReplyCount() {
+        return lateReplyCount.get();
+    }
+
+    /**
+     * @return the number of replies without correlation ID which could not be matched to single pending command
+     */
+    public final long getUnmatchedReplyCount() {
+        return unmatchedReplyCount.get();
+    }
+
+    /**
+     * @return the subscription subjects bound at broker
+     */
+    public final List<String> getSubscriptionSubjects() {
+        return Collections.unmodifiableList(subscriptionSubjects);
+    }
+
+    /**
+     * @return the number of messages received through event subscriptions
+     */
+    public final long getReceivedMessageCount() {
+        return receivedMessageCount.get();
+    }
+
+    /**
+     * @return the number of received messages discarded in process
+     */
+    public final long getFilteredMessageCount() {
+        return filteredMessageCount.get();
+    }
+
+    /**
+     * @return the number of elements added, changed or removed in last inventory synchronization
+     */
+    public final int getLastInventoryTouchedCount() {
+        return lastInventoryTouchedCount;
+    }
+
+    /**
+     * @return the duration of last inventory synchronization in milliseconds
+     */
+    public final long getLastInventoryDurationMillis() {
+        return lastInventoryDurationMillis;
+    }
+
+    /**
+     * @return the event batch writer
+     */
+    public final EventBatchWriter getEventBatchWriter() {
+        return eventBatchWriter;
+    }
+
+    /**
+     * @return the record batch writer
+     */
+    public final RecordBatchWriter getRecordBatchWriter() {
+        return recordBatchWriter;
     }
 
     /**
@@ -291,9 +581,11 @@ public class BusClient {
                     commandMessage.setString("name", element.getName());
                     final Message replyMessage = sendCommand(commandMessage);
                     LOGGER.error("Room set name response message: " + replyMessage.toString());
+                    queueInventoryEvent(ROOM_NAME_CHANGED, element.getElementId(), "name", element.getName());
                     break;
                 }
                 case DEVICE: {
+                    // Commands are sent one at a time as agent replies carry no correlation ID.
                     {
                         final MapMessage commandMessage = createMapMessage();
                         commandMessage.setJMSMessageID("ID:" + UUID.randomUUID().toString());
@@ -302,6 +594,7 @@ public class BusClient {
                         commandMessage.setString("name", element.getName());
                         final Message replyMessage = sendCommand(commandMessage);
                         LOGGER.error("Device set name response message: " + replyMessage.toString());
+                        queueInventoryEvent(DEVICE_NAME_CHANGED, element.getElementId(), "name", element.getName());
                     }
                     if (element.getParent() != null && element.getParent().getType() == ElementType.ROOM) {
                         final MapMessage commandMessage = createMapMessage();
@@ -311,6 +604,8 @@ public class BusClient {
                         commandMessage.setString("room", element.getParent().getElementId());
                         final Message replyMessage = sendCommand(commandMessage);
                         LOGGER.error("Set device room response message: " + replyMessage.toString());
+                        queueInventoryEvent(DEVICE_ROOM_CHANGED, element.getElementId(), "room",
+                                element.getParent().getElementId());
                     }
                     break;
                 }
@@ -380,29 +675,58 @@ public class BusClient {
      * @return the reply
      */
     public final Message sendCommand(final MapMessage commandMessage) {
-        synchronized (messageProducer) {
-            try {
-                replyMessageQueue.clear(); // clear reply queue to remove any unprocessed responses.
-
-                commandMessage.setJMSReplyTo(replyQueue);
-                messageProducer.send(commandMessage);
-
-                final Message replyMessage = replyMessageQueue.poll(5, TimeUnit.SECONDS);
-                if (replyMessage == null) {
-                    throw new TimeoutException("Timeout in command processing.");
-                }
-
-                final Message replyMessageTwo = replyMessageQueue.poll(300, TimeUnit.MILLISECONDS);
+        try {
+            return sendCommandAsync(commandMessage).get();
+        } catch (final ExecutionException e) {
+            throw new RuntimeException("Error in command message sending.", e.getCause());
+        } catch (final InterruptedException e) {
+            throw new RuntimeException("Interrupted while waiting for command reply.", e);
+        }
+    }
 
-                if (replyMessageTwo != null) {
-                    LOGGER.debug("Received two commands responses.");
-                }
+    /**
+     * Sends command message with default timeout without waiting for response.
+     *
+     * @param commandMessage the commandMessage
+     * @return the future reply
+     */
+    public final Future<Message> sendCommandAsync(final MapMessage commandMessage) {
+        return sendCommandAsync(commandMessage, COMMAND_TIMEOUT_MILLIS);
+    }
 
-                return replyMessageTwo != null ? replyMessageTwo : replyMessage;
-            } catch (Exception e) {
-                throw new RuntimeException("Error in command message sending.", e);
+    /**
+     * Sends command message without waiting for response. The reply is routed to the returned future
+     * by JMS correlation ID. The future fails with TimeoutException if no reply arrives in time.
+     *
+     * @param commandMessage the commandMessage
+     * @param timeoutMillis the reply timeout in milliseconds
+     * @return the future reply
+     */
+    public final Future<Message> sendCommandAsync(final MapMessage commandMessage, final long timeoutMillis) {
+        final String correlationId = UUID.randomUUID().toString();
+        final CommandFuture command = new CommandFuture(correlationId);
+        synchronized (pendingCommands) {
+            pendingCommands.put(correlationId, command);
+        }
+        try {
+            commandMessage.setJMSCorrelationID(correlationId);
+            commandMessage.setJMSReplyTo(replyQueue);
+            synchronized (messageProducer) {
+                messageProducer.send(commandMessage);
             }
+            commandScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (removePendingCommand(command)) {
+                        command.fail(new TimeoutException("Timeout in command processing."));
+                    }
+                }
+            }, timeoutMillis, TimeUnit.MILLISECONDS);
+        } catch (final Exception e) {
+            removePendingCommand(command);
+            command.fail(e);
         }
+        return command;
     }
 
     /**
@@ -432,194 +756,291 @@ public class BusClient {
 
             final Message message = sendCommand(commandMessage);
 
-            final MapMessage mapMessage;
-            if (message instanceof MapMessage) {
-                mapMessage = (MapMessage) message;
-            } else {
-                LOGGER.warn("Inventory request response was not map message." +
-                        "Trying to read reply message queue once more");
-                mapMessage = (MapMessage) replyMessageQueue.poll(5, TimeUnit.SECONDS);
+            if (!(message instanceof MapMessage)) {
+                throw new RuntimeException("Inventory request response was not map message: " + message);
             }
+            final MapMessage mapMessage = (MapMessage) message;
 
             final Map<String, Object> result = convertMapMessageToMap(mapMessage);
 
-            final List<Element> elements = new ArrayList<Element>(ElementDao.getElements(entityManager, owner));
-            final Map<String, Element> idElementMap = new HashMap<String, Element>();
-            final Map<String, Element> nameBuildingMap = new HashMap<String, Element>();
-
-            for (final Element element : elements) {
-                if (element.getType() == ElementType.BUILDING) {
-                    nameBuildingMap.put(element.getName(), element);
-                }
-                idElementMap.put(element.getElementId(), element);
-            }
-
-            if (!nameBuildingMap.containsKey(DEFAULT)) {
-                final Element building = new Element(owner, ElementType.BUILDING, DEFAULT, "");
-                nameBuildingMap.put(building.getName(), building);
-                idElementMap.put(building.getElementId(), building);
-                elements.add(building);
-            }
+            final long startTimeMillis = System.currentTimeMillis();
+            final InventorySynchronizer synchronizer = new InventorySynchronizer(entityManager, owner, bus);
+            final Set<String> busElementIds = new HashSet<String>();
 
             if (result.containsKey("rooms")) {
                 final Map<String, Object> rooms = (Map) result.get("rooms");
-                for (final String roomId : ((Map<String, Object>) result.get("rooms")).keySet()) {
+                for (final String roomId : rooms.keySet()) {
                     final Map<String, Object> roomMessage = (Map) rooms.get(roomId);
-                    final String roomName = (String) roomMessage.get("name");
-                    final String roomLocation = (String) roomMessage.get("location");
-
-                    final Element building;
-                    if (nameBuildingMap.containsKey(roomLocation)) {
-                        building = nameBuildingMap.get(roomLocation);
-                    } else {
-                        building = nameBuildingMap.get(DEFAULT);
-                        nameBuildingMap.put(DEFAULT, building);
-                        elements.add(building);
-                        idElementMap.put(building.getElementId(), building);
-                    }
-
-                    final Element room;
-                    if (idElementMap.containsKey(roomId)) {
-                        room = idElementMap.get(roomId);
-                        room.setBus(bus);
-                        room.setParent(building);
-                        room.setName(roomName);
-                    } else {
-                        room = new Element(roomId, building, owner, ElementType.ROOM, roomName, "");
-                        room.setBus(bus);
-                        elements.add(room);
-                        idElementMap.put(room.getElementId(), room);
+                    if (roomMessage == null) {
+                        continue;
                     }
+                    synchronizer.setRoom(roomId, (String) roomMessage.get("name"),
+                            (String) roomMessage.get("location"));
+                    busElementIds.add(roomId);
                 }
             }
 
             if (result.containsKey("inventory")) {
                 final Map<String, Object> inventory = (Map) result.get("inventory");
-                for (final String elementId : ((Map<String, Object>) result.get("inventory")).keySet()) {
+                for (final String elementId : inventory.keySet()) {
                     final Map<String, Object> elementMessage = (Map) inventory.get(elementId);
                     if (elementMessage == null) {
                         continue;
                     }
-                    final String name = (String) elementMessage.get("name");
-                    final String roomId = (String) elementMessage.get("room");
-                    final String category = (String) elementMessage.get("devicetype");
-
-                    final Element parent;
-                    if (idElementMap.containsKey(roomId)) {
-                        parent = idElementMap.get(roomId);
-                    } else {
-                        parent =  nameBuildingMap.get(DEFAULT);
-                    }
-
-                    final Element element;
-                    if (idElementMap.containsKey(elementId)) {
-                        element = idElementMap.get(elementId);
-                        element.setBus(bus);
-                        element.setParent(parent);
-                        element.setName(name);
-                        element.setCategory(category);
-                        element.setType(ElementType.DEVICE);
-                    } else {
-                        element = new Element(elementId, parent, owner, ElementType.DEVICE, name, category);
-                        element.setBus(bus);
-                        elements.add(element);
-                        idElementMap.put(element.getElementId(), element);
-                    }
+                    synchronizer.setDevice(elementId, (String) elementMessage.get("name"),
+                            (String) elementMessage.get("room"), (String) elementMessage.get("devicetype"));
+                    busElementIds.add(elementId);
                 }
             }
 
-            final List<Element> roots = new ArrayList<Element>();
-            final Map<Element, Set<Element>> treeMap = new HashMap<Element, Set<Element>>();
-
-            for (final Element element : elements) {
-                if (element.getParent() == null) {
-                    element.setTreeDepth(0);
-                    roots.add(element);
-                } else {
-                    final Element parent = idElementMap.get(element.getParent().getElementId());
-                    if (parent != null) {
-                        if (!treeMap.containsKey(parent)) {
-                            treeMap.put(parent, new TreeSet<Element>());
-                        }
-                        treeMap.get(parent).add(element);
-                    }
-                }
+            // Remove only against complete inventory to avoid dropping elements on partial reply.
+            if (result.containsKey("rooms") && result.containsKey("inventory")) {
+                synchronizer.retainElements(busElementIds);
             }
 
-            final LinkedList<Element> elementsToIterate = new LinkedList<Element>();
-            elementsToIterate.addAll(roots);
-
-            int startTreeIndex = bus.getBusId().hashCode();
-            int treeIndex = startTreeIndex;
-            while (elementsToIterate.size() > 0) {
-                final Element element = elementsToIterate.removeFirst();
-                element.setTreeIndex(++treeIndex);
-                final Set<Element> children = treeMap.get(element);
-                if (children != null) {
-                    for (final Element child : children) {
-                        child.setTreeDepth(element.getTreeDepth() + 1);
-                    }
-                    elementsToIterate.addAll(0, children);
-                }
-            }
+            synchronizer.commit();
+            lastInventoryTouchedCount = synchronizer.getTouchedCount();
+            lastInventoryDurationMillis = System.currentTimeMillis() - startTimeMillis;
 
-            ElementDao.saveElements(entityManager, elements);
             entityManager.clear();
             final Bus loadedBus = BusDao.getBus(entityManager, bus.getBusId());
             if (loadedBus != null) {
                 loadedBus.setInventorySynchronized(new Date());
                 BusDao.saveBuses(entityManager, Collections.singletonList(loadedBus));
-                LOGGER.info("Synchronized inventory from bus: " + bus.getName());
+                LOGGER.info("Synchronized inventory from bus: " + bus.getName()
+                        + " (added=" + synchronizer.getAddedCount()
+                        + " changed=" + synchronizer.getChangedCount()
+                        + " removed=" + synchronizer.getRemovedCount()
+                        + " unchanged=" + (synchronizer.getElementCount() - synchronizer.getAddedCount()
+                        - synchronizer.getChangedCount())
+                        + " duration=" + lastInventoryDurationMillis + " ms)");
             }
 
         }
     }
 
     /**
-     * Handle reply.
+     * Applies inventory events to element tree and writes changed elements.
      *
      * @param entityManager the entityManager
+     * @param owner the owning company
+     * @param events the inventory events in arrival order
+     */
+    private void applyInventoryEvents(final EntityManager entityManager, final Company owner,
+                                      final List<Map<String, Object>> events) {
+        synchronized (this) {
+            final long startTimeMillis = System.currentTimeMillis();
+            final InventorySynchronizer synchronizer = new InventorySynchronizer(entityManager, owner, bus);
+            for (final Map<String, Object> event : events) {
+                final String subject = (String) event.get("event");
+                final String uuid = (String) event.get("uuid");
+                if (uuid == null) {
+                    continue;
+                }
+                if (DEVICE_ANNOUNCE.equals(subject)) {
+                    synchronizer.announceDevice(uuid, (String) event.get("devicetype"));
+                } else if (DEVICE_NAME_CHANGED.equals(subject)) {
+                    synchronizer.setDeviceName(uuid, (String) event.get("name"));
+                } else if (DEVICE_ROOM_CHANGED.equals(subject)) {
+                    synchronizer.setDeviceRoom(uuid, (String) event.get("room"));
+                } else if (ROOM_NAME_CHANGED.equals(subject)) {
+                    synchronizer.setRoomName(uuid, (String) event.get("name"));
+                } else if (DEVICE_REMOVE.equals(subject) || ROOM_DELETED.equals(subject)) {
+                    synchronizer.removeElement(uuid);
+                }
+            }
+            synchronizer.commit();
+            entityManager.clear();
+            lastInventoryTouchedCount = synchronizer.getTouchedCount();
+            lastInventoryDurationMillis = System.currentTimeMillis() - startTimeMillis;
+            if (synchronizer.getTouchedCount() > 0) {
+                LOGGER.info("Applied " + events.size() + " inventory events from bus: " + bus.getName()
+                        + " (added=" + synchronizer.getAddedCount()
+                        + " changed=" + synchronizer.getChangedCount()
+                        + " removed=" + synchronizer.getRemovedCount()
+                        + " duration=" + lastInventoryDurationMillis + " ms)");
+            }
+        }
+    }
+
+    /**
+     * Queues inventory change made through this client to be applied to element tree.
+     *
+     * @param subject the inventory event subject
+     * @param uuid the element ID
+     * @param key the changed value key
+     * @param value the changed value
+     */
+    private void queueInventoryEvent(final String subject, final String uuid, final String key,
+                                     final String value) {
+        final Map<String, Object> event = new HashMap<String, Object>();
+        event.put("event", subject);
+        event.put("uuid", uuid);
+        event.put(key, value);
+        inventoryEvents.add(event);
+    }
+
+    /**
+     * Gets comma separated property list. Property suffixed with bus name overrides the default.
+     *
+     * @param bus the bus
+     * @param key the property key
+     * @return the property values
+     */
+    private static List<String> getBusPropertyList(final Bus bus, final String key) {
+        String value = PropertiesUtil.getProperty(PROPERTIES_CATEGORY, key + "." + bus.getName());
+        if (value == null) {
+            value = PropertiesUtil.getProperty(PROPERTIES_CATEGORY, key);
+        }
+        final List<String> values = new ArrayList<String>();
+        if (value != null) {
+            for (final String item : value.split(",")) {
+                if (item.trim().length() > 0) {
+                    values.add(item.trim());
+                }
+            }
+        }
+        return values;
+    }
+
+    /**
+     * Creates JNDI context for connecting to bus.
+     *
+     * @param bus the bus
+     * @return the context
+     * @throws Exception if exception occurs in context creation.
+     */
+    private static Context createContext(final Bus bus) throws Exception {
+        final String userName = bus.getUserName();
+        final String password = bus.getUserPassword();
+        final String host = bus.getHost();
+        final Integer port = bus.getPort();
+
+        final Properties properties = new Properties();
+        properties.put("java.naming.factory.initial",
+                "org.apache.qpid.jndi.PropertiesFileInitialContextFactory");
+        properties.put("connectionfactory.qpidConnectionfactory",
+                "amqp://" + userName + ":" + password + "@agocontrolvaadinsite/client" +
+                        "?brokerlist='tcp://" + host + ":" + port + "'");
+
+        return new InitialContext(properties);
+    }
+
+    /**
+     * Handle reply by routing it to the pending command with matching correlation ID. Replies without
+     * correlation ID are routed to the pending command only if exactly one command is pending, otherwise they are
+     * discarded as unmatched. Map reply completes the command immediately.
+     * Other replies, such as plain acknowledgements, complete the command unless map reply follows shortly.
+     *
+     * @param message the reply message
      * @throws Exception if exception occurs.
      */
-    private void handleReply(final EntityManager entityManager) throws Exception  {
-        final Message message = (Message) replyConsumer.receive();
+    private void handleReply(final Message message) throws Exception {
         if (message == null) {
             return;
         }
-        replyMessageQueue.put(message);
+        final String correlationId = message.getJMSCorrelationID();
+        final CommandFuture command;
+        synchronized (pendingCommands) {
+            if (correlationId != null) {
+                command = pendingCommands.get(correlationId);
+            } else if (pendingCommands.size() == 1) {
+                command = pendingCommands.values().iterator().next();
+            } else {
+                unmatchedReplyCount.incrementAndGet();
+                LOGGER.warn("Discarded command reply without correlation ID as " + pendingCommands.size()
+                        + " commands are pending: " + message.toString());
+                return;
+            }
+        }
+
+        if (command == null) {
+            lateReplyCount.incrementAndGet();
+            LOGGER.debug("Discarded late or duplicate command reply: " + message.toString());
+            return;
+        }
+
+        if (message instanceof MapMessage) {
+            if (removePendingCommand(command)) {
+                command.complete(message);
+            }
+        } else if (command.setProvisionalReply(message)) {
+            commandScheduler.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    if (removePendingCommand(command)) {
+                        command.complete(message);
+                    }
+                }
+            }, SECOND_REPLY_WAIT_MILLIS, TimeUnit.MILLISECONDS);
+        } else {
+            lateReplyCount.incrementAndGet();
+            LOGGER.debug("Discarded duplicate command reply: " + message.toString());
+        }
+    }
+
+    /**
+     * Removes command from pending commands.
+     *
+     * @param command the command
+     * @return true if command was pending and this call removed it.
+     */
+    private boolean removePendingCommand(final CommandFuture command) {
+        synchronized (pendingCommands) {
+            return pendingCommands.remove(command.correlationId) != null;
+        }
     }
 
     /**
      * Handle event.
      *
-     * @param entityManager the entityManager
      * @param owner the owning company
+     * @param message the event message
      * @throws Exception if exception occurs.
      */
-    private void handleEvent(final EntityManager entityManager, final Company owner) throws Exception  {
-        final Message message = messageConsumer.receive();
+    private void handleEvent(final Company owner, final Message message) throws Exception  {
+        if (message == null) {
+            return;
+        }
+        receivedMessageCount.incrementAndGet();
 
         if (message instanceof MapMessage) {
             final MapMessage mapMessage = (MapMessage) message;
-            if (mapMessage == null) {
-                return;
-            }
 
             final String subject = mapMessage.getStringProperty("qpid.subject");
-            if (subject == null || !subject.startsWith("event")) {
+            if (subject == null || !subject.startsWith("event") || ignoredSubjects.contains(subject)) {
+                filteredMessageCount.incrementAndGet();
                 return;
             }
-            if (subject.equals("event.environment.timechanged")) {
-                return; // Ignore time changed events.
+
+            if (INVENTORY_EVENT_SUBJECTS.contains(subject)) {
+                final Map<String, Object> map = convertMapMessageToMap(mapMessage);
+                map.put("event", subject);
+                inventoryEvents.add(map);
             }
 
-            final Map<String, Object> map = convertMapMessageToMap(mapMessage);
+            final Date created = new Date();
+            final String elementId = getString(mapMessage, "uuid");
+            final String unit = getString(mapMessage, "unit");
+            final String level = getString(mapMessage, "level");
+            if (!directIngestion) {
+                eventBatchWriter.write(new Event(owner, elementId, subject, unit, level,
+                        storeEventContent ? eventEncoder.encode(mapMessage, subject) : null, created));
+                return;
+            }
 
-            map.put("event", subject);
+            if (elementId != null && level != null) {
+                recordBatchWriter.write(new Reading(owner, elementId, subject, unit, level, created));
+            }
 
-            final String eventJsonString = mapper.writeValueAsString(map);
-            EventDao.saveEvents(entityManager, Collections.singletonList(
-                    new Event(owner, eventJsonString, new Date())));
+            if (eventAuditSampleInterval > 0
+                    && receivedEventCount.getAndIncrement() % eventAuditSampleInterval == 0) {
+                // Audit events are stored as processed as the reading was already recorded.
+                final Event event = new Event(owner, elementId, subject, unit, level,
+                        storeEventContent ? eventEncoder.encode(mapMessage, subject) : null, created);
+                event.setProcessed(created);
+                eventBatchWriter.write(event);
+            }
             return;
         }
 
@@ -641,7 +1062,26 @@ public class BusClient {
         if (bytes == null) {
             return null;
         }
-        return new String((byte[]) bytes, Charset.forName("UTF-8"));
+        return new String((byte[]) bytes, UTF_8);
+    }
+
+    /**
+     * Gets map message value as string.
+     *
+     * @param message the map message
+     * @param key the key
+     * @return the value as string or null if value does not exist
+     * @throws JMSException if exception occurs in reading message.
+     */
+    private String getString(final MapMessage message, final String key) throws JMSException {
+        final Object value = message.getObject(key);
+        if (value == null) {
+            return null;
+        }
+        if (value instanceof byte[]) {
+            return bytesToString(value);
+        }
+        return value.toString();
     }
 
     /**
@@ -678,4 +1118,103 @@ public class BusClient {
             }
         }
     }
+
+    /**
+     * Future reply of a command sent to bus.
+     */
+    private static final class CommandFuture implements Future<Message> {
+        /** The correlation ID of the command. */
+        private final String correlationId;
+        /** The latch released when command completes. */
+        private final CountDownLatch latch = new CountDownLatch(1);
+        /** The reply. */
+        private Message reply;
+        /** The provisional reply received before final reply. */
+        private Message provisionalReply;
+        /** The failure. */
+        private Exception failure;
+
+        /**
+         * @param correlationId the correlation ID of the command
+         */
+        private CommandFuture(final String correlationId) {
+            this.correlationId = correlationId;
+        }
+
+        /**
+         * Sets provisional reply.
+         * @param message the provisional reply
+         * @return true if this was the first provisional reply.
+         */
+        private synchronized boolean setProvisionalReply(final Message message) {
+            if (provisionalReply != null) {
+                return false;
+            }
+            provisionalReply = message;
+            return true;
+        }
+
+        /**
+         * Completes the command.
+         * @param message the reply
+         */
+        private synchronized void complete(final Message message) {
+            if (latch.getCount() > 0) {
+                reply = message;
+                latch.countDown();
+            }
+        }
+
+        /**
+         * Fails the command.
+         * @param exception the failure
+         */
+        private synchronized void fail(final Exception exception) {
+            if (latch.getCount() > 0) {
+                failure = exception;
+                latch.countDown();
+            }
+        }
+
+        @Override
+        public boolean cancel(final boolean mayInterruptIfRunning) {
+            return false;
+        }
+
+        @Override
+        public boolean isCancelled() {
+            return false;
+        }
+
+        @Override
+        public boolean isDone() {
+            return latch.getCount() == 0;
+        }
+
+        @Override
+        public Message get() throws InterruptedException, ExecutionException {
+            latch.await();
+            return getResult();
+        }
+
+        @Override
+        public Message get(final long timeout, final TimeUnit unit)
+                throws InterruptedException, ExecutionException, TimeoutException {
+            if (!latch.await(timeout, unit)) {
+                throw new TimeoutException("Timeout waiting for command reply.");
+            }
+            return getResult();
+        }
+
+        /**
+         * @return the reply
+         * @throws ExecutionException if command failed.
+         */
+        private synchronized Message getResult() throws ExecutionException {
+            if (failure != null) {
+                throw new ExecutionException(failure);
+            }
+            return reply;
+        }
+    }
 }
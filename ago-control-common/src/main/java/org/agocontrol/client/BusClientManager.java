@@ -21,24 +21,38 @@ import org.agocontrol.model.BusConnectionStatus;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.dao.CompanyDao;
 import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
 
+import javax.jms.ExceptionListener;
+import javax.jms.JMSException;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.Random;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
 
 /**
- * Bus client manager class.
+ * Bus client manager class. Connects buses concurrently and reconnects each bus independently
+ * with exponential backoff after connect failure or connection loss.
  *
  * @author Tommi S.E. Laukkanen
  */
 public class BusClientManager {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(BusClientManager.class);
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
+    /** The bus configuration polling interval in milliseconds. */
+    private static final long BUS_POLL_INTERVAL_MILLIS = 30000;
     /**
      * The entityManagerFactory.
      */
@@ -46,15 +60,47 @@ public class BusClientManager {
     /**
      * Set true to shutdown threads.
      */
-    private boolean closeRequested = false;
+    private volatile boolean closeRequested = false;
     /**
      * The manager thread.
      */
     private final Thread managerThread;
+    /**
+     * The executor connecting and closing bus clients.
+     */
+    private final ScheduledExecutorService connectExecutor;
+    /**
+     * The initial reconnect delay in milliseconds.
+     */
+    private final long reconnectInitialDelayMillis;
+    /**
+     * The maximum reconnect delay in milliseconds.
+     */
+    private final long reconnectMaxDelayMillis;
+    /**
+     * The random used for reconnect delay jitter.
+     */
+    private final Random random = new Random();
     /**
      * The bus clients.
      */
-    private Map<Bus, BusClient> clients = new HashMap<Bus, BusClient>();
+    private final Map<Bus, BusClient> clients = new HashMap<Bus, BusClient>();
+    /**
+     * The buses which should be connected.
+     */
+    private final Set<Bus> activeBuses = new HashSet<Bus>();
+    /**
+     * The buses with connect scheduled or in progress.
+     */
+    private final Set<Bus> connectingBuses = new HashSet<Bus>();
+    /**
+     * The consecutive connect failure counts.
+     */
+    private final Map<Bus, Integer> failureCounts = new HashMap<Bus, Integer>();
+    /**
+     * The latest connect latencies in milliseconds.
+     */
+    private final Map<Bus, Long> connectLatencies = new HashMap<Bus, Long>();
 
     /**
      * Constructor which allows setting the entity manager factory.
@@ -63,6 +109,12 @@ public class BusClientManager {
      */
     public BusClientManager(final EntityManagerFactory entityManagerFactory) {
         this.entityManagerFactory = entityManagerFactory;
+        this.connectExecutor = Executors.newScheduledThreadPool(Integer.parseInt(
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "bus-connect-threads")));
+        this.reconnectInitialDelayMillis = Long.parseLong(
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "bus-reconnect-initial-delay-millis"));
+        this.reconnectMaxDelayMillis = Long.parseLong(
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "bus-reconnect-max-delay-millis"));
 
         managerThread = new Thread(new Runnable() {
             @Override
@@ -75,24 +127,11 @@ public class BusClientManager {
                         LOGGER.error("Error in manager thread.", t);
                     }
                     try {
-                        Thread.sleep(30000);
+                        Thread.sleep(BUS_POLL_INTERVAL_MILLIS);
                     } catch (final InterruptedException t) {
                         LOGGER.debug("Interrupt in manager thread sleep.");
                     }
                 }
-
-                for (final Bus bus : clients.keySet()) {
-                    try {
-                        final BusClient client = clients.get(bus);
-                        client.close();
-                        entityManager.refresh(bus);
-                        bus.setConnectionStatus(BusConnectionStatus.Disconnected);
-                        BusDao.saveBuses(entityManager, Collections.singletonList(bus));
-                    } catch (final Exception e) {
-                        LOGGER.warn("Exception in bus client close.", e);
-                    }
-                }
-
                 entityManager.close();
             }
         });
@@ -103,14 +142,25 @@ public class BusClientManager {
     /**
      * Closes the manager.
      */
-    public final synchronized void close() {
+    public final void close() {
         closeRequested = true;
         managerThread.interrupt();
         try {
             managerThread.join();
+            connectExecutor.shutdown();
+            connectExecutor.awaitTermination(1, TimeUnit.MINUTES);
         } catch (InterruptedException e) {
             LOGGER.debug("BusClientManager close wait interrupted.");
         }
+
+        final Map<Bus, BusClient> clientsToClose;
+        synchronized (this) {
+            clientsToClose = new HashMap<Bus, BusClient>(clients);
+            clients.clear();
+        }
+        for (final Bus bus : clientsToClose.keySet()) {
+            closeClient(bus, clientsToClose.get(bus), BusConnectionStatus.Disconnected);
+        }
     }
 
     /**
@@ -122,12 +172,21 @@ public class BusClientManager {
         return clients.get(bus);
     }
 
+    /**
+     * Gets latest connect latency of bus.
+     * @param bus the bus
+     * @return the connect latency in milliseconds or null if bus has not connected
+     */
+    public final synchronized Long getConnectLatencyMillis(final Bus bus) {
+        return connectLatencies.get(bus);
+    }
+
     /**
      * Manages clients.
      * @param entityManager the entityManager
      */
     private void manageClients(final EntityManager entityManager) {
-        final Set<Bus> activeBuses = new HashSet<Bus>();
+        final Set<Bus> buses = new HashSet<Bus>();
 
         final List<Company> companies = CompanyDao.getCompanies(entityManager);
         for (final Company company : companies) {
@@ -136,39 +195,191 @@ public class BusClientManager {
                         && bus.getPort() != null && bus.getPort() > 0
                         && bus.getUserName() != null && bus.getUserName().length() > 0
                         && bus.getUserPassword() != null && bus.getUserPassword().length() > 0) {
-                    activeBuses.add(bus);
+                    buses.add(bus);
                 }
             }
         }
 
-        for (final Bus bus : clients.keySet()) {
-            if (!activeBuses.contains(bus)) {
-                entityManager.refresh(bus);
-                final BusClient client = clients.remove(bus);
-                try {
-                    client.close();
-                    bus.setConnectionStatus(BusConnectionStatus.Disconnected);
-                    BusDao.saveBuses(entityManager, Collections.singletonList(bus));
-                } catch (final Exception e) {
-                    LOGGER.warn("Exception in bus client close.", e);
+        final Map<Bus, BusClient> clientsToClose = new HashMap<Bus, BusClient>();
+        synchronized (this) {
+            activeBuses.clear();
+            activeBuses.addAll(buses);
+            for (final Bus bus : new ArrayList<Bus>(clients.keySet())) {
+                if (!activeBuses.contains(bus)) {
+                    clientsToClose.put(bus, clients.remove(bus));
+                }
+            }
+            for (final Bus bus : activeBuses) {
+                if (!clients.containsKey(bus) && !connectingBuses.contains(bus)) {
+                    scheduleConnect(bus, 0);
                 }
             }
         }
 
-        for (final Bus bus : activeBuses) {
-            if (!clients.containsKey(bus)) {
-                try {
-                    clients.put(bus, new BusClient(entityManagerFactory, bus));
-                    entityManager.refresh(bus);
-                    bus.setConnectionStatus(BusConnectionStatus.Connected);
-                    BusDao.saveBuses(entityManager, Collections.singletonList(bus));
-                } catch (final Exception e) {
-                    LOGGER.warn("Exception in bus client connect.", e);
-                    bus.setConnectionStatus(BusConnectionStatus.Error);
-                    BusDao.saveBuses(entityManager, Collections.singletonList(bus));
+        for (final Bus bus : clientsToClose.keySet()) {
+            closeClient(bus, clientsToClose.get(bus), BusConnectionStatus.Disconnected);
+        }
+    }
+
+    /**
+     * Schedules bus connect. Caller holds manager lock.
+     * @param bus the bus
+     * @param delayMillis the delay in milliseconds
+     */
+    private void scheduleConnect(final Bus bus, final long delayMillis) {
+        if (closeRequested) {
+            return;
+        }
+        connectingBuses.add(bus);
+        connectExecutor.schedule(new Runnable() {
+            @Override
+            public void run() {
+                connect(bus);
+            }
+        }, delayMillis, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Connects bus and schedules reconnect on failure.
+     * @param bus the bus
+     */
+    private void connect(final Bus bus) {
+        synchronized (this) {
+            if (closeRequested || !activeBuses.contains(bus)) {
+                connectingBuses.remove(bus);
+                return;
+            }
+        }
+
+        final AtomicReference<BusClient> clientReference = new AtomicReference<BusClient>();
+        final long startTimeMillis = System.currentTimeMillis();
+        final BusClient client;
+        try {
+            client = new BusClient(entityManagerFactory, bus, new ExceptionListener() {
+                @Override
+                public void onException(final JMSException exception) {
+                    onConnectionLost(bus, clientReference.get(), exception);
                 }
+            });
+        } catch (final Throwable t) {
+            final long delayMillis;
+            synchronized (this) {
+                connectingBuses.remove(bus);
+                delayMillis = getReconnectDelayMillis(bus);
+                scheduleConnect(bus, delayMillis);
             }
+            LOGGER.warn("Exception in bus client connect: " + bus.getName() + ". Retrying in " + delayMillis
+                    + " ms.", t);
+            saveConnectionStatus(bus, BusConnectionStatus.Error);
+            return;
         }
+        clientReference.set(client);
+        final long latencyMillis = System.currentTimeMillis() - startTimeMillis;
+
+        final boolean keep;
+        synchronized (this) {
+            connectingBuses.remove(bus);
+            keep = !closeRequested && activeBuses.contains(bus);
+            if (keep) {
+                clients.put(bus, client);
+                failureCounts.remove(bus);
+                connectLatencies.put(bus, latencyMillis);
+            }
+        }
+        if (!keep) {
+            closeClient(bus, client, BusConnectionStatus.Disconnected);
+            return;
+        }
+        LOGGER.info("Connected to bus " + bus.getName() + " in " + latencyMillis + " ms.");
+        saveConnectionStatus(bus, BusConnectionStatus.Connected);
+    }
 
+    /**
+     * Handles connection loss reported by JMS exception listener.
+     * @param bus the bus
+     * @param client the client which lost connection or null if connect is in progress
+     * @param exception the exception
+     */
+    private void onConnectionLost(final Bus bus, final BusClient client, final JMSException exception) {
+        final long delayMillis;
+        synchronized (this) {
+            if (client == null || clients.get(bus) != client) {
+                return; // Connect in progress will fail or client has been replaced already.
+            }
+            clients.remove(bus);
+            // Marked connecting so that manager thread does not connect before the lost client is closed.
+            connectingBuses.add(bus);
+            delayMillis = getReconnectDelayMillis(bus);
+        }
+        LOGGER.warn("Lost connection to bus: " + bus.getName() + ". Reconnecting in " + delayMillis + " ms.",
+                exception);
+        // Close outside of JMS exception dispatch thread and reconnect only after close has released
+        // the resources of the lost client such as the spill journals.
+        connectExecutor.execute(new Runnable() {
+            @Override
+            public void run() {
+                closeClient(bus, client, BusConnectionStatus.Error);
+                synchronized (BusClientManager.this) {
+                    connectingBuses.remove(bus);
+                    scheduleConnect(bus, delayMillis);
+                }
+            }
+        });
+    }
+
+    /**
+     * Increments failure count and calculates exponential reconnect delay with jitter. Caller holds manager lock.
+     * @param bus the bus
+     * @return the delay in milliseconds
+     */
+    private long getReconnectDelayMillis(final Bus bus) {
+        final int failureCount = failureCounts.containsKey(bus) ? failureCounts.get(bus) : 0;
+        failureCounts.put(bus, failureCount + 1);
+        final long delayMillis = Math.min(reconnectMaxDelayMillis,
+                reconnectInitialDelayMillis << Math.min(failureCount, 30));
+        // Half of the delay is randomized so that buses sharing a broker do not reconnect in lockstep.
+        return delayMillis / 2 + (long) (random.nextDouble() * (delayMillis / 2));
+    }
+
+    /**
+     * Closes client and saves bus connection status unless another client has connected the bus meanwhile.
+     * @param bus the bus
+     * @param client the client
+     * @param connectionStatus the connection status to save
+     */
+    private void closeClient(final Bus bus, final BusClient client, final BusConnectionStatus connectionStatus) {
+        try {
+            client.close();
+        } catch (final Exception e) {
+            LOGGER.warn("Exception in bus client close.", e);
+        }
+        final BusClient currentClient;
+        synchronized (this) {
+            currentClient = clients.get(bus);
+        }
+        if (currentClient != null && currentClient != client) {
+            return; // Status belongs to the current client.
+        }
+        saveConnectionStatus(bus, connectionStatus);
+    }
+
+    /**
+     * Saves bus connection status.
+     * @param bus the bus
+     * @param connectionStatus the connection status
+     */
+    private void saveConnectionStatus(final Bus bus, final BusConnectionStatus connectionStatus) {
+        final EntityManager entityManager = entityManagerFactory.createEntityManager();
+        try {
+            final Bus loadedBus = BusDao.getBus(entityManager, bus.getBusId());
+            if (loadedBus != null) {
+                loadedBus.setConnectionStatus(connectionStatus);
+                BusDao.saveBuses(entityManager, Collections.singletonList(loadedBus));
+            }
+        } catch (final Exception e) {
+            LOGGER.warn("Exception in saving bus connection status.", e);
+        } finally {
+            entityManager.close();
+        }
     }
 }
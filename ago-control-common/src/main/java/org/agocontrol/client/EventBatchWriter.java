@@ -0,0 +1,137 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.dao.EventDao;
+import org.agocontrol.model.Event;
+
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Group commit writer for events.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class EventBatchWriter extends BatchWriter<Event> {
+
+    /**
+     * Constructor which opens the journal and starts the writer thread.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param name the name of the writer used in logging
+     * @param batchSize the maximum number of events in batch
+     * @param maxLingerMillis the maximum time in milliseconds first event of batch waits for batch to fill
+     * @param queueCapacity the maximum number of events buffered in memory before spilling to journal
+     * @param journalDirectory the journal directory
+     * @param journalSegmentSize the journal segment file size in bytes
+     * @throws IOException if journal can not be opened.
+     */
+    public EventBatchWriter(final EntityManagerFactory entityManagerFactory, final String name,
+                            final int batchSize, final long maxLingerMillis, final int queueCapacity,
+                            final File journalDirectory, final int journalSegmentSize) throws IOException {
+        super(entityManagerFactory, name, batchSize, maxLingerMillis, queueCapacity, journalDirectory,
+                journalSegmentSize);
+    }
+
+    @Override
+    protected final void saveBatch(final EntityManager entityManager, final List<Event> batch) {
+        EventDao.saveEvents(entityManager, batch);
+    }
+
+    /**
+     * Serializes event. Structured fields are appended after the raw content fields so that
+     * journal entries written before structured fields existed can still be read.
+     *
+     * @param event the event
+     * @return the serialized event
+     * @throws IOException if exception occurs in serialization.
+     */
+    @Override
+    protected final byte[] serialize(final Event event) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(event.getOwner().getCompanyId());
+        output.writeUTF(event.getContent() != null ? event.getContent() : "");
+        output.writeLong(event.getCreated().getTime());
+        output.writeLong(event.getProcessed() != null ? event.getProcessed().getTime() : -1);
+        output.writeBoolean(event.isProcessingError());
+        output.writeBoolean(event.getContent() != null);
+        writeNullableString(output, event.getElementId());
+        writeNullableString(output, event.getSubject());
+        writeNullableString(output, event.getUnit());
+        writeNullableString(output, event.getLevel());
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    protected final Event deserialize(final EntityManager entityManager, final byte[] data) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        final Company owner = entityManager.getReference(Company.class, input.readUTF());
+        final Event event = new Event(owner, input.readUTF(), new Date(input.readLong()));
+        final long processed = input.readLong();
+        if (processed != -1) {
+            event.setProcessed(new Date(processed));
+        }
+        event.setProcessingError(input.readBoolean());
+        if (input.available() > 0) {
+            if (!input.readBoolean()) {
+                event.setContent(null);
+            }
+            event.setElementId(readNullableString(input));
+            event.setSubject(readNullableString(input));
+            event.setUnit(readNullableString(input));
+            event.setLevel(readNullableString(input));
+        }
+        return event;
+    }
+
+    /**
+     * Writes string which may be null.
+     *
+     * @param output the output
+     * @param value the value or null
+     * @throws IOException if exception occurs in writing.
+     */
+    private static void writeNullableString(final DataOutputStream output, final String value) throws IOException {
+        output.writeBoolean(value != null);
+        if (value != null) {
+            output.writeUTF(value);
+        }
+    }
+
+    /**
+     * Reads string which may be null.
+     *
+     * @param input the input
+     * @return the value or null
+     * @throws IOException if exception occurs in reading.
+     */
+    private static String readNullableString(final DataInputStream input) throws IOException {
+        return input.readBoolean() ? input.readUTF() : null;
+    }
+}
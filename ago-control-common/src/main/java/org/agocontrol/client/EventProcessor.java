@@ -16,70 +16,84 @@
 package org.agocontrol.client;
 
 import com.fasterxml.jackson.databind.ObjectMapper;
-import org.agocontrol.dao.ElementDao;
 import org.agocontrol.dao.EventDao;
-import org.agocontrol.dao.RecordDao;
-import org.agocontrol.dao.RecordSetDao;
-import org.agocontrol.model.Bus;
-import org.agocontrol.model.Element;
-import org.agocontrol.model.ElementType;
+import org.agocontrol.dao.RecordSetCache;
 import org.agocontrol.model.Event;
+import org.agocontrol.model.EventWatermark;
 import org.agocontrol.model.Record;
 import org.agocontrol.model.RecordSet;
-import org.agocontrol.model.RecordType;
 import org.apache.log4j.Logger;
-import org.apache.qpid.client.AMQAnyDestination;
-import org.apache.qpid.messaging.Address;
 import org.vaadin.addons.sitekit.dao.CompanyDao;
 import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
 
-import javax.jms.Connection;
-import javax.jms.ConnectionFactory;
-import javax.jms.Destination;
-import javax.jms.JMSException;
-import javax.jms.MapMessage;
-import javax.jms.MessageConsumer;
-import javax.jms.MessageProducer;
-import javax.jms.Queue;
-import javax.jms.Session;
-import javax.naming.Context;
-import javax.naming.InitialContext;
 import javax.persistence.EntityManager;
 import javax.persistence.EntityManagerFactory;
-import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Date;
-import java.util.Enumeration;
 import java.util.HashMap;
-import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Properties;
-import java.util.Set;
-import java.util.TreeSet;
-import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
 
 /**
- * Ago control qpid client.
+ * Processes events to records. Scanner thread pages through unprocessed events of each company and
+ * partitions each page by element UUID hash to single threaded partition workers. Events of the same
+ * element are processed in order by the same worker while different elements are processed in parallel.
+ * Companies are scheduled with deficit round robin so that each company gets a weighted quantum of
+ * events per round and a company with large backlog does not delay the others.
  *
  * @author Tommi S.E. Laukkanen
  */
 public class EventProcessor {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(EventProcessor.class);
-    /** Default bus name. */
-    private static final String DEFAULT = "";
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
     /**
      * The entityManagerFactory.
      */
     private EntityManagerFactory entityManagerFactory;
     /** JSON object mapper. */
     private final ObjectMapper mapper = new ObjectMapper();
+    /** The maximum number of events in page. */
+    private final int pageSize;
+    /** The age in milliseconds events must reach before processing so that late commits are not skipped. */
+    private final long processingLagMillis;
+    /** The length in milliseconds of the window before watermark which is rescanned for late commits. */
+    private final long rescanMillis;
+    /** The interval in milliseconds of scanning all unprocessed events for commits later than rescan window. */
+    private final long fullRescanIntervalMillis;
+    /** The time of last full rescan by company ID. */
+    private final Map<String, Long> fullRescanTimes = new HashMap<String, Long>();
+    /** The number of events each company may process per round multiplied by company weight. */
+    private final int quantum;
+    /** The company lag in milliseconds above which lag is logged as warning. */
+    private final long lagWarningMillis;
+    /** The unused quanta of companies with backlog by company ID. */
+    private final Map<String, Long> deficits = new HashMap<String, Long>();
+    /** The age in milliseconds of the oldest unprocessed event by company ID. */
+    private final Map<String, Long> lagMillis = new ConcurrentHashMap<String, Long>();
+    /** The number of processed events by company ID. */
+    private final Map<String, AtomicLong> processedEventCounts = new ConcurrentHashMap<String, AtomicLong>();
+    /** The time lag warnings were last logged. */
+    private long lagWarningLoggedMillis = 0;
+    /** The partition workers. */
+    private final List<ExecutorService> partitionWorkers = new ArrayList<ExecutorService>();
+    /** The partition entity managers each used only by the thread of corresponding partition worker. */
+    private final List<EntityManager> partitionEntityManagers = new ArrayList<EntityManager>();
     /**
      * Set true to shutdown threads.
      */
-    private boolean closeRequested = false;
+    private volatile boolean closeRequested = false;
     /**
      * The event processor thread.
      */
@@ -92,6 +106,26 @@ public class EventProcessor {
      */
     public EventProcessor(final EntityManagerFactory entityManagerFactory) {
         this.entityManagerFactory = entityManagerFactory;
+        pageSize = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "event-processing-page-size"));
+        processingLagMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processing-lag-millis"));
+        rescanMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processing-rescan-millis"));
+        fullRescanIntervalMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processing-full-rescan-interval-millis"));
+        quantum = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "event-processing-quantum"));
+        lagWarningMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processing-lag-warning-millis"));
+        int partitionCount = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processor-threads"));
+        if (partitionCount < 1) {
+            partitionCount = Runtime.getRuntime().availableProcessors();
+        }
+        for (int i = 0; i < partitionCount; i++) {
+            partitionWorkers.add(Executors.newSingleThreadExecutor());
+            partitionEntityManagers.add(entityManagerFactory.createEntityManager());
+        }
+        LOGGER.info("Processing events with " + partitionCount + " partition workers.");
 
         eventProcessorThread = new Thread(new Runnable() {
             @Override
@@ -100,10 +134,16 @@ public class EventProcessor {
                 while (!closeRequested) {
                     try {
                         final List<Company> companies = CompanyDao.getCompanies(entityManager);
-                        for (final Company company : companies) {
-                            processEvent(entityManager, company);
+                        boolean backlog = true;
+                        for (int round = 0; backlog && !closeRequested; round++) {
+                            backlog = false;
+                            for (int i = 0; i < companies.size(); i++) {
+                                if (processEvent(entityManager, companies.get((i + round) % companies.size()))) {
+                                    backlog = true;
+                                }
+                            }
                         }
-
+                        logLagWarnings();
                     } catch (final Throwable t) {
                         LOGGER.error("Error in processing events.", t);
                     }
@@ -121,71 +161,310 @@ public class EventProcessor {
     }
 
     /**
-     * Processes unprocessed events.
+     * Processes unprocessed events of the owning company page by page in (created, eventId) order
+     * until the company quantum for this round is used. Events can commit after the watermark has
+     * passed their created time so scan starts rescan window before the company event processing
+     * watermark and from the beginning once in full rescan interval. Processed state of the events
+     * is the actual filter and the watermark only limits the scanned range. The watermark is advanced
+     * after all partitions of the page have been committed. Entity manager is cleared after each page
+     * so that memory use does not depend on the size of the backlog.
      *
      * @param entityManager the entityManager
      * @param owner the owning company
+     * @return true if company has more unprocessed events.
      */
-    private void processEvent(final EntityManager entityManager, final Company owner) {
-        final List<Event> events = EventDao.getUnprocessedEvents(entityManager, owner);
+    private boolean processEvent(final EntityManager entityManager, final Company owner) {
+        final String companyId = owner.getCompanyId();
+        final Date until = new Date(System.currentTimeMillis() - processingLagMillis);
+        long deficit = (deficits.containsKey(companyId) ? deficits.get(companyId) : 0)
+                + (long) quantum * getWeight(companyId);
+        boolean backlog = false;
+        boolean firstPage = true;
+        Date afterCreated = null;
+        String afterEventId = "";
+        while (deficit > 0 && !closeRequested) {
+            final int limit = (int) Math.min(pageSize, deficit);
+            final EventWatermark watermark = getEventWatermark(entityManager, owner);
+            if (afterCreated == null) {
+                final Long fullRescanTime = fullRescanTimes.get(companyId);
+                if (fullRescanTime == null
+                        || System.currentTimeMillis() - fullRescanTime >= fullRescanIntervalMillis) {
+                    fullRescanTimes.put(companyId, System.currentTimeMillis());
+                    afterCreated = new Date(0);
+                } else {
+                    afterCreated = new Date(watermark.getLastEventCreated().getTime() - rescanMillis);
+                }
+            }
+            final List<Event> events = EventDao.getUnprocessedEvents(entityManager, owner,
+                    afterCreated, afterEventId, until, limit);
+            if (firstPage) {
+                lagMillis.put(companyId, events.size() > 0
+                        ? System.currentTimeMillis() - events.get(0).getCreated().getTime() : 0L);
+                firstPage = false;
+            }
+            if (events.size() == 0) {
+                backlog = false;
+                break;
+            }
+            processPage(owner, events);
 
-        for (final Event event : events) {
-            try {
-                final Map<String, Object> eventMessage = mapper.readValue(event.getContent(), HashMap.class);
+            final Event lastEvent = events.get(events.size() - 1);
+            afterCreated = lastEvent.getCreated();
+            afterEventId = lastEvent.getEventId();
+            // Late commits found by rescan do not move the watermark backwards.
+            final long watermarkCreated = watermark.getLastEventCreated().getTime();
+            if (afterCreated.getTime() > watermarkCreated || (afterCreated.getTime() == watermarkCreated
+                    && afterEventId.compareTo(watermark.getLastEventId()) > 0)) {
+                watermark.setLastEventCreated(afterCreated);
+                watermark.setLastEventId(afterEventId);
+                EventDao.saveEventWatermark(entityManager, watermark);
+            }
+            entityManager.clear();
 
-                final String elementId = (String) eventMessage.get("uuid");
-                final String name = (String) eventMessage.get("event");
-                final String unit = (String) eventMessage.get("unit");
-                final String valueString = (String) eventMessage.get("level");
+            if (!processedEventCounts.containsKey(companyId)) {
+                processedEventCounts.put(companyId, new AtomicLong());
+            }
+            processedEventCounts.get(companyId).addAndGet(events.size());
+            deficit -= events.size();
+            backlog = events.size() == limit;
+            if (!backlog) {
+                break;
+            }
+        }
+        deficits.put(companyId, backlog ? deficit : 0L);
+        return backlog;
+    }
 
-                final Element element = ElementDao.getElement(entityManager, elementId);
+    /**
+     * Gets scheduling weight of company. Weight can be set per company with property
+     * event-processing-weight.[companyId] and defaults to event-processing-weight.
+     *
+     * @param companyId the company ID
+     * @return the weight
+     */
+    private int getWeight(final String companyId) {
+        final String weight = PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "event-processing-weight." + companyId);
+        if (weight != null && weight.trim().length() > 0) {
+            return Math.max(1, Integer.parseInt(weight.trim()));
+        }
+        return Math.max(1, Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "event-processing-weight")));
+    }
 
-                if (element != null && element.getOwner().equals(owner) && valueString != null
-                        && valueString.length() != 0) {
+    /**
+     * Logs warning for companies lagging more than lag warning limit at most once a minute.
+     */
+    private void logLagWarnings() {
+        if (System.currentTimeMillis() - lagWarningLoggedMillis < 60000) {
+            return;
+        }
+        for (final String companyId : lagMillis.keySet()) {
+            final long lag = lagMillis.get(companyId);
+            if (lag > lagWarningMillis) {
+                LOGGER.warn("Event processing of company " + companyId + " lagging " + lag + " ms ("
+                        + getProcessedEventCount(companyId) + " events processed).");
+                lagWarningLoggedMillis = System.currentTimeMillis();
+            }
+        }
+    }
 
-                    RecordSet recordSet = RecordSetDao.getRecordSet(entityManager, element, name);
+    /**
+     * Gets event processing lag of company. Lag is the age of the oldest unprocessed event
+     * when the company was last scheduled.
+     *
+     * @param companyId the company ID
+     * @return the lag in milliseconds or 0 if company has no backlog.
+     */
+    public final long getLagMillis(final String companyId) {
+        final Long lag = lagMillis.get(companyId);
+        return lag != null ? lag : 0L;
+    }
 
-                    if (recordSet == null) {
-                        RecordType recordType = RecordType.OTHER;
-                        if (name.toLowerCase().contains("humidity")) {
-                            recordType = RecordType.HUMIDITY;
-                        } else if (name.toLowerCase().contains("brightness")) {
-                            recordType = RecordType.BRIGHTNESS;
-                        } else if (name.toLowerCase().contains("temperature")) {
-                            recordType = RecordType.TEMPERATURE;
-                        }
-                        recordSet = new RecordSet(
-                                owner,
-                                element,
-                                name,
-                                recordType,
-                                unit,
-                                event.getCreated()
-                        );
-                        RecordSetDao.saveRecordSets(entityManager, Collections.singletonList(recordSet));
-                    }
+    /**
+     * @return the event processing lags in milliseconds by company ID
+     */
+    public final Map<String, Long> getLagMillis() {
+        return new HashMap<String, Long>(lagMillis);
+    }
 
-                    final Double value = new Double(valueString);
+    /**
+     * @param companyId the company ID
+     * @return the number of events processed for company since start
+     */
+    public final long getProcessedEventCount(final String companyId) {
+        final AtomicLong count = processedEventCounts.get(companyId);
+        return count != null ? count.get() : 0L;
+    }
 
-                    RecordDao.saveRecords(entityManager, Collections.singletonList(new Record(
-                            owner,
-                            recordSet,
-                            value,
-                            event.getCreated()
-                    )));
+    /**
+     * Partitions events of the page by element UUID and waits for the partition workers to process them.
+     *
+     * @param owner the owning company
+     * @param events the events in key order
+     */
+    private void processPage(final Company owner, final List<Event> events) {
+        final int partitionCount = partitionWorkers.size();
+        final List<List<Event>> partitionEvents = new ArrayList<List<Event>>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            partitionEvents.add(new ArrayList<Event>());
+        }
 
-                    event.setProcessingError(false);
-                } else {
-                    event.setProcessingError(true);
+        for (final Event event : events) {
+            final String elementId = getEventFields(event)[0];
+            final int partition = elementId != null ? (elementId.hashCode() & Integer.MAX_VALUE) % partitionCount : 0;
+            partitionEvents.get(partition).add(event);
+        }
+
+        final String companyId = owner.getCompanyId();
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(partitionCount);
+        for (int i = 0; i < partitionCount; i++) {
+            if (partitionEvents.get(i).size() == 0) {
+                continue;
+            }
+            final EntityManager partitionEntityManager = partitionEntityManagers.get(i);
+            final List<Event> eventsToProcess = partitionEvents.get(i);
+            futures.add(partitionWorkers.get(i).submit(new Callable<Void>() {
+                @Override
+                public Void call() {
+                    processPartition(partitionEntityManager, companyId, eventsToProcess);
+                    return null;
                 }
-            } catch (Throwable t) {
+            }));
+        }
+
+        RuntimeException failure = null;
+        for (final Future<Void> future : futures) {
+            try {
+                future.get();
+            } catch (final ExecutionException e) {
+                failure = new RuntimeException("Error processing event partition.", e.getCause());
+            } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new RuntimeException("Interrupted while waiting for event partitions.", e);
+            }
+        }
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    /**
+     * Processes events of a partition in single transaction. If the transaction fails the events are
+     * processed one by one so that single failing event does not block the others.
+     *
+     * @param entityManager the partition entityManager
+     * @param companyId the owning company ID
+     * @param events the events in key order
+     */
+    private void processPartition(final EntityManager entityManager, final String companyId,
+                                  final List<Event> events) {
+        try {
+            processEvents(entityManager, companyId, events);
+        } catch (final RuntimeException e) {
+            LOGGER.warn("Error processing event batch of " + events.size()
+                    + " events, processing events one by one.");
+            entityManager.clear();
+            for (final Event event : events) {
+                try {
+                    processEvents(entityManager, companyId, Collections.singletonList(event));
+                } catch (final RuntimeException e2) {
+                    LOGGER.warn("Error saving processed event: " + event.getEventId());
+                    entityManager.clear();
+                    EventDao.saveProcessedEvents(entityManager, Collections.<RecordSet>emptyList(),
+                            Collections.<Record>emptyList(), Collections.<String>emptyList(),
+                            Collections.singletonList(event.getEventId()), new Date());
+                }
+            }
+        } finally {
+            entityManager.clear();
+        }
+    }
+
+    /**
+     * Converts events to records and saves records and event processing states in single transaction.
+     *
+     * @param entityManager the partition entityManager
+     * @param companyId the owning company ID
+     * @param events the events in key order
+     */
+    private void processEvents(final EntityManager entityManager, final String companyId,
+                               final List<Event> events) {
+        final Company owner = entityManager.getReference(Company.class, companyId);
+        final Map<String, RecordSet> newRecordSets = new HashMap<String, RecordSet>();
+        final List<Record> records = new ArrayList<Record>(events.size());
+        final List<String> processedEventIds = new ArrayList<String>(events.size());
+        final List<String> failedEventIds = new ArrayList<String>();
+
+        for (final Event event : events) {
+            Record record = null;
+            try {
+                final String[] fields = getEventFields(event);
+                final Reading reading = new Reading(owner, fields[0], fields[1], fields[2], fields[3],
+                        event.getCreated());
+                record = RecordBatchWriter.createRecord(entityManager, reading, newRecordSets);
+            } catch (final Throwable t) {
                 LOGGER.warn("Error processing event: " + event.getEventId());
-                event.setProcessingError(true);
             }
-            event.setProcessed(new Date());
+            if (record != null) {
+                records.add(record);
+                processedEventIds.add(event.getEventId());
+            } else {
+                failedEventIds.add(event.getEventId());
+            }
+        }
+
+        EventDao.saveProcessedEvents(entityManager, new ArrayList<RecordSet>(newRecordSets.values()), records,
+                processedEventIds, failedEventIds, new Date());
+        RecordSetCache.putRecordSets(newRecordSets.values());
+    }
+
+    /**
+     * Gets element UUID, subject, unit and level of event. Events stored before structured event fields
+     * existed have only raw content which is parsed.
+     *
+     * @param event the event
+     * @return array of element UUID, subject, unit and level
+     */
+    private String[] getEventFields(final Event event) {
+        if (event.getSubject() != null || event.getContent() == null) {
+            return new String[] {event.getElementId(), event.getSubject(), event.getUnit(), event.getLevel()};
+        }
+        try {
+            final Map<String, Object> eventMessage = mapper.readValue(event.getContent(), HashMap.class);
+            return new String[] {
+                    toString(eventMessage.get("uuid")),
+                    toString(eventMessage.get("event")),
+                    toString(eventMessage.get("unit")),
+                    toString(eventMessage.get("level"))
+            };
+        } catch (final Exception e) {
+            LOGGER.warn("Error parsing event: " + event.getEventId());
+            return new String[4];
         }
+    }
 
-        EventDao.saveEvents(entityManager, events);
+    /**
+     * @param value the value or null
+     * @return string presentation of value or null
+     */
+    private static String toString(final Object value) {
+        return value != null ? value.toString() : null;
+    }
+
+    /**
+     * Gets event processing watermark of the owning company or new watermark before all events
+     * if events of the company have not been processed yet.
+     *
+     * @param entityManager the entityManager
+     * @param owner the owning company
+     * @return the watermark
+     */
+    private EventWatermark getEventWatermark(final EntityManager entityManager, final Company owner) {
+        final EventWatermark watermark = EventDao.getEventWatermark(entityManager, owner);
+        if (watermark != null) {
+            return watermark;
+        }
+        return new EventWatermark(entityManager.getReference(Company.class, owner.getCompanyId()), new Date(0), "");
     }
 
     /**
@@ -197,6 +476,19 @@ public class EventProcessor {
         closeRequested = true;
         eventProcessorThread.interrupt();
         eventProcessorThread.join();
+        for (int i = 0; i < partitionWorkers.size(); i++) {
+            final EntityManager partitionEntityManager = partitionEntityManagers.get(i);
+            partitionWorkers.get(i).submit(new Runnable() {
+                @Override
+                public void run() {
+                    partitionEntityManager.close();
+                }
+            });
+            partitionWorkers.get(i).shutdown();
+        }
+        for (final ExecutorService partitionWorker : partitionWorkers) {
+            partitionWorker.awaitTermination(1, TimeUnit.MINUTES);
+        }
     }
 
 
@@ -0,0 +1,474 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.dao.ElementDao;
+import org.agocontrol.dao.RecordSetDao;
+import org.agocontrol.model.Bus;
+import org.agocontrol.model.Element;
+import org.agocontrol.model.ElementType;
+import org.apache.log4j.Logger;
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.EntityManager;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+
+/**
+ * Applies bus inventory state to stored elements and writes only the elements which were
+ * added, moved, renamed or removed.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class InventorySynchronizer {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(InventorySynchronizer.class);
+    /** Default building name. */
+    public static final String DEFAULT = "Default";
+    /**
+     * The entity manager.
+     */
+    private final EntityManager entityManager;
+    /**
+     * The owning company.
+     */
+    private final Company owner;
+    /**
+     * The bus.
+     */
+    private final Bus bus;
+    /**
+     * The elements of the owning company.
+     */
+    private final List<Element> elements;
+    /**
+     * The elements by ID.
+     */
+    private final Map<String, Element> idElementMap = new HashMap<String, Element>();
+    /**
+     * The buildings by name.
+     */
+    private final Map<String, Element> nameBuildingMap = new HashMap<String, Element>();
+    /**
+     * The added elements.
+     */
+    private final Set<Element> addedElements = new LinkedHashSet<Element>();
+    /**
+     * The changed elements.
+     */
+    private final Set<Element> changedElements = new LinkedHashSet<Element>();
+    /**
+     * The removed elements.
+     */
+    private final Set<Element> removedElements = new LinkedHashSet<Element>();
+
+    /**
+     * Constructor which loads the elements of the owning company.
+     *
+     * @param entityManager the entity manager
+     * @param owner the owning company
+     * @param bus the bus
+     */
+    public InventorySynchronizer(final EntityManager entityManager, final Company owner, final Bus bus) {
+        this.entityManager = entityManager;
+        this.owner = owner;
+        this.bus = bus;
+
+        elements = new ArrayList<Element>(ElementDao.getElements(entityManager, owner));
+        for (final Element element : elements) {
+            if (element.getType() == ElementType.BUILDING) {
+                nameBuildingMap.put(element.getName(), element);
+            }
+            idElementMap.put(element.getElementId(), element);
+        }
+
+        if (!nameBuildingMap.containsKey(DEFAULT)) {
+            final Element building = new Element(owner, ElementType.BUILDING, DEFAULT, "");
+            nameBuildingMap.put(building.getName(), building);
+            add(building);
+        }
+    }
+
+    /**
+     * Sets room state. Rooms with unknown location are placed to default building.
+     *
+     * @param roomId the room ID
+     * @param name the room name or null to keep existing name
+     * @param location the building name
+     */
+    public final void setRoom(final String roomId, final String name, final String location) {
+        final Element room = idElementMap.get(roomId);
+        if (room == null) {
+            final Element building = getBuilding(location);
+            final Element newRoom = new Element(roomId, building, owner, ElementType.ROOM, name != null ? name : "",
+                    "");
+            newRoom.setBus(bus);
+            add(newRoom);
+            return;
+        }
+        setParent(room, getBuilding(location));
+        setBus(room);
+        if (name != null && !name.equals(room.getName())) {
+            room.setName(name);
+            markChanged(room);
+        }
+    }
+
+    /**
+     * Sets device state. Devices with unknown room are placed to default building.
+     *
+     * @param deviceId the device ID
+     * @param name the device name or null to keep existing name
+     * @param roomId the room ID
+     * @param category the device type or null to keep existing type
+     */
+    public final void setDevice(final String deviceId, final String name, final String roomId,
+                                final String category) {
+        final Element device = idElementMap.get(deviceId);
+        if (device == null) {
+            final Element newDevice = new Element(deviceId, getRoom(roomId), owner, ElementType.DEVICE,
+                    name != null ? name : "", category != null ? category : "");
+            newDevice.setBus(bus);
+            add(newDevice);
+            return;
+        }
+        setParent(device, getRoom(roomId));
+        setBus(device);
+        if (name != null && !name.equals(device.getName())) {
+            device.setName(name);
+            markChanged(device);
+        }
+        if (category != null && !category.equals(device.getCategory())) {
+            device.setCategory(category);
+            markChanged(device);
+        }
+        if (device.getType() != ElementType.DEVICE) {
+            device.setType(ElementType.DEVICE);
+            markChanged(device);
+        }
+    }
+
+    /**
+     * Sets room name. Unknown room is added to default building.
+     *
+     * @param roomId the room ID
+     * @param name the room name
+     */
+    public final void setRoomName(final String roomId, final String name) {
+        final Element room = idElementMap.get(roomId);
+        if (room == null) {
+            setRoom(roomId, name, null);
+            return;
+        }
+        setBus(room);
+        if (name != null && !name.equals(room.getName())) {
+            room.setName(name);
+            markChanged(room);
+        }
+    }
+
+    /**
+     * Announces device. Unknown device is added to default building and known device keeps its
+     * name and room.
+     *
+     * @param deviceId the device ID
+     * @param category the device type
+     */
+    public final void announceDevice(final String deviceId, final String category) {
+        final Element device = idElementMap.get(deviceId);
+        if (device == null) {
+            setDevice(deviceId, null, null, category);
+            return;
+        }
+        setBus(device);
+        if (category != null && !category.equals(device.getCategory())) {
+            device.setCategory(category);
+            markChanged(device);
+        }
+    }
+
+    /**
+     * Sets device name. Unknown devices are ignored until announced.
+     *
+     * @param deviceId the device ID
+     * @param name the device name
+     */
+    public final void setDeviceName(final String deviceId, final String name) {
+        final Element device = idElementMap.get(deviceId);
+        if (device == null || device.getType() != ElementType.DEVICE) {
+            return;
+        }
+        if (name != null && !name.equals(device.getName())) {
+            device.setName(name);
+            markChanged(device);
+        }
+    }
+
+    /**
+     * Sets device room. Unknown devices are ignored until announced.
+     *
+     * @param deviceId the device ID
+     * @param roomId the room ID
+     */
+    public final void setDeviceRoom(final String deviceId, final String roomId) {
+        final Element device = idElementMap.get(deviceId);
+        if (device == null || device.getType() != ElementType.DEVICE) {
+            return;
+        }
+        setParent(device, getRoom(roomId));
+    }
+
+    /**
+     * Removes room or device of this bus.
+     *
+     * @param elementId the element ID
+     */
+    public final void removeElement(final String elementId) {
+        final Element element = idElementMap.get(elementId);
+        if (element == null || !bus.equals(element.getBus())) {
+            return;
+        }
+        if (element.getType() != ElementType.ROOM && element.getType() != ElementType.DEVICE) {
+            return;
+        }
+        elements.remove(element);
+        idElementMap.remove(elementId);
+        if (addedElements.remove(element)) {
+            return;
+        }
+        changedElements.remove(element);
+        removedElements.add(element);
+    }
+
+    /**
+     * Removes rooms and devices of this bus which are not among the given element IDs.
+     *
+     * @param elementIds the IDs of the rooms and devices present in bus
+     */
+    public final void retainElements(final Set<String> elementIds) {
+        for (final Element element : new ArrayList<Element>(elements)) {
+            if (!elementIds.contains(element.getElementId())) {
+                removeElement(element.getElementId());
+            }
+        }
+    }
+
+    /**
+     * Updates tree indexes and writes changed elements to database.
+     */
+    public final void commit() {
+        for (final Element element : new ArrayList<Element>(removedElements)) {
+            if (RecordSetDao.getRecordSets(entityManager, element).size() > 0) {
+                LOGGER.debug("Kept element with records after it was removed from bus: " + element);
+                removedElements.remove(element);
+                elements.add(element);
+                idElementMap.put(element.getElementId(), element);
+            }
+        }
+
+        final Element defaultBuilding = nameBuildingMap.get(DEFAULT);
+        for (final Element element : elements) {
+            if (element.getParent() != null && removedElements.contains(element.getParent())) {
+                setParent(element, defaultBuilding);
+            }
+        }
+
+        updateTreeIndexes();
+
+        final List<Element> elementsToSave = new ArrayList<Element>(addedElements);
+        elementsToSave.addAll(changedElements);
+        if (elementsToSave.size() > 0) {
+            ElementDao.saveElements(entityManager, elementsToSave);
+        }
+
+        // Removed elements are in tree order so children are removed before their parents.
+        final List<Element> elementsToRemove = new ArrayList<Element>(removedElements);
+        Collections.reverse(elementsToRemove);
+        for (final Element element : elementsToRemove) {
+            ElementDao.removeElement(entityManager, element);
+        }
+    }
+
+    /**
+     * @return the number of added elements
+     */
+    public final int getAddedCount() {
+        return addedElements.size();
+    }
+
+    /**
+     * @return the number of changed elements
+     */
+    public final int getChangedCount() {
+        return changedElements.size();
+    }
+
+    /**
+     * @return the number of removed elements
+     */
+    public final int getRemovedCount() {
+        return removedElements.size();
+    }
+
+    /**
+     * @return the number of elements written to database
+     */
+    public final int getTouchedCount() {
+        return addedElements.size() + changedElements.size() + removedElements.size();
+    }
+
+    /**
+     * @return the number of elements of the owning company
+     */
+    public final int getElementCount() {
+        return elements.size();
+    }
+
+    /**
+     * Assigns tree index and depth in depth first order and marks elements with changed values. Tree indexes
+     * start from bus specific offset so that buses of the same company get disjoint ranges.
+     */
+    private void updateTreeIndexes() {
+        final List<Element> roots = new ArrayList<Element>();
+        final Map<Element, Set<Element>> treeMap = new HashMap<Element, Set<Element>>();
+
+        for (final Element element : elements) {
+            if (element.getParent() == null) {
+                setTreePosition(element, element.getTreeIndex(), 0);
+                roots.add(element);
+            } else {
+                final Element parent = idElementMap.get(element.getParent().getElementId());
+                if (parent != null) {
+                    if (!treeMap.containsKey(parent)) {
+                        treeMap.put(parent, new TreeSet<Element>());
+                    }
+                    treeMap.get(parent).add(element);
+                }
+            }
+        }
+
+        final LinkedList<Element> elementsToIterate = new LinkedList<Element>();
+        elementsToIterate.addAll(roots);
+
+        int treeIndex = bus.getBusId().hashCode();
+        while (elementsToIterate.size() > 0) {
+            final Element element = elementsToIterate.removeFirst();
+            setTreePosition(element, ++treeIndex, element.getTreeDepth());
+            final Set<Element> children = treeMap.get(element);
+            if (children != null) {
+                for (final Element child : children) {
+                    setTreePosition(child, child.getTreeIndex(), element.getTreeDepth() + 1);
+                }
+                elementsToIterate.addAll(0, children);
+            }
+        }
+    }
+
+    /**
+     * Sets tree index and depth of element and marks it changed if either differs.
+     *
+     * @param element the element
+     * @param treeIndex the tree index
+     * @param treeDepth the tree depth
+     */
+    private void setTreePosition(final Element element, final int treeIndex, final int treeDepth) {
+        if (element.getTreeIndex() != treeIndex || element.getTreeDepth() != treeDepth) {
+            element.setTreeIndex(treeIndex);
+            element.setTreeDepth(treeDepth);
+            markChanged(element);
+        }
+    }
+
+    /**
+     * Sets parent of element and marks it changed if parent differs.
+     *
+     * @param element the element
+     * @param parent the parent
+     */
+    private void setParent(final Element element, final Element parent) {
+        if (parent == null ? element.getParent() != null : !parent.equals(element.getParent())) {
+            element.setParent(parent);
+            markChanged(element);
+        }
+    }
+
+    /**
+     * Sets bus of element and marks it changed if bus differs.
+     *
+     * @param element the element
+     */
+    private void setBus(final Element element) {
+        if (!bus.equals(element.getBus())) {
+            element.setBus(bus);
+            markChanged(element);
+        }
+    }
+
+    /**
+     * Gets building by name or default building.
+     *
+     * @param location the building name
+     * @return the building
+     */
+    private Element getBuilding(final String location) {
+        if (location != null && nameBuildingMap.containsKey(location)) {
+            return nameBuildingMap.get(location);
+        }
+        return nameBuildingMap.get(DEFAULT);
+    }
+
+    /**
+     * Gets room by ID or default building.
+     *
+     * @param roomId the room ID
+     * @return the room
+     */
+    private Element getRoom(final String roomId) {
+        if (roomId != null && idElementMap.containsKey(roomId)) {
+            return idElementMap.get(roomId);
+        }
+        return nameBuildingMap.get(DEFAULT);
+    }
+
+    /**
+     * Marks existing element changed.
+     *
+     * @param element the element
+     */
+    private void markChanged(final Element element) {
+        if (!addedElements.contains(element)) {
+            changedElements.add(element);
+        }
+    }
+
+    /**
+     * Adds new element.
+     *
+     * @param element the element
+     */
+    private void add(final Element element) {
+        elements.add(element);
+        idElementMap.put(element.getElementId(), element);
+        addedElements.add(element);
+    }
+}
@@ -0,0 +1,115 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.Enumeration;
+import java.util.Map;
+
+/**
+ * Streaming encoder which writes map message entries directly to JSON without intermediate map.
+ * Byte array values are written as UTF-8 strings without decoding. The output buffer is reused
+ * so instance is not thread safe.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class MapMessageJsonEncoder {
+    /** The initial output buffer size in bytes. */
+    private static final int INITIAL_BUFFER_SIZE = 1024;
+    /** The JSON factory. */
+    private final JsonFactory jsonFactory = new JsonFactory();
+    /** The reused output buffer. */
+    private final ByteArrayOutputStream buffer = new ByteArrayOutputStream(INITIAL_BUFFER_SIZE);
+
+    /**
+     * Encodes map message to JSON object with subject added as event field.
+     *
+     * @param message the map message
+     * @param subject the event subject
+     * @return the JSON string
+     * @throws JMSException if exception occurs in reading message.
+     * @throws IOException if exception occurs in writing JSON.
+     */
+    public String encode(final MapMessage message, final String subject) throws JMSException, IOException {
+        buffer.reset();
+        final JsonGenerator generator = jsonFactory.createJsonGenerator(buffer, JsonEncoding.UTF8);
+        generator.writeStartObject();
+        final Enumeration<?> names = message.getMapNames();
+        while (names.hasMoreElements()) {
+            final String name = (String) names.nextElement();
+            if (name.equals("event")) {
+                continue;
+            }
+            generator.writeFieldName(name);
+            writeValue(generator, message.getObject(name));
+        }
+        generator.writeStringField("event", subject);
+        generator.writeEndObject();
+        generator.close();
+        return buffer.toString("UTF-8");
+    }
+
+    /**
+     * Writes value to generator.
+     *
+     * @param generator the generator
+     * @param value the value
+     * @throws IOException if exception occurs in writing JSON.
+     */
+    private void writeValue(final JsonGenerator generator, final Object value) throws IOException {
+        if (value == null) {
+            generator.writeNull();
+        } else if (value instanceof String) {
+            generator.writeString((String) value);
+        } else if (value instanceof byte[]) {
+            final byte[] bytes = (byte[]) value;
+            generator.writeUTF8String(bytes, 0, bytes.length);
+        } else if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            generator.writeNumber(((Number) value).intValue());
+        } else if (value instanceof Long) {
+            generator.writeNumber((Long) value);
+        } else if (value instanceof Double) {
+            generator.writeNumber((Double) value);
+        } else if (value instanceof Float) {
+            generator.writeNumber((Float) value);
+        } else if (value instanceof Boolean) {
+            generator.writeBoolean((Boolean) value);
+        } else if (value instanceof Map) {
+            generator.writeStartObject();
+            for (final Map.Entry<?, ?> entry : ((Map<?, ?>) value).entrySet()) {
+                generator.writeFieldName(String.valueOf(entry.getKey()));
+                writeValue(generator, entry.getValue());
+            }
+            generator.writeEndObject();
+        } else if (value instanceof Collection) {
+            generator.writeStartArray();
+            for (final Object item : (Collection<?>) value) {
+                writeValue(generator, item);
+            }
+            generator.writeEndArray();
+        } else {
+            generator.writeString(value.toString());
+        }
+    }
+}
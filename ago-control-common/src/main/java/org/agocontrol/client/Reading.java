@@ -0,0 +1,105 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.vaadin.addons.sitekit.model.Company;
+
+import java.util.Date;
+
+/**
+ * Sensor reading decoded from bus event.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class Reading {
+    /** The owning company. */
+    private final Company owner;
+    /** The element ID. */
+    private final String elementId;
+    /** The event subject used as record set name. */
+    private final String name;
+    /** The unit. */
+    private final String unit;
+    /** The value. */
+    private final String value;
+    /** The created time stamp. */
+    private final Date created;
+
+    /**
+     * @param owner the owning company
+     * @param elementId the element ID
+     * @param name the event subject used as record set name
+     * @param unit the unit
+     * @param value the value
+     * @param created the created time stamp
+     */
+    public Reading(final Company owner, final String elementId, final String name, final String unit,
+                   final String value, final Date created) {
+        this.owner = owner;
+        this.elementId = elementId;
+        this.name = name;
+        this.unit = unit;
+        this.value = value;
+        this.created = created;
+    }
+
+    /**
+     * @return the owning company
+     */
+    public Company getOwner() {
+        return owner;
+    }
+
+    /**
+     * @return the element ID
+     */
+    public String getElementId() {
+        return elementId;
+    }
+
+    /**
+     * @return the event subject used as record set name
+     */
+    public String getName() {
+        return name;
+    }
+
+    /**
+     * @return the unit
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @return the value
+     */
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * @return the created time stamp
+     */
+    public Date getCreated() {
+        return created;
+    }
+
+    @Override
+    public String toString() {
+        return name + " " + elementId + "=" + value + " " + unit;
+    }
+}
@@ -0,0 +1,199 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.dao.ElementDao;
+import org.agocontrol.dao.RecordDao;
+import org.agocontrol.dao.RecordSetCache;
+import org.agocontrol.dao.RecordSetDao;
+import org.agocontrol.model.Element;
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordType;
+import org.apache.log4j.Logger;
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Group commit writer which converts readings to records.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordBatchWriter extends BatchWriter<Reading> {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(RecordBatchWriter.class);
+
+    /**
+     * Constructor which opens the journal and starts the writer thread.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param name the name of the writer used in logging
+     * @param batchSize the maximum number of readings in batch
+     * @param maxLingerMillis the maximum time in milliseconds first reading of batch waits for batch to fill
+     * @param queueCapacity the maximum number of readings buffered in memory before spilling to journal
+     * @param journalDirectory the journal directory
+     * @param journalSegmentSize the journal segment file size in bytes
+     * @throws IOException if journal can not be opened.
+     */
+    public RecordBatchWriter(final EntityManagerFactory entityManagerFactory, final String name,
+                             final int batchSize, final long maxLingerMillis, final int queueCapacity,
+                             final File journalDirectory, final int journalSegmentSize) throws IOException {
+        super(entityManagerFactory, name, batchSize, maxLingerMillis, queueCapacity, journalDirectory,
+                journalSegmentSize);
+    }
+
+    @Override
+    protected final void saveBatch(final EntityManager entityManager, final List<Reading> batch) {
+        final Map<String, RecordSet> newRecordSets = new HashMap<String, RecordSet>();
+        final List<Record> records = new ArrayList<Record>(batch.size());
+        for (final Reading reading : batch) {
+            try {
+                final Record record = createRecord(entityManager, reading, newRecordSets);
+                if (record != null) {
+                    records.add(record);
+                }
+            } catch (final Exception e) {
+                LOGGER.debug("Error converting reading to record: " + reading, e);
+            }
+        }
+        if (records.size() > 0) {
+            RecordDao.saveRecords(entityManager, new ArrayList<RecordSet>(newRecordSets.values()), records);
+            RecordSetCache.putRecordSets(newRecordSets.values());
+        }
+    }
+
+    @Override
+    protected final byte[] serialize(final Reading reading) throws IOException {
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final DataOutputStream output = new DataOutputStream(bytes);
+        output.writeUTF(reading.getOwner().getCompanyId());
+        output.writeUTF(reading.getElementId());
+        output.writeUTF(reading.getName());
+        output.writeBoolean(reading.getUnit() != null);
+        output.writeUTF(reading.getUnit() != null ? reading.getUnit() : "");
+        output.writeUTF(reading.getValue());
+        output.writeLong(reading.getCreated().getTime());
+        output.close();
+        return bytes.toByteArray();
+    }
+
+    @Override
+    protected final Reading deserialize(final EntityManager entityManager, final byte[] data) throws IOException {
+        final DataInputStream input = new DataInputStream(new ByteArrayInputStream(data));
+        final Company owner = entityManager.getReference(Company.class, input.readUTF());
+        final String elementId = input.readUTF();
+        final String name = input.readUTF();
+        final boolean hasUnit = input.readBoolean();
+        final String unit = input.readUTF();
+        final String value = input.readUTF();
+        final Date created = new Date(input.readLong());
+        return new Reading(owner, elementId, name, hasUnit ? unit : null, value, created);
+    }
+
+    /**
+     * Creates record from reading. Record set is resolved through record set cache and created if this
+     * is the first reading of the element with this name. New record sets are not persisted but added
+     * to given map so that caller can persist them in the same transaction with the records and add them
+     * to record set cache after commit.
+     *
+     * @param entityManager the entity manager
+     * @param reading the reading
+     * @param newRecordSets the record sets created in this transaction by cache key
+     * @return the record or null if reading does not refer to element of the owning company or has no value.
+     */
+    public static Record createRecord(final EntityManager entityManager, final Reading reading,
+                                      final Map<String, RecordSet> newRecordSets) {
+        final String valueString = reading.getValue();
+        if (reading.getElementId() == null || valueString == null || valueString.length() == 0) {
+            return null;
+        }
+        final Double value = new Double(valueString);
+
+        final String elementId = reading.getElementId();
+        final String name = reading.getName();
+        final String key = RecordSetCache.getKey(elementId, name);
+        RecordSet recordSet = newRecordSets.get(key);
+        if (recordSet == null) {
+            recordSet = RecordSetCache.getRecordSet(entityManager, elementId, name);
+        }
+
+        if (recordSet == null) {
+            final String companyId = reading.getOwner().getCompanyId();
+            if (RecordSetCache.isUnknownElement(elementId)
+                    || RecordSetCache.isForeignElement(elementId, companyId)) {
+                return null;
+            }
+            // Generation is taken before lookup so that results are not cached if element is saved meanwhile.
+            final long generation = RecordSetCache.getGeneration();
+            final Element element = ElementDao.getElement(entityManager, elementId);
+            if (element == null) {
+                RecordSetCache.putUnknownElement(elementId, generation);
+                return null;
+            }
+            if (!element.getOwner().equals(reading.getOwner())) {
+                RecordSetCache.putForeignElement(elementId, companyId, generation);
+                return null;
+            }
+            recordSet = RecordSetDao.getRecordSet(entityManager, element, name);
+            if (recordSet != null) {
+                RecordSetCache.putRecordSets(Collections.singletonList(recordSet));
+            } else {
+                RecordType recordType = RecordType.OTHER;
+                if (name.toLowerCase().contains("humidity")) {
+                    recordType = RecordType.HUMIDITY;
+                } else if (name.toLowerCase().contains("brightness")) {
+                    recordType = RecordType.BRIGHTNESS;
+                } else if (name.toLowerCase().contains("temperature")) {
+                    recordType = RecordType.TEMPERATURE;
+                }
+                recordSet = new RecordSet(
+                        reading.getOwner(),
+                        element,
+                        name,
+                        recordType,
+                        reading.getUnit(),
+                        reading.getCreated()
+                );
+                newRecordSets.put(key, recordSet);
+            }
+        }
+
+        if (!recordSet.getOwner().equals(reading.getOwner())) {
+            return null;
+        }
+
+        return new Record(
+                reading.getOwner(),
+                recordSet,
+                value,
+                reading.getCreated()
+        );
+    }
+}
@@ -0,0 +1,95 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.dao.RecordDao;
+import org.apache.log4j.Logger;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+
+/**
+ * Maintains monthly partitions of partitioned record table. Creates upcoming partitions and
+ * drops partitions older than retention period once a day.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordPartitionMaintainer {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(RecordPartitionMaintainer.class);
+    /** The maintenance interval. */
+    private static final long MAINTENANCE_INTERVAL_MILLIS = 24L * 60 * 60 * 1000;
+    /** The retry interval after failed maintenance. */
+    private static final long RETRY_INTERVAL_MILLIS = 60L * 60 * 1000;
+    /**
+     * Set true to shutdown thread.
+     */
+    private volatile boolean closeRequested = false;
+    /**
+     * The maintenance thread.
+     */
+    private final Thread maintenanceThread;
+
+    /**
+     * Constructor which starts the maintenance thread.
+     *
+     * @param entityManagerFactory the entityManagerFactory
+     * @param monthsAhead the number of upcoming months partitions are created for
+     * @param retentionMonths the number of months records are retained or 0 to retain records forever
+     */
+    public RecordPartitionMaintainer(final EntityManagerFactory entityManagerFactory, final int monthsAhead,
+                                     final int retentionMonths) {
+        maintenanceThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                final EntityManager entityManager = entityManagerFactory.createEntityManager();
+                while (!closeRequested) {
+                    long sleepMillis = MAINTENANCE_INTERVAL_MILLIS;
+                    try {
+                        final int createdCount = RecordDao.createRecordPartitions(entityManager, monthsAhead);
+                        int droppedCount = 0;
+                        if (retentionMonths > 0) {
+                            droppedCount = RecordDao.dropRecordPartitions(entityManager, retentionMonths);
+                        }
+                        LOGGER.info("Record partition maintenance created " + createdCount
+                                + " and dropped " + droppedCount + " partitions.");
+                    } catch (final Throwable t) {
+                        LOGGER.error("Error in record partition maintenance.", t);
+                        sleepMillis = RETRY_INTERVAL_MILLIS;
+                    }
+                    try {
+                        Thread.sleep(sleepMillis);
+                    } catch (final InterruptedException e) {
+                        LOGGER.debug("Record partition maintenance sleep interrupted.");
+                    }
+                }
+                entityManager.close();
+            }
+        });
+        maintenanceThread.start();
+    }
+
+    /**
+     * Closes maintainer.
+     *
+     * @throws Exception if exception occurs.
+     */
+    public final void close() throws Exception {
+        closeRequested = true;
+        maintenanceThread.interrupt();
+        maintenanceThread.join();
+    }
+}
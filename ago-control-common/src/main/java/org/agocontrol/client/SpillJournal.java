@@ -0,0 +1,439 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.apache.log4j.Logger;
+
+import java.io.File;
+import java.io.FileFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * Append only journal of memory mapped segment files. Entries are read in append order and
+ * read position is persisted only when acknowledged so that entries read but not acknowledged
+ * before process exit are replayed on next open.
+ *
+ * Segment layout: int read position, int write position, entries of int length and bytes.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class SpillJournal {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(SpillJournal.class);
+    /** The segment header length in bytes. */
+    private static final int HEADER_LENGTH = 8;
+    /** The segment file suffix. */
+    private static final String SEGMENT_SUFFIX = ".journal";
+    /**
+     * The journal directory.
+     */
+    private final File directory;
+    /**
+     * The segment size in bytes.
+     */
+    private final int segmentSize;
+    /**
+     * The lock file.
+     */
+    private final RandomAccessFile lockFile;
+    /**
+     * The lock preventing concurrent use of the journal directory.
+     */
+    private final FileLock lock;
+    /**
+     * The segments in append order.
+     */
+    private final LinkedList<Segment> segments = new LinkedList<Segment>();
+    /**
+     * The segment being read.
+     */
+    private int readSegmentIndex = 0;
+    /**
+     * The read position in the segment being read.
+     */
+    private int readPosition;
+    /**
+     * The number of entries not yet read.
+     */
+    private long entryCount = 0;
+    /**
+     * The number of bytes of entries not yet read.
+     */
+    private long byteCount = 0;
+    /**
+     * The next segment sequence number.
+     */
+    private long nextSequence = 0;
+
+    /**
+     * Opens journal in given directory and recovers entries not acknowledged earlier.
+     *
+     * @param directory the journal directory
+     * @param segmentSize the segment size in bytes
+     * @throws IOException if journal can not be opened or is in use.
+     */
+    public SpillJournal(final File directory, final int segmentSize) throws IOException {
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+
+        if (!directory.exists() && !directory.mkdirs()) {
+            throw new IOException("Failed to create journal directory: " + directory.getAbsolutePath());
+        }
+        lockFile = new RandomAccessFile(new File(directory, "lock"), "rw");
+        lock = lockFile.getChannel().tryLock();
+        if (lock == null) {
+            lockFile.close();
+            throw new IOException("Journal is in use: " + directory.getAbsolutePath());
+        }
+
+        final File[] files = directory.listFiles(new FileFilter() {
+            @Override
+            public boolean accept(final File file) {
+                return file.getName().endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        Arrays.sort(files, new Comparator<File>() {
+            @Override
+            public int compare(final File o1, final File o2) {
+                final long sequence1 = getSequence(o1);
+                final long sequence2 = getSequence(o2);
+                return sequence1 < sequence2 ? -1 : (sequence1 == sequence2 ? 0 : 1);
+            }
+        });
+        for (final File file : files) {
+            final Segment segment = new Segment(file, file.length() > 0 ? (int) file.length() : segmentSize);
+            segments.add(segment);
+            for (int position = segment.getReadPosition(); position < segment.getWritePosition(); ) {
+                final int length = segment.buffer.getInt(position);
+                position += 4 + length;
+                entryCount++;
+                byteCount += length;
+            }
+            nextSequence = Math.max(nextSequence, getSequence(file) + 1);
+        }
+        if (segments.size() > 0) {
+            readPosition = segments.getFirst().getReadPosition();
+        }
+        if (entryCount > 0) {
+            LOGGER.info("Recovered " + entryCount + " entries from journal: " + directory.getAbsolutePath());
+        }
+    }
+
+    /**
+     * Appends entry to journal.
+     *
+     * @param data the entry
+     * @throws IOException if entry does not fit to segment or segment can not be created.
+     */
+    public synchronized void append(final byte[] data) throws IOException {
+        checkEntryLength(data);
+        Segment segment = segments.size() > 0 ? segments.getLast() : null;
+        if (segment == null || segment.getWritePosition() + 4 + data.length > segment.size) {
+            segment = createSegment(nextSequence++);
+            segments.add(segment);
+            if (segments.size() == 1) {
+                readSegmentIndex = 0;
+                readPosition = segment.getReadPosition();
+            }
+        }
+        write(segment, data);
+    }
+
+    /**
+     * Inserts entries ahead of the unread entries so that they are read first. Entries are written
+     * to new segments preceding the existing ones.
+     *
+     * @param entries the entries in read order
+     * @throws IOException if entry does not fit to segment or segment can not be created.
+     * @throws IllegalStateException if journal has read entries which have not been acknowledged.
+     */
+    public synchronized void prepend(final List<byte[]> entries) throws IOException {
+        if (entries.isEmpty()) {
+            return;
+        }
+        if (readSegmentIndex > 0 || (segments.size() > 0 && readPosition != segments.getFirst().getReadPosition())) {
+            throw new IllegalStateException("Journal has read entries which have not been acknowledged: "
+                    + directory.getAbsolutePath());
+        }
+
+        int segmentCount = 0;
+        int position = segmentSize;
+        for (final byte[] data : entries) {
+            checkEntryLength(data);
+            if (position + 4 + data.length > segmentSize) {
+                segmentCount++;
+                position = HEADER_LENGTH;
+            }
+            position += 4 + data.length;
+        }
+
+        long sequence;
+        if (segments.size() > 0) {
+            sequence = getSequence(segments.getFirst().file) - segmentCount;
+        } else {
+            sequence = nextSequence;
+            nextSequence += segmentCount;
+        }
+        final List<Segment> prependedSegments = new ArrayList<Segment>(segmentCount);
+        Segment segment = null;
+        for (final byte[] data : entries) {
+            if (segment == null || segment.getWritePosition() + 4 + data.length > segment.size) {
+                segment = createSegment(sequence++);
+                prependedSegments.add(segment);
+            }
+            write(segment, data);
+        }
+        segments.addAll(0, prependedSegments);
+        readSegmentIndex = 0;
+        readPosition = HEADER_LENGTH;
+    }
+
+    /**
+     * Reads next entry. Read entries are removed from journal when acknowledged.
+     *
+     * @return the entry or null if journal has no unread entries
+     */
+    public synchronized byte[] read() {
+        while (readSegmentIndex < segments.size()) {
+            final Segment segment = segments.get(readSegmentIndex);
+            if (readPosition < segment.getWritePosition()) {
+                final int length = segment.buffer.getInt(readPosition);
+                final byte[] data = new byte[length];
+                final ByteBuffer view = segment.buffer.duplicate();
+                view.position(readPosition + 4);
+                view.get(data);
+                readPosition += 4 + length;
+                entryCount--;
+                byteCount -= length;
+                return data;
+            }
+            if (readSegmentIndex == segments.size() - 1) {
+                return null;
+            }
+            readSegmentIndex++;
+            // Segment which was first before prepend may have acknowledged entries.
+            readPosition = segments.get(readSegmentIndex).getReadPosition();
+        }
+        return null;
+    }
+
+    /**
+     * Persists read position and deletes fully read segments.
+     */
+    public synchronized void acknowledge() {
+        while (readSegmentIndex > 0) {
+            final Segment segment = segments.removeFirst();
+            segment.delete();
+            readSegmentIndex--;
+        }
+        if (segments.size() > 0) {
+            final Segment segment = segments.getFirst();
+            segment.setReadPosition(readPosition);
+            if (segments.size() > 1 && readPosition == segment.getWritePosition()) {
+                segments.removeFirst();
+                segment.delete();
+                readPosition = segments.getFirst().getReadPosition();
+            }
+        }
+    }
+
+    /**
+     * @return true if journal has no unread entries
+     */
+    public synchronized boolean isEmpty() {
+        return entryCount == 0;
+    }
+
+    /**
+     * @return the number of unread entries
+     */
+    public synchronized long getEntryCount() {
+        return entryCount;
+    }
+
+    /**
+     * @return the number of bytes in unread entries
+     */
+    public synchronized long getByteCount() {
+        return byteCount;
+    }
+
+    /**
+     * @return the number of segment files
+     */
+    public synchronized int getSegmentCount() {
+        return segments.size();
+    }
+
+    /**
+     * Flushes segments to disk and releases the journal directory.
+     *
+     * @throws IOException if exception occurs in closing files.
+     */
+    public synchronized void close() throws IOException {
+        final List<Segment> segmentsToClose = new ArrayList<Segment>(segments);
+        for (final Segment segment : segmentsToClose) {
+            segment.close();
+        }
+        lock.release();
+        lockFile.close();
+    }
+
+    /**
+     * Checks that entry fits to segment.
+     *
+     * @param data the entry
+     * @throws IOException if entry does not fit to segment.
+     */
+    private void checkEntryLength(final byte[] data) throws IOException {
+        if (data.length + 4 > segmentSize - HEADER_LENGTH) {
+            throw new IOException("Journal entry too large: " + data.length + " bytes.");
+        }
+    }
+
+    /**
+     * Creates new segment file.
+     *
+     * @param sequence the segment sequence number
+     * @return the segment
+     * @throws IOException if segment can not be created.
+     */
+    private Segment createSegment(final long sequence) throws IOException {
+        return new Segment(new File(directory, String.format("%019d", sequence) + SEGMENT_SUFFIX), segmentSize);
+    }
+
+    /**
+     * Writes entry to the end of segment. Caller has checked that entry fits to segment.
+     *
+     * @param segment the segment
+     * @param data the entry
+     */
+    private void write(final Segment segment, final byte[] data) {
+        final int position = segment.getWritePosition();
+        segment.buffer.putInt(position, data.length);
+        final ByteBuffer view = segment.buffer.duplicate();
+        view.position(position + 4);
+        view.put(data);
+        segment.setWritePosition(position + 4 + data.length);
+        entryCount++;
+        byteCount += data.length;
+    }
+
+    /**
+     * Parses segment sequence number from file name. Prepended segments may have negative sequence numbers.
+     *
+     * @param file the segment file
+     * @return the sequence number
+     */
+    private static long getSequence(final File file) {
+        return Long.parseLong(file.getName().substring(0, file.getName().length() - SEGMENT_SUFFIX.length()));
+    }
+
+    /**
+     * Memory mapped segment file.
+     */
+    private static final class Segment {
+        /** The segment file. */
+        private final File file;
+        /** The segment size in bytes. */
+        private final int size;
+        /** The random access file. */
+        private final RandomAccessFile randomAccessFile;
+        /** The mapped buffer. */
+        private final MappedByteBuffer buffer;
+
+        /**
+         * Opens or creates segment.
+         *
+         * @param file the segment file
+         * @param size the segment size in bytes
+         * @throws IOException if segment can not be mapped.
+         */
+        private Segment(final File file, final int size) throws IOException {
+            this.file = file;
+            this.size = size;
+            final boolean created = !file.exists();
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            buffer = randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, size);
+            if (created || getReadPosition() < HEADER_LENGTH) {
+                setReadPosition(HEADER_LENGTH);
+                setWritePosition(HEADER_LENGTH);
+            }
+        }
+
+        /**
+         * @return the persisted read position
+         */
+        private int getReadPosition() {
+            return buffer.getInt(0);
+        }
+
+        /**
+         * @param position the read position to persist
+         */
+        private void setReadPosition(final int position) {
+            buffer.putInt(0, position);
+        }
+
+        /**
+         * @return the write position
+         */
+        private int getWritePosition() {
+            return buffer.getInt(4);
+        }
+
+        /**
+         * @param position the write position
+         */
+        private void setWritePosition(final int position) {
+            buffer.putInt(4, position);
+        }
+
+        /**
+         * Flushes and closes segment.
+         *
+         * @throws IOException if exception occurs in closing file.
+         */
+        private void close() throws IOException {
+            buffer.force();
+            randomAccessFile.close();
+        }
+
+        /**
+         * Closes and deletes segment.
+         */
+        private void delete() {
+            try {
+                randomAccessFile.close();
+            } catch (final IOException e) {
+                LOGGER.warn("Error closing journal segment: " + file.getAbsolutePath(), e);
+            }
+            if (!file.delete()) {
+                LOGGER.warn("Failed to delete journal segment: " + file.getAbsolutePath());
+            }
+        }
+    }
+}
@@ -51,6 +51,7 @@ public final class ElementDao {
                 entityManager.persist(element);
             }
             transaction.commit();
+            RecordSetCache.invalidate();
         } catch (final Exception e) {
             LOG.error("Error in add element.", e);
             if (transaction.isActive()) {
@@ -71,6 +72,7 @@ public final class ElementDao {
         try {
             entityManager.remove(element);
             transaction.commit();
+            RecordSetCache.invalidate();
         } catch (final Exception e) {
             LOG.error("Error in remove element.", e);
             if (transaction.isActive()) {
@@ -16,6 +16,10 @@
 package org.agocontrol.dao;
 
 import org.agocontrol.model.Event;
+import org.agocontrol.model.EventWatermark;
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordSetLatest;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.model.Company;
 
@@ -59,6 +63,86 @@ public final class EventDao {
         }
     }
 
+    /**
+     * Saves new record sets and records converted from events and marks the events processed
+     * in single transaction.
+     * @param entityManager the entity manager
+     * @param recordSets the new record sets
+     * @param records the records
+     * @param processedEventIds the IDs of events processed successfully
+     * @param failedEventIds the IDs of events which failed processing
+     * @param processed the processing time
+     */
+    public static void saveProcessedEvents(final EntityManager entityManager, final List<RecordSet> recordSets,
+                                           final List<Record> records, final List<String> processedEventIds,
+                                           final List<String> failedEventIds, final Date processed) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            for (final RecordSet recordSet : recordSets) {
+                recordSet.setModified(processed);
+                entityManager.persist(recordSet);
+            }
+            for (final Record record : records) {
+                record.setModified(processed);
+                entityManager.persist(record);
+            }
+            RecordRollupDao.addRecords(entityManager, records);
+            final List<RecordSetLatest> latests = RecordSetLatestDao.addRecords(entityManager, records);
+            markProcessed(entityManager, processedEventIds, false, processed);
+            markProcessed(entityManager, failedEventIds, true, processed);
+            transaction.commit();
+            RecordSetLatestDao.cacheRecordSetLatests(latests);
+        } catch (final Exception e) {
+            LOG.error("Error in save processed events.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Marks events processed. Has to be called inside transaction.
+     * @param entityManager the entity manager
+     * @param eventIds the event IDs
+     * @param processingError true if processing failed
+     * @param processed the processing time
+     */
+    private static void markProcessed(final EntityManager entityManager, final List<String> eventIds,
+                                      final boolean processingError, final Date processed) {
+        if (eventIds.size() == 0) {
+            return;
+        }
+        entityManager.createQuery("update Event as e set e.processed=:processed, e.modified=:processed," +
+                " e.processingError=:processingError where e.eventId in :eventIds")
+                .setParameter("processed", processed)
+                .setParameter("processingError", processingError)
+                .setParameter("eventIds", eventIds)
+                .executeUpdate();
+    }
+
+    /**
+     * Saves event processing watermark to database.
+     * @param entityManager the entity manager
+     * @param watermark the watermark
+     */
+    public static void saveEventWatermark(final EntityManager entityManager, final EventWatermark watermark) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            watermark.setModified(new Date());
+            entityManager.persist(watermark);
+            transaction.commit();
+        } catch (final Exception e) {
+            LOG.error("Error in save event watermark.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Removes event from database.
      * @param entityManager the entity manager
@@ -102,19 +186,50 @@ public final class EventDao {
     }
 
     /**
-     * Gets given event.
+     * Gets page of unprocessed events after given (created, eventId) key in key order.
      * @param entityManager the entity manager.
      * @param owner the owning company
+     * @param afterCreated the created time of the key
+     * @param afterEventId the event ID of the key
+     * @param until the time before which events are to be included
+     * @param maxResults the maximum number of events to return
      * @return list of events.
      */
-    public static List<Event> getUnprocessedEvents(final EntityManager entityManager, final Company owner) {
+    public static List<Event> getUnprocessedEvents(final EntityManager entityManager, final Company owner,
+                                                   final Date afterCreated, final String afterEventId,
+                                                   final Date until, final int maxResults) {
         final TypedQuery<Event> query = entityManager.createQuery("select e from Event as e where e.owner=:owner" +
-                " and e.processed is null order by e.created",
+                " and (e.created>:afterCreated or (e.created=:afterCreated and e.eventId>:afterEventId))" +
+                " and e.created<:until and e.processed is null order by e.created, e.eventId",
                 Event.class);
         query.setParameter("owner", owner);
+        query.setParameter("afterCreated", afterCreated);
+        query.setParameter("afterEventId", afterEventId);
+        query.setParameter("until", until);
+        query.setMaxResults(maxResults);
         return query.getResultList();
     }
 
+    /**
+     * Gets event processing watermark of given company.
+     * @param entityManager the entity manager.
+     * @param owner the owning company
+     * @return the watermark or null if events of the company have not been processed yet.
+     */
+    public static EventWatermark getEventWatermark(final EntityManager entityManager, final Company owner) {
+        final TypedQuery<EventWatermark> query = entityManager.createQuery(
+                "select e from EventWatermark as e where e.owner=:owner", EventWatermark.class);
+        query.setParameter("owner", owner);
+        final List<EventWatermark> watermarks = query.getResultList();
+        if (watermarks.size() == 1) {
+            return watermarks.get(0);
+        } else if (watermarks.size() == 0) {
+            return null;
+        } else {
+            throw new RuntimeException("Multiple event watermarks with same owner company in database. Constraint is missing.");
+        }
+    }
+
     /**
      * Gets given event.
      * @param entityManager the entity manager.
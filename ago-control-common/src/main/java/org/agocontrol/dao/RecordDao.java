@@ -16,7 +16,10 @@
 package org.agocontrol.dao;
 
 import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordResolution;
+import org.agocontrol.model.RecordSeries;
 import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordSetLatest;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.model.Company;
 
@@ -24,8 +27,12 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 /**
  * Data access object for Record.
@@ -35,6 +42,8 @@ public final class RecordDao {
 
     /** The logger. */
     private static final Logger LOG = Logger.getLogger(RecordDao.class);
+    /** The maximum number of rollup periods per record set summed in counting records of time range. */
+    private static final int COUNT_ROLLUP_PERIODS = 1000;
 
     /**
      * Saves records to database.
@@ -49,7 +58,10 @@ public final class RecordDao {
                 record.setModified(new Date());
                 entityManager.persist(record);
             }
+            RecordRollupDao.addRecords(entityManager, records);
+            final List<RecordSetLatest> latests = RecordSetLatestDao.addRecords(entityManager, records);
             transaction.commit();
+            RecordSetLatestDao.cacheRecordSetLatests(latests);
         } catch (final Exception e) {
             LOG.error("Error in add record.", e);
             if (transaction.isActive()) {
@@ -59,6 +71,86 @@ public final class RecordDao {
         }
     }
 
+    /**
+     * Saves new record sets and records to database in single transaction.
+     * @param entityManager the entity manager
+     * @param recordSets the new record sets
+     * @param records the records
+     */
+    public static void saveRecords(final EntityManager entityManager, final List<RecordSet> recordSets,
+                                   final List<Record> records) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            final Date modified = new Date();
+            for (final RecordSet recordSet : recordSets) {
+                recordSet.setModified(modified);
+                entityManager.persist(recordSet);
+            }
+            for (final Record record : records) {
+                record.setModified(modified);
+                entityManager.persist(record);
+            }
+            RecordRollupDao.addRecords(entityManager, records);
+            final List<RecordSetLatest> latests = RecordSetLatestDao.addRecords(entityManager, records);
+            transaction.commit();
+            RecordSetLatestDao.cacheRecordSetLatests(latests);
+        } catch (final Exception e) {
+            LOG.error("Error in add record.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * Creates record table partitions for current month and given number of upcoming months.
+     * Requires record table to be partitioned with database/optional/record-partitioning.sql.
+     * @param entityManager the entity manager
+     * @param monthsAhead the number of upcoming months
+     * @return number of created partitions
+     */
+    public static int createRecordPartitions(final EntityManager entityManager, final int monthsAhead) {
+        return executePartitionFunction(entityManager, "select record_create_partitions(?1)", monthsAhead);
+    }
+
+    /**
+     * Drops record table partitions of months which ended more than given number of months ago.
+     * Requires record table to be partitioned with database/optional/record-partitioning.sql.
+     * @param entityManager the entity manager
+     * @param retentionMonths the number of months records are retained
+     * @return number of dropped partitions
+     */
+    public static int dropRecordPartitions(final EntityManager entityManager, final int retentionMonths) {
+        return executePartitionFunction(entityManager, "select record_drop_partitions(?1)", retentionMonths);
+    }
+
+    /**
+     * Executes record partition maintenance function.
+     * @param entityManager the entity manager
+     * @param sql the function call SQL
+     * @param months the month count parameter
+     * @return the function result
+     */
+    private static int executePartitionFunction(final EntityManager entityManager, final String sql,
+                                                final int months) {
+        final EntityTransaction transaction = entityManager.getTransaction();
+        transaction.begin();
+        try {
+            final Number result = (Number) entityManager.createNativeQuery(sql).setParameter(1, months)
+                    .getSingleResult();
+            transaction.commit();
+            return result.intValue();
+        } catch (final Exception e) {
+            LOG.error("Error in record partition maintenance.", e);
+            if (transaction.isActive()) {
+                transaction.rollback();
+            }
+            throw new RuntimeException(e);
+        }
+    }
+
     /**
      * Removes record from database.
      * @param entityManager the entity manager
@@ -176,5 +268,116 @@ public final class RecordDao {
         }
     }
 
+    /**
+     * Gets series of record set in time range at the finest resolution which fits in given number
+     * of points.
+     * @param entityManager the entity manager.
+     * @param recordSet the record set
+     * @param since the time since which records are to be included
+     * @param until the time until which records are to be included
+     * @param maxPoints the maximum number of points
+     * @return the series in time order.
+     * @see #getRecordSeries(EntityManager, List, Date, Date, int)
+     */
+    public static RecordSeries getRecordSeries(final EntityManager entityManager, final RecordSet recordSet,
+                                               final Date since, final Date until, final int maxPoints) {
+        return getRecordSeries(entityManager, Collections.singletonList(recordSet), since, until, maxPoints)
+                .get(recordSet.getRecordSetId());
+    }
+
+    /**
+     * Gets series of record sets in time range with set based queries. Number of queries does not
+     * depend on the number of record sets: records are counted per record set from rollups with one
+     * query so that raw records are not scanned, raw record values of record sets which fit in given
+     * number of points are loaded with one query and average values of the finest rollup resolution
+     * with at most given number of periods in the range are loaded for the rest with one query. Only
+     * time stamps and values are selected so that no entities are materialized.
+     * @param entityManager the entity manager.
+     * @param recordSets the record sets
+     * @param since the time since which records are to be included
+     * @param until the time until which records are to be included
+     * @param maxPoints the maximum number of points per record set
+     * @return the series in time order by record set ID for each of the record sets.
+     */
+    public static Map<String, RecordSeries> getRecordSeries(final EntityManager entityManager,
+                                                            final List<RecordSet> recordSets,
+                                                            final Date since, final Date until,
+                                                            final int maxPoints) {
+        final Map<String, RecordSeries> seriesMap = new HashMap<String, RecordSeries>();
+        if (recordSets.size() == 0) {
+            return seriesMap;
+        }
 
+        final Map<String, Long> counts = RecordRollupDao.countRecords(entityManager, recordSets, since, until,
+                COUNT_ROLLUP_PERIODS);
+
+        final List<RecordSet> rawRecordSets = new ArrayList<RecordSet>();
+        final List<RecordSet> rollupRecordSets = new ArrayList<RecordSet>();
+        for (final RecordSet recordSet : recordSets) {
+            final Long count = counts.get(recordSet.getRecordSetId());
+            if (count == null) {
+                continue;
+            }
+            if (count > maxPoints) {
+                rollupRecordSets.add(recordSet);
+            } else {
+                rawRecordSets.add(recordSet);
+            }
+        }
+
+        if (rawRecordSets.size() > 0) {
+            final TypedQuery<Object[]> query = entityManager.createQuery(
+                    "select e.recordSet.recordSetId, e.created, e.value from Record as e" +
+                    " where e.recordSet in :recordSets and e.created>=:since and e.created<:until" +
+                    " order by e.recordSet.recordSetId, e.created",
+                    Object[].class);
+            query.setParameter("recordSets", rawRecordSets);
+            query.setParameter("since", since);
+            query.setParameter("until", until);
+            seriesMap.putAll(groupRecordSeries(query.getResultList()));
+        }
+        if (rollupRecordSets.size() > 0) {
+            seriesMap.putAll(RecordRollupDao.getRecordSeries(entityManager, rollupRecordSets,
+                    RecordResolution.getRollupResolution(since, until, maxPoints), since, until));
+        }
+
+        for (final RecordSet recordSet : recordSets) {
+            if (!seriesMap.containsKey(recordSet.getRecordSetId())) {
+                seriesMap.put(recordSet.getRecordSetId(), new RecordSeries(new long[0], new double[0]));
+            }
+        }
+        return seriesMap;
+    }
+
+    /**
+     * Groups projection rows to series by record set ID. Rows have to be ordered by record set ID and
+     * time and contain record set ID, time and value. If row contains fourth column the value is
+     * divided by it to get average value.
+     * @param rows the rows
+     * @return the series by record set ID
+     */
+    static Map<String, RecordSeries> groupRecordSeries(final List<Object[]> rows) {
+        final Map<String, RecordSeries> seriesMap = new HashMap<String, RecordSeries>();
+        int start = 0;
+        while (start < rows.size()) {
+            final String recordSetId = (String) rows.get(start)[0];
+            int end = start + 1;
+            while (end < rows.size() && recordSetId.equals(rows.get(end)[0])) {
+                end++;
+            }
+            final long[] times = new long[end - start];
+            final double[] values = new double[end - start];
+            for (int i = 0; i < times.length; i++) {
+                final Object[] row = rows.get(start + i);
+                times[i] = ((Date) row[1]).getTime();
+                values[i] = ((Number) row[2]).doubleValue();
+                if (row.length > 3) {
+                    values[i] = values[i] / Math.max(1L, ((Number) row[3]).longValue());
+                }
+            }
+            seriesMap.put(recordSetId, new RecordSeries(times, values));
+            start = end;
+        }
+        return seriesMap;
+    }
 }
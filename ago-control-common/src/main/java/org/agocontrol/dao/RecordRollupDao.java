@@ -0,0 +1,160 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordResolution;
+import org.agocontrol.model.RecordRollup;
+import org.agocontrol.model.RecordSeries;
+import org.agocontrol.model.RecordSet;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Data access object for RecordRollup.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class RecordRollupDao {
+
+    /**
+     * Adds records to minute, hour and day rollups of their record sets. Has to be called inside
+     * the transaction persisting the records.
+     * @param entityManager the entity manager
+     * @param records the records
+     */
+    public static void addRecords(final EntityManager entityManager, final List<Record> records) {
+        final Map<RecordSet, List<Record>> recordSetRecords = new LinkedHashMap<RecordSet, List<Record>>();
+        for (final Record record : records) {
+            if (!recordSetRecords.containsKey(record.getRecordSet())) {
+                recordSetRecords.put(record.getRecordSet(), new ArrayList<Record>());
+            }
+            recordSetRecords.get(record.getRecordSet()).add(record);
+        }
+
+        final Date modified = new Date();
+        for (final RecordSet recordSet : recordSetRecords.keySet()) {
+            final List<Record> setRecords = recordSetRecords.get(recordSet);
+            final Set<Date> periodStarts = new HashSet<Date>();
+            for (final Record record : setRecords) {
+                for (final RecordResolution resolution : RecordResolution.ROLLUP_RESOLUTIONS) {
+                    periodStarts.add(resolution.getPeriodStart(record.getCreated()));
+                }
+            }
+
+            final TypedQuery<RecordRollup> query = entityManager.createQuery(
+                    "select e from RecordRollup as e where e.recordSet=:recordSet and e.periodStart in :periodStarts",
+                    RecordRollup.class);
+            query.setParameter("recordSet", recordSet);
+            query.setParameter("periodStarts", new ArrayList<Date>(periodStarts));
+            final Map<String, RecordRollup> rollups = new HashMap<String, RecordRollup>();
+            for (final RecordRollup rollup : query.getResultList()) {
+                rollups.put(getKey(rollup.getResolution(), rollup.getPeriodStart()), rollup);
+            }
+
+            for (final Record record : setRecords) {
+                for (final RecordResolution resolution : RecordResolution.ROLLUP_RESOLUTIONS) {
+                    final Date periodStart = resolution.getPeriodStart(record.getCreated());
+                    final String key = getKey(resolution, periodStart);
+                    RecordRollup rollup = rollups.get(key);
+                    if (rollup == null) {
+                        rollup = new RecordRollup(record.getOwner(), recordSet, resolution, periodStart);
+                        rollups.put(key, rollup);
+                        entityManager.persist(rollup);
+                    }
+                    rollup.addValue(record.getValue(), record.getCreated());
+                    rollup.setModified(modified);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counts records of record sets in time range from rollups with single query. Rollups of the finest
+     * resolution with at most given number of periods in the range are summed so that the count
+     * includes whole periods at the range boundaries.
+     * @param entityManager the entity manager.
+     * @param recordSets the record sets
+     * @param since the time since which records are to be counted
+     * @param until the time until which records are to be counted
+     * @param maxPeriods the maximum number of rollup periods per record set to sum
+     * @return the number of records by record set ID. Record sets without records in the range are not included.
+     */
+    public static Map<String, Long> countRecords(final EntityManager entityManager,
+                                                 final List<RecordSet> recordSets, final Date since,
+                                                 final Date until, final int maxPeriods) {
+        final RecordResolution resolution = RecordResolution.getRollupResolution(since, until, maxPeriods);
+        final TypedQuery<Object[]> query = entityManager.createQuery(
+                "select e.recordSet.recordSetId, sum(e.valueCount) from RecordRollup as e" +
+                " where e.recordSet in :recordSets and e.resolution=:resolution and e.periodStart>=:since" +
+                " and e.periodStart<:until group by e.recordSet.recordSetId",
+                Object[].class);
+        query.setParameter("recordSets", recordSets);
+        query.setParameter("resolution", resolution);
+        query.setParameter("since", resolution.getPeriodStart(since));
+        query.setParameter("until", until);
+        final Map<String, Long> counts = new HashMap<String, Long>();
+        for (final Object[] row : query.getResultList()) {
+            counts.put((String) row[0], ((Number) row[1]).longValue());
+        }
+        return counts;
+    }
+
+    /**
+     * Gets average values of rollups of record sets in time range as series with single query.
+     * @param entityManager the entity manager.
+     * @param recordSets the record sets
+     * @param resolution the rollup resolution
+     * @param since the time since which rollups are to be included
+     * @param until the time until which rollups are to be included
+     * @return the series of period starts and average values in period start order by record set ID.
+     *         Record sets without rollups in the range are not included.
+     */
+    public static Map<String, RecordSeries> getRecordSeries(final EntityManager entityManager,
+                                                            final List<RecordSet> recordSets,
+                                                            final RecordResolution resolution, final Date since,
+                                                            final Date until) {
+        final TypedQuery<Object[]> query = entityManager.createQuery(
+                "select e.recordSet.recordSetId, e.periodStart, e.valueSum, e.valueCount from RecordRollup as e" +
+                " where e.recordSet in :recordSets and e.resolution=:resolution and e.periodStart>=:since" +
+                " and e.periodStart<:until order by e.recordSet.recordSetId, e.periodStart",
+                Object[].class);
+        query.setParameter("recordSets", recordSets);
+        query.setParameter("resolution", resolution);
+        query.setParameter("since", resolution.getPeriodStart(since));
+        query.setParameter("until", until);
+        return RecordDao.groupRecordSeries(query.getResultList());
+    }
+
+    /**
+     * Gets rollup key.
+     * @param resolution the resolution
+     * @param periodStart the period start
+     * @return the key
+     */
+    private static String getKey(final RecordResolution resolution, final Date periodStart) {
+        return resolution.name() + periodStart.getTime();
+    }
+}
@@ -0,0 +1,172 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.RecordSet;
+
+import javax.persistence.EntityManager;
+import java.util.Collection;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Process wide cache of record set IDs by element ID and record set name. Only IDs are cached
+ * so that cached entries stay valid across entity managers. Cache is invalidated whenever
+ * elements are saved or removed or record sets are removed. Elements which do not exist or are
+ * owned by another company are cached only if cache has not been invalidated since the lookup
+ * started so that lookups racing with element saves do not hide new elements.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class RecordSetCache {
+
+    /** The maximum number of cached entries before cache is cleared. */
+    private static final int MAX_SIZE = 100000;
+    /** The record set IDs by element ID and record set name. */
+    private static final Map<String, String> RECORD_SET_IDS = new ConcurrentHashMap<String, String>();
+    /** The IDs of elements which do not exist. */
+    private static final Map<String, Boolean> UNKNOWN_ELEMENT_IDS = new ConcurrentHashMap<String, Boolean>();
+    /** The keys of element ID and company ID of elements owned by another company. */
+    private static final Map<String, Boolean> FOREIGN_ELEMENT_KEYS = new ConcurrentHashMap<String, Boolean>();
+    /** The cache generation incremented on invalidation. */
+    private static final AtomicLong GENERATION = new AtomicLong();
+    /** The lock guarding generation checks against invalidation. */
+    private static final Object GENERATION_LOCK = new Object();
+
+    /**
+     * Private default constructor to disable construction.
+     */
+    private RecordSetCache() {
+    }
+
+    /**
+     * Gets cached record set.
+     * @param entityManager the entity manager
+     * @param elementId the element ID
+     * @param name the record set name
+     * @return the record set or null if record set is not cached.
+     */
+    public static RecordSet getRecordSet(final EntityManager entityManager, final String elementId,
+                                         final String name) {
+        final String key = getKey(elementId, name);
+        final String recordSetId = RECORD_SET_IDS.get(key);
+        if (recordSetId == null) {
+            return null;
+        }
+        final RecordSet recordSet = entityManager.find(RecordSet.class, recordSetId);
+        if (recordSet == null) {
+            RECORD_SET_IDS.remove(key);
+        }
+        return recordSet;
+    }
+
+    /**
+     * Adds record sets to cache. Record sets have to be committed to database.
+     * @param recordSets the record sets
+     */
+    public static void putRecordSets(final Collection<RecordSet> recordSets) {
+        if (RECORD_SET_IDS.size() + recordSets.size() > MAX_SIZE) {
+            RECORD_SET_IDS.clear();
+        }
+        for (final RecordSet recordSet : recordSets) {
+            RECORD_SET_IDS.put(getKey(recordSet.getElement().getElementId(), recordSet.getName()),
+                    recordSet.getRecordSetId());
+        }
+    }
+
+    /**
+     * @param elementId the element ID
+     * @return true if element is cached as not existing.
+     */
+    public static boolean isUnknownElement(final String elementId) {
+        return UNKNOWN_ELEMENT_IDS.containsKey(elementId);
+    }
+
+    /**
+     * @param elementId the element ID
+     * @param companyId the company ID
+     * @return true if element is cached as owned by other than the given company.
+     */
+    public static boolean isForeignElement(final String elementId, final String companyId) {
+        return FOREIGN_ELEMENT_KEYS.containsKey(getKey(elementId, companyId));
+    }
+
+    /**
+     * @return the cache generation to be passed to puts of lookup results
+     */
+    public static long getGeneration() {
+        return GENERATION.get();
+    }
+
+    /**
+     * Caches element as not existing unless cache has been invalidated after given generation.
+     * @param elementId the element ID
+     * @param generation the cache generation before element lookup
+     */
+    public static void putUnknownElement(final String elementId, final long generation) {
+        synchronized (GENERATION_LOCK) {
+            if (GENERATION.get() != generation) {
+                return;
+            }
+            if (UNKNOWN_ELEMENT_IDS.size() >= MAX_SIZE) {
+                UNKNOWN_ELEMENT_IDS.clear();
+            }
+            UNKNOWN_ELEMENT_IDS.put(elementId, Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Caches element as owned by other than the given company unless cache has been invalidated after
+     * given generation.
+     * @param elementId the element ID
+     * @param companyId the company ID
+     * @param generation the cache generation before element lookup
+     */
+    public static void putForeignElement(final String elementId, final String companyId, final long generation) {
+        synchronized (GENERATION_LOCK) {
+            if (GENERATION.get() != generation) {
+                return;
+            }
+            if (FOREIGN_ELEMENT_KEYS.size() >= MAX_SIZE) {
+                FOREIGN_ELEMENT_KEYS.clear();
+            }
+            FOREIGN_ELEMENT_KEYS.put(getKey(elementId, companyId), Boolean.TRUE);
+        }
+    }
+
+    /**
+     * Invalidates the cache.
+     */
+    public static void invalidate() {
+        synchronized (GENERATION_LOCK) {
+            GENERATION.incrementAndGet();
+            RECORD_SET_IDS.clear();
+            UNKNOWN_ELEMENT_IDS.clear();
+            FOREIGN_ELEMENT_KEYS.clear();
+        }
+    }
+
+    /**
+     * Gets cache key for record set.
+     * @param elementId the element ID
+     * @param name the record set name
+     * @return the cache key
+     */
+    public static String getKey(final String elementId, final String name) {
+        return elementId + '/' + name;
+    }
+}
@@ -17,6 +17,7 @@ package org.agocontrol.dao;
 
 import org.agocontrol.model.Element;
 import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordSetLatest;
 import org.agocontrol.model.RecordType;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.model.Company;
@@ -25,6 +26,8 @@ import javax.persistence.EntityManager;
 import javax.persistence.EntityNotFoundException;
 import javax.persistence.EntityTransaction;
 import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Collection;
 import java.util.Date;
 import java.util.List;
 
@@ -62,7 +65,7 @@ public final class RecordSetDao {
     }
 
     /**
-     * Removes recordSet from database.
+     * Removes recordSet and its records, rollups and latest value from database.
      * @param entityManager the entity manager
      * @param recordSet the recordSet
      */
@@ -70,8 +73,18 @@ public final class RecordSetDao {
         final EntityTransaction transaction = entityManager.getTransaction();
         transaction.begin();
         try {
+            entityManager.createQuery("delete from RecordRollup as e where e.recordSet=:recordSet")
+                    .setParameter("recordSet", recordSet).executeUpdate();
+            entityManager.createQuery("delete from Record as e where e.recordSet=:recordSet")
+                    .setParameter("recordSet", recordSet).executeUpdate();
+            final RecordSetLatest latest = entityManager.find(RecordSetLatest.class, recordSet.getRecordSetId());
+            if (latest != null) {
+                entityManager.remove(latest);
+            }
             entityManager.remove(recordSet);
             transaction.commit();
+            RecordSetCache.invalidate();
+            RecordSetLatestDao.evictRecordSetLatest(recordSet.getRecordSetId());
         } catch (final Exception e) {
             LOG.error("Error in remove recordSet.", e);
             if (transaction.isActive()) {
@@ -142,6 +155,24 @@ public final class RecordSetDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets record sets of given elements with single query.
+     * @param entityManager the entity manager.
+     * @param elements the elements
+     * @return the recordSets
+     */
+    public static List<RecordSet> getRecordSets(final EntityManager entityManager,
+                                                final Collection<Element> elements) {
+        if (elements.size() == 0) {
+            return new ArrayList<RecordSet>();
+        }
+        final TypedQuery<RecordSet> query = entityManager.createQuery(
+                "select e from RecordSet as e where e.element in :elements",
+                RecordSet.class);
+        query.setParameter("elements", elements);
+        return query.getResultList();
+    }
+
 
 
     /**
@@ -161,6 +192,27 @@ public final class RecordSetDao {
         return query.getResultList();
     }
 
+    /**
+     * Gets record sets of given type of children of given elements with single query.
+     * @param entityManager the entity manager.
+     * @param parents the parent elements
+     * @param type the record type
+     * @return the recordSets
+     */
+    public static List<RecordSet> getRecordSetsByParents(final EntityManager entityManager,
+                                                         final Collection<Element> parents,
+                                                         final RecordType type) {
+        if (parents.size() == 0) {
+            return new ArrayList<RecordSet>();
+        }
+        final TypedQuery<RecordSet> query = entityManager.createQuery(
+                "select e from RecordSet as e where e.element.parent in :parents and e.type=:type",
+                RecordSet.class);
+        query.setParameter("parents", parents);
+        query.setParameter("type", type);
+        return query.getResultList();
+    }
+
     /**
      * Gets given recordSet.
      * @param entityManager the entity manager.
@@ -0,0 +1,263 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSetLatest;
+
+import javax.persistence.EntityManager;
+import javax.persistence.TypedQuery;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Data access object for RecordSetLatest. Latest values are also held in process wide memory
+ * cache so that current values can be rendered without database queries.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class RecordSetLatestDao {
+
+    /** The cached latest values by record set ID. */
+    private static final Map<String, RecordSetLatest> LATESTS = new ConcurrentHashMap<String, RecordSetLatest>();
+    /** The cache versions of latest value changes by record set ID. */
+    private static final Map<String, Long> RECORD_SET_VERSIONS = new ConcurrentHashMap<String, Long>();
+    /** The watched record set IDs by change listener. Guarded by VERSION_LOCK. */
+    private static final Map<ChangeListener, Collection<String>> CHANGE_LISTENERS =
+            new HashMap<ChangeListener, Collection<String>>();
+    /** The lock guarding cache version and change listeners. */
+    private static final Object VERSION_LOCK = new Object();
+    /** The cache version incremented when committed latest values change. */
+    private static long version = 0;
+
+    /**
+     * Updates latest values of record sets of given records. Has to be called inside the transaction
+     * persisting the records. The returned latest values have to be added to cache with
+     * cacheRecordSetLatests after commit.
+     * @param entityManager the entity manager
+     * @param records the records
+     * @return the updated latest values
+     */
+    public static List<RecordSetLatest> addRecords(final EntityManager entityManager, final List<Record> records) {
+        final Map<String, Record> newestRecords = new LinkedHashMap<String, Record>();
+        for (final Record record : records) {
+            final String recordSetId = record.getRecordSet().getRecordSetId();
+            final Record newestRecord = newestRecords.get(recordSetId);
+            if (newestRecord == null || !record.getCreated().before(newestRecord.getCreated())) {
+                newestRecords.put(recordSetId, record);
+            }
+        }
+
+        final List<RecordSetLatest> latests = new ArrayList<RecordSetLatest>(newestRecords.size());
+        for (final String recordSetId : newestRecords.keySet()) {
+            final Record record = newestRecords.get(recordSetId);
+            RecordSetLatest latest = entityManager.find(RecordSetLatest.class, recordSetId);
+            if (latest == null) {
+                latest = new RecordSetLatest(recordSetId, record.getOwner(), record.getValue(), record.getCreated());
+                entityManager.persist(latest);
+            } else if (!record.getCreated().before(latest.getCreated())) {
+                latest.setValue(record.getValue());
+                latest.setCreated(record.getCreated());
+            } else {
+                continue;
+            }
+            latests.add(latest);
+        }
+        return latests;
+    }
+
+    /**
+     * Adds committed latest values to cache.
+     * @param latests the latest values
+     */
+    public static void cacheRecordSetLatests(final List<RecordSetLatest> latests) {
+        final List<String> changedRecordSetIds = new ArrayList<String>();
+        for (final RecordSetLatest latest : latests) {
+            if (cache(latest).getCreated().equals(latest.getCreated())) {
+                changedRecordSetIds.add(latest.getRecordSetId());
+            }
+        }
+        if (changedRecordSetIds.size() == 0) {
+            return;
+        }
+        final Set<String> changedRecordSetIdSet = new HashSet<String>(changedRecordSetIds);
+        final List<ChangeListener> changeListeners = new ArrayList<ChangeListener>();
+        final long changeVersion;
+        synchronized (VERSION_LOCK) {
+            version++;
+            changeVersion = version;
+            for (final String recordSetId : changedRecordSetIds) {
+                RECORD_SET_VERSIONS.put(recordSetId, version);
+            }
+            for (final Map.Entry<ChangeListener, Collection<String>> entry : CHANGE_LISTENERS.entrySet()) {
+                for (final String recordSetId : entry.getValue()) {
+                    if (changedRecordSetIdSet.contains(recordSetId)) {
+                        changeListeners.add(entry.getKey());
+                        break;
+                    }
+                }
+            }
+            for (final ChangeListener changeListener : changeListeners) {
+                CHANGE_LISTENERS.remove(changeListener);
+            }
+        }
+        // Listeners are notified outside the lock as they may complete requests.
+        for (final ChangeListener changeListener : changeListeners) {
+            changeListener.changed(changeVersion);
+        }
+    }
+
+    /**
+     * @return the current cache version
+     */
+    public static long getVersion() {
+        synchronized (VERSION_LOCK) {
+            return version;
+        }
+    }
+
+    /**
+     * Adds listener notified once when latest value of any of given record sets changes after given
+     * cache version. If change has already happened the listener is notified immediately in the calling
+     * thread. Listener is removed after notification.
+     * @param recordSetIds the record set IDs
+     * @param afterVersion the cache version after which changes are listened to
+     * @param changeListener the change listener
+     */
+    public static void addChangeListener(final Collection<String> recordSetIds, final long afterVersion,
+                                         final ChangeListener changeListener) {
+        final long changeVersion;
+        synchronized (VERSION_LOCK) {
+            if (!hasChanged(recordSetIds, afterVersion)) {
+                CHANGE_LISTENERS.put(changeListener, new ArrayList<String>(recordSetIds));
+                return;
+            }
+            changeVersion = version;
+        }
+        changeListener.changed(changeVersion);
+    }
+
+    /**
+     * Removes change listener which has not been notified yet.
+     * @param changeListener the change listener
+     */
+    public static void removeChangeListener(final ChangeListener changeListener) {
+        synchronized (VERSION_LOCK) {
+            CHANGE_LISTENERS.remove(changeListener);
+        }
+    }
+
+    /**
+     * Gets latest values of given record sets from cache and loads missing values from database
+     * with single query.
+     * @param entityManager the entity manager
+     * @param recordSetIds the record set IDs
+     * @return the latest values by record set ID. Record sets without records are not included.
+     */
+    public static Map<String, RecordSetLatest> getRecordSetLatests(final EntityManager entityManager,
+                                                                   final Collection<String> recordSetIds) {
+        final Map<String, RecordSetLatest> latests = new HashMap<String, RecordSetLatest>();
+        final List<String> missingRecordSetIds = new ArrayList<String>();
+        for (final String recordSetId : recordSetIds) {
+            final RecordSetLatest latest = LATESTS.get(recordSetId);
+            if (latest != null) {
+                latests.put(recordSetId, latest);
+            } else {
+                missingRecordSetIds.add(recordSetId);
+            }
+        }
+        if (missingRecordSetIds.size() > 0) {
+            final TypedQuery<RecordSetLatest> query = entityManager.createQuery(
+                    "select e from RecordSetLatest as e where e.recordSetId in :recordSetIds",
+                    RecordSetLatest.class);
+            query.setParameter("recordSetIds", missingRecordSetIds);
+            for (final RecordSetLatest latest : query.getResultList()) {
+                latests.put(latest.getRecordSetId(), cache(latest));
+            }
+        }
+        return latests;
+    }
+
+    /**
+     * Gets latest value of record set from cache.
+     * @param recordSetId the record set ID
+     * @return the latest value or null if it is not cached.
+     */
+    public static RecordSetLatest getCachedRecordSetLatest(final String recordSetId) {
+        return LATESTS.get(recordSetId);
+    }
+
+    /**
+     * Removes latest value of record set from cache.
+     * @param recordSetId the record set ID
+     */
+    public static void evictRecordSetLatest(final String recordSetId) {
+        LATESTS.remove(recordSetId);
+    }
+
+    /**
+     * Adds snapshot of latest value to cache unless cache already has newer value.
+     * @param latest the latest value
+     * @return the cached latest value
+     */
+    private static RecordSetLatest cache(final RecordSetLatest latest) {
+        final RecordSetLatest snapshot = new RecordSetLatest(latest.getRecordSetId(), latest.getOwner(),
+                latest.getValue(), latest.getCreated());
+        synchronized (LATESTS) {
+            final RecordSetLatest cached = LATESTS.get(snapshot.getRecordSetId());
+            if (cached != null && cached.getCreated().after(snapshot.getCreated())) {
+                return cached;
+            }
+            LATESTS.put(snapshot.getRecordSetId(), snapshot);
+            return snapshot;
+        }
+    }
+
+    /**
+     * Checks whether latest value of any of given record sets has changed after given cache version.
+     * Has to be called holding VERSION_LOCK.
+     * @param recordSetIds the record set IDs
+     * @param afterVersion the cache version
+     * @return true if any of the record sets has changed.
+     */
+    private static boolean hasChanged(final Collection<String> recordSetIds, final long afterVersion) {
+        for (final String recordSetId : recordSetIds) {
+            final Long recordSetVersion = RECORD_SET_VERSIONS.get(recordSetId);
+            if (recordSetVersion != null && recordSetVersion > afterVersion) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Listener for latest value changes of record sets.
+     */
+    public interface ChangeListener {
+        /**
+         * Invoked after latest value of listened record set has changed.
+         * @param version the cache version after the change
+         */
+        void changed(final long version);
+    }
+}
@@ -51,8 +51,24 @@ public final class Event implements Serializable {
     @ManyToOne(cascade = { CascadeType.DETACH, CascadeType.MERGE, CascadeType.REFRESH }, optional = false)
     private Company owner;
 
-    /** Content. */
-    @Column(length = 1024, nullable = false)
+    /** UUID of the element the event concerns. */
+    @Column(nullable = true)
+    private String elementId;
+
+    /** Subject of the event. */
+    @Column(nullable = true)
+    private String subject;
+
+    /** Unit of the level. */
+    @Column(nullable = true)
+    private String unit;
+
+    /** Level. */
+    @Column(nullable = true)
+    private String level;
+
+    /** Raw JSON content or null if raw content is not stored. */
+    @Column(length = 1024, nullable = true)
     private String content;
 
     /** True if processing error occurred. */
@@ -92,6 +108,26 @@ public final class Event implements Serializable {
         this.created = created;
     }
 
+    /**
+     * @param owner the owning company
+     * @param elementId the element UUID
+     * @param subject the subject
+     * @param unit the unit
+     * @param level the level
+     * @param content the raw content or null
+     * @param created the create time stamp
+     */
+    public Event(final Company owner, final String elementId, final String subject, final String unit,
+                 final String level, final String content, final Date created) {
+        this.owner = owner;
+        this.elementId = elementId;
+        this.subject = subject;
+        this.unit = unit;
+        this.level = level;
+        this.content = content;
+        this.created = created;
+    }
+
     /**
      * @return the owner
      */
@@ -120,6 +156,62 @@ public final class Event implements Serializable {
         this.eventId = eventId;
     }
 
+    /**
+     * @return the elementId
+     */
+    public String getElementId() {
+        return elementId;
+    }
+
+    /**
+     * @param elementId the elementId to set
+     */
+    public void setElementId(final String elementId) {
+        this.elementId = elementId;
+    }
+
+    /**
+     * @return the subject
+     */
+    public String getSubject() {
+        return subject;
+    }
+
+    /**
+     * @param subject the subject to set
+     */
+    public void setSubject(final String subject) {
+        this.subject = subject;
+    }
+
+    /**
+     * @return the unit
+     */
+    public String getUnit() {
+        return unit;
+    }
+
+    /**
+     * @param unit the unit to set
+     */
+    public void setUnit(final String unit) {
+        this.unit = unit;
+    }
+
+    /**
+     * @return the level
+     */
+    public String getLevel() {
+        return level;
+    }
+
+    /**
+     * @param level the level to set
+     */
+    public void setLevel(final String level) {
+        this.level = level;
+    }
+
     /**
      * @return the content
      */
@@ -192,7 +284,7 @@ public final class Event implements Serializable {
 
     @Override
     public String toString() {
-        return content;
+        return content != null ? content : subject + " " + elementId + " " + level;
     }
 
     @Override
@@ -0,0 +1,173 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.model;
+
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Event processing watermark of a company. Events are processed in (created, eventId) order and
+ * the watermark is the key of the last processed event.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@Entity
+@Table(name = "eventwatermark")
+public final class EventWatermark implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** Unique UUID of the entity. */
+    @Id
+    @GeneratedValue(generator = "uuid")
+    private String eventWatermarkId;
+
+    /** Owning company. */
+    @JoinColumn(nullable = false)
+    @ManyToOne(cascade = { CascadeType.DETACH, CascadeType.MERGE, CascadeType.REFRESH }, optional = false)
+    private Company owner;
+
+    /** Created time of the last processed event. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date lastEventCreated;
+
+    /** ID of the last processed event. */
+    @Column(nullable = false)
+    private String lastEventId;
+
+    /** Modified time of the watermark. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date modified;
+
+    /**
+     * The default constructor for JPA.
+     */
+    public EventWatermark() {
+        super();
+    }
+
+    /**
+     * @param owner the owning company
+     * @param lastEventCreated the created time of the last processed event
+     * @param lastEventId the ID of the last processed event
+     */
+    public EventWatermark(final Company owner, final Date lastEventCreated, final String lastEventId) {
+        this.owner = owner;
+        this.lastEventCreated = lastEventCreated;
+        this.lastEventId = lastEventId;
+    }
+
+    /**
+     * @return the eventWatermarkId
+     */
+    public String getEventWatermarkId() {
+        return eventWatermarkId;
+    }
+
+    /**
+     * @param eventWatermarkId the eventWatermarkId to set
+     */
+    public void setEventWatermarkId(final String eventWatermarkId) {
+        this.eventWatermarkId = eventWatermarkId;
+    }
+
+    /**
+     * @return the owner
+     */
+    public Company getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner the owner to set
+     */
+    public void setOwner(final Company owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the lastEventCreated
+     */
+    public Date getLastEventCreated() {
+        return lastEventCreated;
+    }
+
+    /**
+     * @param lastEventCreated the lastEventCreated to set
+     */
+    public void setLastEventCreated(final Date lastEventCreated) {
+        this.lastEventCreated = lastEventCreated;
+    }
+
+    /**
+     * @return the lastEventId
+     */
+    public String getLastEventId() {
+        return lastEventId;
+    }
+
+    /**
+     * @param lastEventId the lastEventId to set
+     */
+    public void setLastEventId(final String lastEventId) {
+        this.lastEventId = lastEventId;
+    }
+
+    /**
+     * @return the modified
+     */
+    public Date getModified() {
+        return modified;
+    }
+
+    /**
+     * @param modified the modified to set
+     */
+    public void setModified(final Date modified) {
+        this.modified = modified;
+    }
+
+    @Override
+    public String toString() {
+        return lastEventCreated + " " + lastEventId;
+    }
+
+    @Override
+    public int hashCode() {
+        return eventWatermarkId.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj != null && obj instanceof EventWatermark
+                && eventWatermarkId.equals(((EventWatermark) obj).getEventWatermarkId());
+    }
+
+}
@@ -0,0 +1,94 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.model;
+
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Resolutions of record series. Rollup periods are aligned to local time.
+ * @author Tommi S.E. Laukkanen
+ */
+public enum RecordResolution {
+    /** Raw records. */
+    RAW(0L),
+    /** MINUTE. */
+    MINUTE(60L * 1000L),
+    /** HOUR. */
+    HOUR(60L * 60L * 1000L),
+    /** DAY. */
+    DAY(24L * 60L * 60L * 1000L);
+
+    /** The rollup resolutions from finest to coarsest. */
+    public static final RecordResolution[] ROLLUP_RESOLUTIONS = {MINUTE, HOUR, DAY};
+
+    /** The period length in milliseconds. */
+    private final long periodMillis;
+
+    /**
+     * @param periodMillis the period length in milliseconds
+     */
+    private RecordResolution(final long periodMillis) {
+        this.periodMillis = periodMillis;
+    }
+
+    /**
+     * @return the period length in milliseconds or 0 for raw records
+     */
+    public long getPeriodMillis() {
+        return periodMillis;
+    }
+
+    /**
+     * Gets start of the period containing given time.
+     * @param time the time
+     * @return the period start
+     */
+    public Date getPeriodStart(final Date time) {
+        if (this == RAW) {
+            return time;
+        }
+        final Calendar calendar = Calendar.getInstance();
+        calendar.setTime(time);
+        calendar.set(Calendar.MILLISECOND, 0);
+        calendar.set(Calendar.SECOND, 0);
+        if (this == HOUR || this == DAY) {
+            calendar.set(Calendar.MINUTE, 0);
+        }
+        if (this == DAY) {
+            calendar.set(Calendar.HOUR_OF_DAY, 0);
+        }
+        return calendar.getTime();
+    }
+
+    /**
+     * Gets finest rollup resolution which has at most given number of periods in time range
+     * or the coarsest rollup resolution if none does.
+     * @param since the range start
+     * @param until the range end
+     * @param maxPoints the maximum number of points
+     * @return the rollup resolution
+     */
+    public static RecordResolution getRollupResolution(final Date since, final Date until, final int maxPoints) {
+        final long rangeMillis = until.getTime() - since.getTime();
+        for (final RecordResolution resolution : ROLLUP_RESOLUTIONS) {
+            if (rangeMillis / resolution.getPeriodMillis() <= maxPoints) {
+                return resolution;
+            }
+        }
+        return DAY;
+    }
+}
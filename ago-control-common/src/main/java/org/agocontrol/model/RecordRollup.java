@@ -0,0 +1,333 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.model;
+
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.EnumType;
+import javax.persistence.Enumerated;
+import javax.persistence.GeneratedValue;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Minimum, maximum, average, count and last value of records of a record set in a period.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@Entity
+@Table(name = "recordrollup")
+public final class RecordRollup implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** Unique UUID of the entity. */
+    @Id
+    @GeneratedValue(generator = "uuid")
+    private String recordRollupId;
+
+    /** Owning company. */
+    @JoinColumn(nullable = false)
+    @ManyToOne(cascade = { CascadeType.DETACH, CascadeType.MERGE, CascadeType.REFRESH }, optional = false)
+    private Company owner;
+
+    /** The record set. */
+    @JoinColumn(nullable = false)
+    @ManyToOne(cascade = { CascadeType.DETACH, CascadeType.MERGE, CascadeType.REFRESH }, optional = false)
+    private RecordSet recordSet;
+
+    /** Resolution. */
+    @Column(nullable = false)
+    @Enumerated(EnumType.ORDINAL)
+    private RecordResolution resolution;
+
+    /** Start time of the period. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date periodStart;
+
+    /** Minimum value. */
+    @Column(nullable = false)
+    private double minimumValue;
+
+    /** Maximum value. */
+    @Column(nullable = false)
+    private double maximumValue;
+
+    /** Sum of values. */
+    @Column(nullable = false)
+    private double valueSum;
+
+    /** Number of values. */
+    @Column(nullable = false)
+    private long valueCount;
+
+    /** Last value. */
+    @Column(nullable = false)
+    private double lastValue;
+
+    /** Created time of the last value. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date lastCreated;
+
+    /** Modified time of the rollup. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date modified;
+
+    /**
+     * The default constructor for JPA.
+     */
+    public RecordRollup() {
+        super();
+    }
+
+    /**
+     * @param owner the owning company
+     * @param recordSet the record set
+     * @param resolution the resolution
+     * @param periodStart the period start
+     */
+    public RecordRollup(final Company owner, final RecordSet recordSet, final RecordResolution resolution,
+                        final Date periodStart) {
+        this.owner = owner;
+        this.recordSet = recordSet;
+        this.resolution = resolution;
+        this.periodStart = periodStart;
+    }
+
+    /**
+     * Adds value to rollup.
+     * @param value the value
+     * @param created the created time of the value
+     */
+    public void addValue(final double value, final Date created) {
+        if (valueCount == 0 || value < minimumValue) {
+            minimumValue = value;
+        }
+        if (valueCount == 0 || value > maximumValue) {
+            maximumValue = value;
+        }
+        valueSum += value;
+        valueCount++;
+        if (lastCreated == null || !created.before(lastCreated)) {
+            lastValue = value;
+            lastCreated = created;
+        }
+    }
+
+    /**
+     * @return the average value
+     */
+    public double getAverageValue() {
+        return valueCount > 0 ? valueSum / valueCount : 0;
+    }
+
+    /**
+     * @return the recordRollupId
+     */
+    public String getRecordRollupId() {
+        return recordRollupId;
+    }
+
+    /**
+     * @param recordRollupId the recordRollupId to set
+     */
+    public void setRecordRollupId(final String recordRollupId) {
+        this.recordRollupId = recordRollupId;
+    }
+
+    /**
+     * @return the owner
+     */
+    public Company getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner the owner to set
+     */
+    public void setOwner(final Company owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the recordSet
+     */
+    public RecordSet getRecordSet() {
+        return recordSet;
+    }
+
+    /**
+     * @param recordSet the recordSet to set
+     */
+    public void setRecordSet(final RecordSet recordSet) {
+        this.recordSet = recordSet;
+    }
+
+    /**
+     * @return the resolution
+     */
+    public RecordResolution getResolution() {
+        return resolution;
+    }
+
+    /**
+     * @param resolution the resolution to set
+     */
+    public void setResolution(final RecordResolution resolution) {
+        this.resolution = resolution;
+    }
+
+    /**
+     * @return the periodStart
+     */
+    public Date getPeriodStart() {
+        return periodStart;
+    }
+
+    /**
+     * @param periodStart the periodStart to set
+     */
+    public void setPeriodStart(final Date periodStart) {
+        this.periodStart = periodStart;
+    }
+
+    /**
+     * @return the minimumValue
+     */
+    public double getMinimumValue() {
+        return minimumValue;
+    }
+
+    /**
+     * @param minimumValue the minimumValue to set
+     */
+    public void setMinimumValue(final double minimumValue) {
+        this.minimumValue = minimumValue;
+    }
+
+    /**
+     * @return the maximumValue
+     */
+    public double getMaximumValue() {
+        return maximumValue;
+    }
+
+    /**
+     * @param maximumValue the maximumValue to set
+     */
+    public void setMaximumValue(final double maximumValue) {
+        this.maximumValue = maximumValue;
+    }
+
+    /**
+     * @return the valueSum
+     */
+    public double getValueSum() {
+        return valueSum;
+    }
+
+    /**
+     * @param valueSum the valueSum to set
+     */
+    public void setValueSum(final double valueSum) {
+        this.valueSum = valueSum;
+    }
+
+    /**
+     * @return the valueCount
+     */
+    public long getValueCount() {
+        return valueCount;
+    }
+
+    /**
+     * @param valueCount the valueCount to set
+     */
+    public void setValueCount(final long valueCount) {
+        this.valueCount = valueCount;
+    }
+
+    /**
+     * @return the lastValue
+     */
+    public double getLastValue() {
+        return lastValue;
+    }
+
+    /**
+     * @param lastValue the lastValue to set
+     */
+    public void setLastValue(final double lastValue) {
+        this.lastValue = lastValue;
+    }
+
+    /**
+     * @return the lastCreated
+     */
+    public Date getLastCreated() {
+        return lastCreated;
+    }
+
+    /**
+     * @param lastCreated the lastCreated to set
+     */
+    public void setLastCreated(final Date lastCreated) {
+        this.lastCreated = lastCreated;
+    }
+
+    /**
+     * @return the modified
+     */
+    public Date getModified() {
+        return modified;
+    }
+
+    /**
+     * @param modified the modified to set
+     */
+    public void setModified(final Date modified) {
+        this.modified = modified;
+    }
+
+    @Override
+    public String toString() {
+        return resolution + " " + periodStart + " " + getAverageValue();
+    }
+
+    @Override
+    public int hashCode() {
+        return recordRollupId.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj != null && obj instanceof RecordRollup
+                && recordRollupId.equals(((RecordRollup) obj).getRecordRollupId());
+    }
+
+}
@@ -0,0 +1,73 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.model;
+
+import java.io.Serializable;
+
+/**
+ * Time series of record set values held in primitive arrays. Time stamps are milliseconds since epoch
+ * in ascending order and values are at same indexes as their time stamps.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class RecordSeries implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** The time stamps in milliseconds. */
+    private final long[] times;
+    /** The values. */
+    private final double[] values;
+
+    /**
+     * @param times the time stamps in milliseconds
+     * @param values the values
+     */
+    public RecordSeries(final long[] times, final double[] values) {
+        if (times.length != values.length) {
+            throw new IllegalArgumentException("Times and values length mismatch: "
+                    + times.length + " != " + values.length);
+        }
+        this.times = times;
+        this.values = values;
+    }
+
+    /**
+     * @return the time stamps in milliseconds
+     */
+    public long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * @return the values
+     */
+    public double[] getValues() {
+        return values;
+    }
+
+    /**
+     * @return number of points in series
+     */
+    public int size() {
+        return times.length;
+    }
+
+    @Override
+    public String toString() {
+        return "RecordSeries[" + times.length + "]";
+    }
+}
@@ -0,0 +1,154 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.model;
+
+import org.vaadin.addons.sitekit.model.Company;
+
+import javax.persistence.CascadeType;
+import javax.persistence.Column;
+import javax.persistence.Entity;
+import javax.persistence.Id;
+import javax.persistence.JoinColumn;
+import javax.persistence.ManyToOne;
+import javax.persistence.Table;
+import javax.persistence.Temporal;
+import javax.persistence.TemporalType;
+import java.io.Serializable;
+import java.util.Date;
+
+/**
+ * Latest record value of a record set.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@Entity
+@Table(name = "recordset_latest")
+public final class RecordSetLatest implements Serializable {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+
+    /** UUID of the record set. */
+    @Id
+    @Column(name = "recordset_recordsetid")
+    private String recordSetId;
+
+    /** Owning company. */
+    @JoinColumn(nullable = false)
+    @ManyToOne(cascade = { CascadeType.DETACH, CascadeType.MERGE, CascadeType.REFRESH }, optional = false)
+    private Company owner;
+
+    /** Value of the latest record. */
+    @Column(nullable = false)
+    private double value;
+
+    /** Created time of the latest record. */
+    @Temporal(TemporalType.TIMESTAMP)
+    @Column(nullable = false)
+    private Date created;
+
+    /**
+     * The default constructor for JPA.
+     */
+    public RecordSetLatest() {
+        super();
+    }
+
+    /**
+     * @param recordSetId the record set UUID
+     * @param owner the owning company
+     * @param value the value of the latest record
+     * @param created the created time of the latest record
+     */
+    public RecordSetLatest(final String recordSetId, final Company owner, final double value, final Date created) {
+        this.recordSetId = recordSetId;
+        this.owner = owner;
+        this.value = value;
+        this.created = created;
+    }
+
+    /**
+     * @return the recordSetId
+     */
+    public String getRecordSetId() {
+        return recordSetId;
+    }
+
+    /**
+     * @param recordSetId the recordSetId to set
+     */
+    public void setRecordSetId(final String recordSetId) {
+        this.recordSetId = recordSetId;
+    }
+
+    /**
+     * @return the owner
+     */
+    public Company getOwner() {
+        return owner;
+    }
+
+    /**
+     * @param owner the owner to set
+     */
+    public void setOwner(final Company owner) {
+        this.owner = owner;
+    }
+
+    /**
+     * @return the value
+     */
+    public double getValue() {
+        return value;
+    }
+
+    /**
+     * @param value the value to set
+     */
+    public void setValue(final double value) {
+        this.value = value;
+    }
+
+    /**
+     * @return the created
+     */
+    public Date getCreated() {
+        return created;
+    }
+
+    /**
+     * @param created the created to set
+     */
+    public void setCreated(final Date created) {
+        this.created = created;
+    }
+
+    @Override
+    public String toString() {
+        return value + " " + created;
+    }
+
+    @Override
+    public int hashCode() {
+        return recordSetId.hashCode();
+    }
+
+    @Override
+    public boolean equals(final Object obj) {
+        return obj != null && obj instanceof RecordSetLatest
+                && recordSetId.equals(((RecordSetLatest) obj).getRecordSetId());
+    }
+
+}
@@ -0,0 +1,89 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.util;
+
+import org.agocontrol.model.RecordSeries;
+
+/**
+ * Utility for downsampling series to point budget with Largest-Triangle-Three-Buckets algorithm.
+ * First and last points are always kept and from each bucket in between the point forming
+ * largest triangle with previously selected point and average of next bucket is selected,
+ * which preserves peaks and visual shape of the series.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class SeriesDownsamplingUtil {
+
+    /**
+     * Private constructor to disable construction.
+     */
+    private SeriesDownsamplingUtil() {
+    }
+
+    /**
+     * Downsamples series to given number of points.
+     * @param series the series in time order
+     * @param threshold the maximum number of points
+     * @return the downsampled series or the series itself if it already fits.
+     */
+    public static RecordSeries downsample(final RecordSeries series, final int threshold) {
+        final int size = series.size();
+        if (threshold < 3 || size <= threshold) {
+            return series;
+        }
+        final long[] times = series.getTimes();
+        final double[] values = series.getValues();
+        final long[] sampledTimes = new long[threshold];
+        final double[] sampledValues = new double[threshold];
+
+        final double bucketSize = (double) (size - 2) / (threshold - 2);
+        int a = 0;
+        sampledTimes[0] = times[0];
+        sampledValues[0] = values[0];
+        for (int i = 0; i < threshold - 2; i++) {
+            final int averageStart = (int) Math.floor((i + 1) * bucketSize) + 1;
+            final int averageEnd = Math.min((int) Math.floor((i + 2) * bucketSize) + 1, size);
+            double averageTime = 0;
+            double averageValue = 0;
+            for (int j = averageStart; j < averageEnd; j++) {
+                averageTime += times[j] - times[a];
+                averageValue += values[j];
+            }
+            averageTime /= averageEnd - averageStart;
+            averageValue /= averageEnd - averageStart;
+
+            final int bucketStart = (int) Math.floor(i * bucketSize) + 1;
+            final int bucketEnd = (int) Math.floor((i + 1) * bucketSize) + 1;
+            double maxArea = -1;
+            int selected = bucketStart;
+            for (int j = bucketStart; j < bucketEnd; j++) {
+                // Times relative to selected point keep precision of the area calculation.
+                final double area = Math.abs(-averageTime * (values[j] - values[a])
+                        + (times[j] - times[a]) * (averageValue - values[a]));
+                if (area > maxArea) {
+                    maxArea = area;
+                    selected = j;
+                }
+            }
+            sampledTimes[i + 1] = times[selected];
+            sampledValues[i + 1] = values[selected];
+            a = selected;
+        }
+        sampledTimes[threshold - 1] = times[size - 1];
+        sampledValues[threshold - 1] = values[size - 1];
+        return new RecordSeries(sampledTimes, sampledValues);
+    }
+}
@@ -0,0 +1,25 @@
+\connect agosite
+
+CREATE TABLE eventwatermark (
+    eventwatermarkid character varying(255) NOT NULL,
+    lasteventcreated timestamp without time zone NOT NULL,
+    lasteventid character varying(255) NOT NULL,
+    modified timestamp without time zone NOT NULL,
+    owner_companyid character varying(255) NOT NULL
+);
+
+ALTER TABLE public.eventwatermark OWNER TO agosite;
+
+ALTER TABLE ONLY eventwatermark
+    ADD CONSTRAINT eventwatermark_pkey PRIMARY KEY (eventwatermarkid);
+
+ALTER TABLE ONLY eventwatermark
+    ADD CONSTRAINT eventwatermark_owner_companyid_key UNIQUE (owner_companyid);
+
+ALTER TABLE ONLY eventwatermark
+    ADD CONSTRAINT fk_eventwatermark_owner_companyid FOREIGN KEY (owner_companyid) REFERENCES company(companyid);
+
+CREATE INDEX event_unprocessed_owner_created_eventid ON event (owner_companyid, created, eventid)
+    WHERE processed IS NULL;
+
+INSERT INTO schemaversion VALUES (NOW(), 'agosite', '0003');
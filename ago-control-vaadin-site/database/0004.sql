@@ -0,0 +1,18 @@
+\connect agosite
+
+ALTER TABLE event ADD COLUMN elementid character varying(255);
+ALTER TABLE event ADD COLUMN subject character varying(255);
+ALTER TABLE event ADD COLUMN unit character varying(255);
+ALTER TABLE event ADD COLUMN level character varying(255);
+ALTER TABLE event ALTER COLUMN content DROP NOT NULL;
+
+UPDATE event SET
+    elementid = substring(content from '"uuid":"([^"]*)"'),
+    subject = substring(content from '"event":"([^"]*)"'),
+    unit = substring(content from '"unit":"([^"]*)"'),
+    level = substring(content from '"level":"?([^",}]*)');
+
+CREATE INDEX event_owner_elementid_created ON event (owner_companyid, elementid, created);
+CREATE INDEX event_owner_subject_created ON event (owner_companyid, subject, created);
+
+INSERT INTO schemaversion VALUES (NOW(), 'agosite', '0004');
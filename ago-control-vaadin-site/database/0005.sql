@@ -0,0 +1,14 @@
+\connect agosite
+
+CREATE INDEX record_recordset_created ON record (recordset_recordsetid, created);
+CREATE INDEX record_owner_created ON record (owner_companyid, created);
+
+CREATE INDEX recordset_element_name ON recordset (element_elementid, name);
+
+CREATE INDEX element_owner_treeindex ON element (owner_companyid, treeindex);
+CREATE INDEX element_owner_type_name ON element (owner_companyid, type, name);
+CREATE INDEX element_parent ON element (parent_elementid);
+
+CREATE INDEX bus_owner_name ON bus (owner_companyid, name);
+
+INSERT INTO schemaversion VALUES (NOW(), 'agosite', '0005');
@@ -0,0 +1,52 @@
+\connect agosite
+
+CREATE TABLE recordrollup (
+    recordrollupid character varying(255) NOT NULL,
+    resolution integer NOT NULL,
+    periodstart timestamp without time zone NOT NULL,
+    minimumvalue double precision NOT NULL,
+    maximumvalue double precision NOT NULL,
+    valuesum double precision NOT NULL,
+    valuecount bigint NOT NULL,
+    lastvalue double precision NOT NULL,
+    lastcreated timestamp without time zone NOT NULL,
+    modified timestamp without time zone NOT NULL,
+    owner_companyid character varying(255) NOT NULL,
+    recordset_recordsetid character varying(255) NOT NULL
+);
+
+ALTER TABLE public.recordrollup OWNER TO agosite;
+
+ALTER TABLE ONLY recordrollup
+    ADD CONSTRAINT recordrollup_pkey PRIMARY KEY (recordrollupid);
+
+ALTER TABLE ONLY recordrollup
+    ADD CONSTRAINT recordrollup_recordset_resolution_periodstart_key
+    UNIQUE (recordset_recordsetid, resolution, periodstart);
+
+ALTER TABLE ONLY recordrollup
+    ADD CONSTRAINT fk_recordrollup_owner_companyid FOREIGN KEY (owner_companyid) REFERENCES company(companyid);
+
+ALTER TABLE ONLY recordrollup
+    ADD CONSTRAINT fk_recordrollup_recordset_recordsetid FOREIGN KEY (recordset_recordsetid) REFERENCES recordset(recordsetid);
+
+-- Resolutions are RecordResolution ordinals: 1 = minute, 2 = hour and 3 = day.
+INSERT INTO recordrollup
+    SELECT md5(recordset_recordsetid || ':1:' || date_trunc('minute', created)), 1, date_trunc('minute', created),
+           min(value), max(value), sum(value), count(*), (array_agg(value ORDER BY created DESC))[1], max(created),
+           NOW(), min(owner_companyid), recordset_recordsetid
+    FROM record GROUP BY recordset_recordsetid, date_trunc('minute', created);
+
+INSERT INTO recordrollup
+    SELECT md5(recordset_recordsetid || ':2:' || date_trunc('hour', created)), 2, date_trunc('hour', created),
+           min(value), max(value), sum(value), count(*), (array_agg(value ORDER BY created DESC))[1], max(created),
+           NOW(), min(owner_companyid), recordset_recordsetid
+    FROM record GROUP BY recordset_recordsetid, date_trunc('hour', created);
+
+INSERT INTO recordrollup
+    SELECT md5(recordset_recordsetid || ':3:' || date_trunc('day', created)), 3, date_trunc('day', created),
+           min(value), max(value), sum(value), count(*), (array_agg(value ORDER BY created DESC))[1], max(created),
+           NOW(), min(owner_companyid), recordset_recordsetid
+    FROM record GROUP BY recordset_recordsetid, date_trunc('day', created);
+
+INSERT INTO schemaversion VALUES (NOW(), 'agosite', '0006');
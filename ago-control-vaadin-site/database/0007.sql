@@ -0,0 +1,26 @@
+\connect agosite
+
+CREATE TABLE recordset_latest (
+    recordset_recordsetid character varying(255) NOT NULL,
+    value double precision NOT NULL,
+    created timestamp without time zone NOT NULL,
+    owner_companyid character varying(255) NOT NULL
+);
+
+ALTER TABLE public.recordset_latest OWNER TO agosite;
+
+ALTER TABLE ONLY recordset_latest
+    ADD CONSTRAINT recordset_latest_pkey PRIMARY KEY (recordset_recordsetid);
+
+ALTER TABLE ONLY recordset_latest
+    ADD CONSTRAINT fk_recordset_latest_owner_companyid FOREIGN KEY (owner_companyid) REFERENCES company(companyid);
+
+ALTER TABLE ONLY recordset_latest
+    ADD CONSTRAINT fk_recordset_latest_recordset_recordsetid FOREIGN KEY (recordset_recordsetid) REFERENCES recordset(recordsetid);
+
+INSERT INTO recordset_latest (recordset_recordsetid, value, created, owner_companyid)
+    SELECT DISTINCT ON (recordset_recordsetid) recordset_recordsetid, value, created, owner_companyid
+    FROM record
+    ORDER BY recordset_recordsetid, created DESC;
+
+INSERT INTO schemaversion VALUES (NOW(), 'agosite', '0007');
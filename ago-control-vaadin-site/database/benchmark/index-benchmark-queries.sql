@@ -0,0 +1,31 @@
+-- Hot queries of the DAOs run by index-benchmark.sql.
+
+\echo 'RecordDao.getRecords(recordSet, since)'
+EXPLAIN ANALYZE SELECT * FROM record
+    WHERE recordset_recordsetid = 'rs42' AND created >= timestamp '2013-04-01' ORDER BY created DESC;
+
+\echo 'RecordDao.getRecords(recordSet, maxResults)'
+EXPLAIN ANALYZE SELECT * FROM record
+    WHERE recordset_recordsetid = 'rs42' ORDER BY created DESC LIMIT 100;
+
+\echo 'EventDao.getUnprocessedEvents(owner, afterCreated, afterEventId, until, maxResults)'
+EXPLAIN ANALYZE SELECT * FROM event
+    WHERE owner_companyid = 'c3'
+      AND (created > timestamp '2013-01-01' OR (created = timestamp '2013-01-01' AND eventid > ''))
+      AND created < timestamp '2014-01-01' AND processed IS NULL
+    ORDER BY created, eventid LIMIT 1000;
+
+\echo 'EventPanel filtered by element'
+EXPLAIN ANALYZE SELECT * FROM event
+    WHERE owner_companyid = 'c3' AND elementid = 'e43' ORDER BY created DESC LIMIT 50;
+
+\echo 'ElementDao.getElements(owner)'
+EXPLAIN ANALYZE SELECT * FROM element WHERE owner_companyid = 'c3' ORDER BY treeindex;
+
+\echo 'RecordSetDao.getRecordSet(element, name)'
+EXPLAIN ANALYZE SELECT * FROM recordset
+    WHERE element_elementid = 'e42' AND name = 'event.environment.temperaturechanged';
+
+\echo 'RecordSetDao.getRecordSetsByParent(parent, type)'
+EXPLAIN ANALYZE SELECT s.* FROM recordset AS s JOIN element AS e ON s.element_elementid = e.elementid
+    WHERE e.parent_elementid = 'e4';
@@ -0,0 +1,66 @@
+-- Query plan benchmark for the hot query path indexes of 0003.sql, 0004.sql and 0005.sql.
+--
+-- Generates synthetic data to separate indexbenchmark schema, runs the hot queries without
+-- indexes, creates the indexes and runs the queries again. Compare the EXPLAIN ANALYZE
+-- plans and execution times of the two runs. The schema is dropped at the end.
+--
+-- Usage: psql -d site -f database/benchmark/index-benchmark.sql
+-- Change the records and events variables below to scale the data set.
+
+\set ON_ERROR_STOP on
+\set records 10000000
+\set events 1000000
+
+DROP SCHEMA IF EXISTS indexbenchmark CASCADE;
+CREATE SCHEMA indexbenchmark;
+SET search_path = indexbenchmark;
+
+-- 10 companies with 1000 elements each. First 1000 elements have temperature and humidity record sets.
+CREATE TABLE element AS
+    SELECT 'e' || i AS elementid, 'c' || (i % 10) AS owner_companyid, i / 10 AS treeindex,
+           i % 5 AS type, 'element ' || i AS name, 'e' || (i / 10) AS parent_elementid
+    FROM generate_series(0, 9999) AS i;
+
+CREATE TABLE recordset AS
+    SELECT 'rs' || i AS recordsetid, 'e' || (i / 2) AS element_elementid, 'c' || ((i / 2) % 10) AS owner_companyid,
+           CASE WHEN i % 2 = 0 THEN 'event.environment.temperaturechanged'
+                ELSE 'event.environment.humiditychanged' END AS name
+    FROM generate_series(0, 1999) AS i;
+
+-- One record per record set per minute.
+CREATE TABLE record AS
+    SELECT 'r' || i AS recordid, 'rs' || (i % 2000) AS recordset_recordsetid,
+           'c' || ((i % 2000) / 2 % 10) AS owner_companyid,
+           timestamp '2013-01-01' + (i / 2000) * interval '1 minute' AS created,
+           (i % 300) / 10.0 AS value
+    FROM generate_series(0, :records - 1) AS i;
+
+-- One event per second of which the last tenth is unprocessed.
+CREATE TABLE event AS
+    SELECT 'ev' || i AS eventid, 'c' || (i % 10) AS owner_companyid, 'e' || (i % 1000) AS elementid,
+           'event.environment.temperaturechanged'::character varying AS subject,
+           timestamp '2013-01-01' + i * interval '1 second' AS created,
+           CASE WHEN i < :events * 9 / 10 THEN timestamp '2013-01-01' END AS processed
+    FROM generate_series(0, :events - 1) AS i;
+
+ANALYZE;
+
+\echo '*** Without indexes ***'
+\ir index-benchmark-queries.sql
+
+CREATE INDEX event_unprocessed_owner_created_eventid ON event (owner_companyid, created, eventid)
+    WHERE processed IS NULL;
+CREATE INDEX event_owner_elementid_created ON event (owner_companyid, elementid, created);
+CREATE INDEX record_recordset_created ON record (recordset_recordsetid, created);
+CREATE INDEX record_owner_created ON record (owner_companyid, created);
+CREATE INDEX recordset_element_name ON recordset (element_elementid, name);
+CREATE INDEX element_owner_treeindex ON element (owner_companyid, treeindex);
+CREATE INDEX element_parent ON element (parent_elementid);
+
+ANALYZE;
+
+\echo '*** With indexes ***'
+\ir index-benchmark-queries.sql
+
+RESET search_path;
+DROP SCHEMA indexbenchmark CASCADE;
@@ -0,0 +1,134 @@
+-- Optional monthly partitioning of record table by created time. Requires PostgreSQL 11 or later.
+--
+-- Converts record table to range partitioned table with one partition per month, copies existing
+-- records to partitions and defines functions for creating upcoming partitions and for dropping
+-- partitions older than retention period. Enable record-partitioning in site properties after
+-- running this script so that upcoming partitions are created and retention is applied daily.
+--
+-- Records outside monthly partitions, such as readings with skewed clock or journal replays older
+-- than existing partitions, go to record_default partition instead of failing the whole batch insert.
+-- When partition is created for month which has records in default partition, the records are moved
+-- to the new partition. Records in default partition are deleted with the same retention as partitions.
+--
+-- Usage: psql -f database/optional/record-partitioning.sql
+
+\connect agosite
+\set ON_ERROR_STOP on
+
+BEGIN;
+
+ALTER TABLE record RENAME TO record_unpartitioned;
+ALTER TABLE record_unpartitioned RENAME CONSTRAINT record_pkey TO record_unpartitioned_pkey;
+ALTER TABLE record_unpartitioned RENAME CONSTRAINT fk_record_owner_companyid
+    TO fk_record_unpartitioned_owner_companyid;
+ALTER TABLE record_unpartitioned RENAME CONSTRAINT fk_record_recordset_recordsetid
+    TO fk_record_unpartitioned_recordset_recordsetid;
+ALTER INDEX record_recordset_created RENAME TO record_unpartitioned_recordset_created;
+ALTER INDEX record_owner_created RENAME TO record_unpartitioned_owner_created;
+
+CREATE TABLE record (
+    recordid character varying(255) NOT NULL,
+    created timestamp without time zone NOT NULL,
+    modified timestamp without time zone NOT NULL,
+    value numeric(38,2) NOT NULL,
+    owner_companyid character varying(255) NOT NULL,
+    recordset_recordsetid character varying(255) NOT NULL
+) PARTITION BY RANGE (created);
+
+ALTER TABLE public.record OWNER TO agosite;
+
+-- Partition key has to be part of primary key of partitioned table.
+ALTER TABLE ONLY record
+    ADD CONSTRAINT record_pkey PRIMARY KEY (recordid, created);
+
+ALTER TABLE ONLY record
+    ADD CONSTRAINT fk_record_owner_companyid FOREIGN KEY (owner_companyid) REFERENCES company(companyid);
+
+ALTER TABLE ONLY record
+    ADD CONSTRAINT fk_record_recordset_recordsetid FOREIGN KEY (recordset_recordsetid) REFERENCES recordset(recordsetid);
+
+CREATE INDEX record_recordset_created ON record (recordset_recordsetid, created);
+CREATE INDEX record_owner_created ON record (owner_companyid, created);
+
+CREATE TABLE record_default PARTITION OF record DEFAULT;
+
+ALTER TABLE public.record_default OWNER TO agosite;
+
+-- Creates partition for month of given date if it does not exist and moves records of the month from
+-- default partition to it. Returns 1 if partition was created.
+CREATE OR REPLACE FUNCTION record_create_partition(month_date date) RETURNS integer AS $$
+DECLARE
+    month_start date := date_trunc('month', month_date)::date;
+    month_end date := (date_trunc('month', month_date) + interval '1 month')::date;
+    partition_name text := 'record_' || to_char(month_start, 'YYYYMM');
+BEGIN
+    IF to_regclass(partition_name) IS NOT NULL THEN
+        RETURN 0;
+    END IF;
+    -- Partition overlapping rows of default partition can not be created so rows are moved before attach.
+    EXECUTE format('CREATE TABLE %I (LIKE record INCLUDING DEFAULTS)', partition_name);
+    EXECUTE format('ALTER TABLE %I OWNER TO agosite', partition_name);
+    EXECUTE format('WITH moved AS (DELETE FROM record_default WHERE created >= %L AND created < %L RETURNING *)'
+        || ' INSERT INTO %I SELECT * FROM moved', month_start, month_end, partition_name);
+    EXECUTE format('ALTER TABLE record ATTACH PARTITION %I FOR VALUES FROM (%L) TO (%L)',
+        partition_name, month_start, month_end);
+    RETURN 1;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Creates partitions for current month and given number of upcoming months. Returns number of created partitions.
+CREATE OR REPLACE FUNCTION record_create_partitions(months_ahead integer) RETURNS integer AS $$
+DECLARE
+    created_count integer := 0;
+BEGIN
+    FOR i IN 0..months_ahead LOOP
+        created_count := created_count + record_create_partition((now() + i * interval '1 month')::date);
+    END LOOP;
+    RETURN created_count;
+END;
+$$ LANGUAGE plpgsql;
+
+-- Drops partitions of months which ended more than given number of months ago and deletes records of those
+-- months from default partition. Returns number of dropped partitions.
+CREATE OR REPLACE FUNCTION record_drop_partitions(retention_months integer) RETURNS integer AS $$
+DECLARE
+    cutoff date := (date_trunc('month', now()) - retention_months * interval '1 month')::date;
+    partition_name text;
+    dropped_count integer := 0;
+BEGIN
+    FOR partition_name IN SELECT c.relname FROM pg_inherits AS i JOIN pg_class AS c ON c.oid = i.inhrelid
+            WHERE i.inhparent = 'record'::regclass AND c.relname ~ '^record_[0-9]{6}$' LOOP
+        IF to_date(substring(partition_name from 8), 'YYYYMM') < cutoff THEN
+            EXECUTE format('DROP TABLE %I', partition_name);
+            dropped_count := dropped_count + 1;
+        END IF;
+    END LOOP;
+    DELETE FROM record_default WHERE created < cutoff;
+    RETURN dropped_count;
+END;
+$$ LANGUAGE plpgsql;
+
+ALTER FUNCTION record_create_partition(date) OWNER TO agosite;
+ALTER FUNCTION record_create_partitions(integer) OWNER TO agosite;
+ALTER FUNCTION record_drop_partitions(integer) OWNER TO agosite;
+
+DO $$
+DECLARE
+    month_date date;
+BEGIN
+    SELECT date_trunc('month', min(created))::date INTO month_date FROM record_unpartitioned;
+    WHILE month_date IS NOT NULL AND month_date < now() LOOP
+        PERFORM record_create_partition(month_date);
+        month_date := (month_date + interval '1 month')::date;
+    END LOOP;
+END;
+$$;
+
+SELECT record_create_partitions(3);
+
+INSERT INTO record (recordid, created, modified, value, owner_companyid, recordset_recordsetid)
+    SELECT recordid, created, modified, value, owner_companyid, recordset_recordsetid FROM record_unpartitioned;
+
+DROP TABLE record_unpartitioned;
+
+COMMIT;
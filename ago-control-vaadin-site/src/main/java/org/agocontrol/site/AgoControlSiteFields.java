@@ -265,6 +265,26 @@ public final class AgoControlSiteFields {
                 TimestampField.class, TimestampFormatter.class,
                 100, null, Date.class, null, true,
                 true, true));
+        AgoControlSiteFields.add(Event.class, new FieldDescriptor(
+                "subject", "Subject",
+                TextField.class, null,
+                200, null, String.class, "",
+                false, true, false));
+        AgoControlSiteFields.add(Event.class, new FieldDescriptor(
+                "elementId", "Element",
+                TextField.class, null,
+                150, null, String.class, "",
+                false, true, false));
+        AgoControlSiteFields.add(Event.class, new FieldDescriptor(
+                "level", "Level",
+                TextField.class, null,
+                75, null, String.class, "",
+                false, true, false));
+        AgoControlSiteFields.add(Event.class, new FieldDescriptor(
+                "unit", "Unit",
+                TextField.class, null,
+                25, null, String.class, "",
+                false, false, false));
         AgoControlSiteFields.add(Event.class, new FieldDescriptor(
                 "content", "Content",
                 TextField.class, null,
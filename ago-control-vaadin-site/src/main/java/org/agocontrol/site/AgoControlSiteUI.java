@@ -22,6 +22,7 @@ import com.vaadin.server.VaadinServletRequest;
 import org.agocontrol.client.BusClient;
 import org.agocontrol.client.BusClientManager;
 import org.agocontrol.client.EventProcessor;
+import org.agocontrol.client.RecordPartitionMaintainer;
 import org.agocontrol.model.Bus;
 import org.agocontrol.site.viewlet.bus.BusFlowViewlet;
 import org.agocontrol.site.viewlet.dashboard.DashboardViewlet;
@@ -127,6 +128,14 @@ public final class AgoControlSiteUI extends AbstractSiteUI implements ContentPro
 
         busClientManager = new BusClientManager(entityManagerFactory);
         final EventProcessor eventProcessor = new EventProcessor(entityManagerFactory);
+        final RecordPartitionMaintainer recordPartitionMaintainer;
+        if (Boolean.parseBoolean(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "record-partitioning"))) {
+            recordPartitionMaintainer = new RecordPartitionMaintainer(entityManagerFactory,
+                    Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "record-partition-months-ahead")),
+                    Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "record-retention-months")));
+        } else {
+            recordPartitionMaintainer = null;
+        }
 
         Runtime.getRuntime().addShutdownHook(new Thread() {
             public void run() {
@@ -135,6 +144,13 @@ public final class AgoControlSiteUI extends AbstractSiteUI implements ContentPro
                 } catch (final Throwable t) {
                     LOGGER.error("Error in event processor stop.", t);
                 }
+                if (recordPartitionMaintainer != null) {
+                    try {
+                        recordPartitionMaintainer.close();
+                    } catch (final Throwable t) {
+                        LOGGER.error("Error in record partition maintainer stop.", t);
+                    }
+                }
                 try {
                     busClientManager.close();
                 } catch (final Throwable t) {
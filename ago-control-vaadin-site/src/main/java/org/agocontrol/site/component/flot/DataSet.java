@@ -1,14 +1,8 @@
 package org.agocontrol.site.component.flot;
 
-import org.vaadin.addons.sitekit.grid.field.DatePartField;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.Date;
-import java.util.List;
-
 /**
- * The data set container for flot sate.
+ * The data set container for flot sate. Time stamps and values are kept in primitive arrays
+ * and zipped to flot data pairs on client side.
  */
 public class DataSet {
     /**
@@ -16,9 +10,30 @@ public class DataSet {
      */
     private String label;
     /**
-     * The data value pairs.
+     * The time stamps in milliseconds.
+     */
+    private long[] times = new long[0];
+    /**
+     * The values at same indexes as time stamps.
      */
-    private List<List<Object>> data = new ArrayList<List<Object>>();
+    private double[] values = new double[0];
+
+    /**
+     * The default constructor.
+     */
+    public DataSet() {
+    }
+
+    /**
+     * @param label the label
+     * @param times the time stamps in milliseconds
+     * @param values the values at same indexes as time stamps
+     */
+    public DataSet(final String label, final long[] times, final double[] values) {
+        this.label = label;
+        this.times = times;
+        this.values = values;
+    }
 
     /**
      * @return the label
@@ -35,25 +50,65 @@ public class DataSet {
     }
 
     /**
-     * @return the data
+     * @return the time stamps in milliseconds
+     */
+    public final long[] getTimes() {
+        return times;
+    }
+
+    /**
+     * @param times the time stamps in milliseconds to set
+     */
+    public final void setTimes(final long[] times) {
+        this.times = times;
+    }
+
+    /**
+     * @return the values
      */
-    public final List<List<Object>> getData() {
-        return data;
+    public final double[] getValues() {
+        return values;
     }
 
     /**
-     * @param data the data to set
+     * @param values the values to set
      */
-    public final void setData(final List<List<Object>> data) {
-        this.data = data;
+    public final void setValues(final double[] values) {
+        this.values = values;
     }
 
     /**
-     * Adds date value pair to data.
-     * @param date the date
-     * @param value the value
+     * Appends values to the data set in time order and trims values older than window start. Appended
+     * values older than the last value of the data set are merged to their place in time order.
+     * @param appendedTimes the appended time stamps in milliseconds in ascending order
+     * @param appendedValues the appended values
+     * @param windowStart the time in milliseconds before which values are trimmed
      */
-    public final void addValue(final Date date, final Double value) {
-        data.add(Arrays.asList(new Object[] {date.getTime(), value}));
+    public final void appendValues(final long[] appendedTimes, final double[] appendedValues,
+                                   final long windowStart) {
+        int i = 0;
+        while (i < times.length && times[i] < windowStart) {
+            i++;
+        }
+        int j = 0;
+        while (j < appendedTimes.length && appendedTimes[j] < windowStart) {
+            j++;
+        }
+        final int length = times.length - i + appendedTimes.length - j;
+        final long[] newTimes = new long[length];
+        final double[] newValues = new double[length];
+        for (int k = 0; k < length; k++) {
+            if (j == appendedTimes.length || (i < times.length && times[i] <= appendedTimes[j])) {
+                newTimes[k] = times[i];
+                newValues[k] = values[i];
+                i++;
+            } else {
+                newTimes[k] = appendedTimes[j];
+                newValues[k] = appendedValues[j];
+                j++;
+            }
+        }
+        times = newTimes;
+        values = newValues;
     }
 }
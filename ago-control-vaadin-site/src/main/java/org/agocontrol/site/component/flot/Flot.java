@@ -16,11 +16,13 @@
 package org.agocontrol.site.component.flot;
 
 import com.vaadin.annotations.JavaScript;
+import com.vaadin.external.json.JSONArray;
+import com.vaadin.external.json.JSONException;
 import com.vaadin.ui.AbstractJavaScriptComponent;
+import com.vaadin.ui.JavaScriptFunction;
 
-import java.util.Arrays;
-import java.util.Date;
-import java.util.TimeZone;
+import java.util.ArrayList;
+import java.util.List;
 
 /**
  * Flot chart component.
@@ -29,11 +31,43 @@ import java.util.TimeZone;
  */
 @JavaScript({"flotr2.min.js", "flot.js"})
 public class Flot extends AbstractJavaScriptComponent {
+    /**
+     * The zoom listeners.
+     */
+    private final List<ZoomListener> zoomListeners = new ArrayList<ZoomListener>();
+
     /**
      * The default constructor.
      */
     public Flot() {
         setSizeFull();
+        addFunction("onZoomIn", new JavaScriptFunction() {
+            @Override
+            public void call(final JSONArray arguments) throws JSONException {
+                final long since = (long) arguments.getDouble(0);
+                final long until = (long) arguments.getDouble(1);
+                final int width = arguments.getInt(2);
+                for (final ZoomListener zoomListener : zoomListeners) {
+                    zoomListener.zoomIn(since, until, width);
+                }
+            }
+        });
+        addFunction("onZoomOut", new JavaScriptFunction() {
+            @Override
+            public void call(final JSONArray arguments) throws JSONException {
+                for (final ZoomListener zoomListener : zoomListeners) {
+                    zoomListener.zoomOut();
+                }
+            }
+        });
+    }
+
+    /**
+     * Adds zoom listener.
+     * @param zoomListener the zoom listener
+     */
+    public final void addZoomListener(final ZoomListener zoomListener) {
+        zoomListeners.add(zoomListener);
     }
 
     /**
@@ -43,4 +77,40 @@ public class Flot extends AbstractJavaScriptComponent {
     public final FlotState getState() {
         return (FlotState) super.getState(true);
     }
+
+    /**
+     * Appends values to data sets in time order and trims values older than window start. Only the
+     * appended values are sent to client as the state is updated without marking it dirty. Full state is sent if
+     * the component is repainted.
+     * @param indexes the indexes of data sets to append to
+     * @param times the appended time stamps in milliseconds for each data set
+     * @param values the appended values for each data set
+     * @param windowStart the time in milliseconds before which values are trimmed
+     */
+    public final void appendValues(final int[] indexes, final long[][] times, final double[][] values,
+                                   final long windowStart) {
+        final FlotState state = (FlotState) super.getState(false);
+        for (int i = 0; i < indexes.length; i++) {
+            state.getDataSets().get(indexes[i]).appendValues(times[i], values[i], windowStart);
+        }
+        callFunction("appendValues", indexes, times, values, Double.valueOf(windowStart));
+    }
+
+    /**
+     * Listener for x axis range selections and zoom outs made by user.
+     */
+    public interface ZoomListener {
+        /**
+         * Invoked when user selects x axis range.
+         * @param since the range start time in milliseconds
+         * @param until the range end time in milliseconds
+         * @param width the chart width in pixels
+         */
+        void zoomIn(final long since, final long until, final int width);
+
+        /**
+         * Invoked when user clicks chart to return to previous range.
+         */
+        void zoomOut();
+    }
 }
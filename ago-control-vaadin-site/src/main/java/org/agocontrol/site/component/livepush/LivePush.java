@@ -0,0 +1,175 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.site.component.livepush;
+
+import com.vaadin.annotations.JavaScript;
+import com.vaadin.external.json.JSONArray;
+import com.vaadin.external.json.JSONException;
+import com.vaadin.server.AbstractJavaScriptExtension;
+import com.vaadin.server.VaadinRequest;
+import com.vaadin.server.VaadinService;
+import com.vaadin.ui.AbstractComponent;
+import com.vaadin.ui.JavaScriptFunction;
+import org.agocontrol.dao.RecordSetLatestDao;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Extension pushing latest value changes of watched record sets to client. Client long polls
+ * LivePushServlet which responds when latest value of a watched record set changes and then
+ * invokes server round trip in which push listeners update the UI. Idle clients only keep
+ * single long poll request open.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+@JavaScript({"livepush.js"})
+public class LivePush extends AbstractJavaScriptExtension {
+    /** The long poll servlet path relative to context path. */
+    public static final String PATH = "/live/";
+    /** The watched record set IDs by token of attached extensions. */
+    private static final Map<String, Collection<String>> RECORD_SET_IDS =
+            new ConcurrentHashMap<String, Collection<String>>();
+
+    /** The push listeners. */
+    private final List<PushListener> pushListeners = new ArrayList<PushListener>();
+    /** The watched record set IDs. */
+    private Collection<String> recordSetIds = new ArrayList<String>();
+
+    /**
+     * The default constructor.
+     */
+    public LivePush() {
+        getState().setUrl(getContextPath() + PATH);
+        getState().setToken(UUID.randomUUID().toString());
+        getState().setVersion(RecordSetLatestDao.getVersion());
+        addFunction("onPush", new JavaScriptFunction() {
+            @Override
+            public void call(final JSONArray arguments) throws JSONException {
+                for (final PushListener pushListener : pushListeners) {
+                    pushListener.pushed();
+                }
+            }
+        });
+    }
+
+    /**
+     * Extends the component.
+     * @param component the component
+     */
+    public final void extend(final AbstractComponent component) {
+        super.extend(component);
+    }
+
+    /**
+     * Sets record sets of which latest value changes are pushed.
+     * @param recordSetIds the record set IDs
+     */
+    public final void setRecordSetIds(final Collection<String> recordSetIds) {
+        this.recordSetIds = new ArrayList<String>(recordSetIds);
+        getState().setVersion(RecordSetLatestDao.getVersion());
+        if (isAttached()) {
+            registerRecordSetIds(getState().getToken(), this.recordSetIds);
+        }
+    }
+
+    /**
+     * Adds push listener.
+     * @param pushListener the push listener
+     */
+    public final void addPushListener(final PushListener pushListener) {
+        pushListeners.add(pushListener);
+    }
+
+    /**
+     * Removes push listener.
+     * @param pushListener the push listener
+     */
+    public final void removePushListener(final PushListener pushListener) {
+        pushListeners.remove(pushListener);
+    }
+
+    @Override
+    public final void attach() {
+        super.attach();
+        registerRecordSetIds(getState().getToken(), recordSetIds);
+    }
+
+    @Override
+    public final void detach() {
+        unregisterRecordSetIds(getState().getToken());
+        super.detach();
+    }
+
+    @Override
+    protected final LivePushState getState() {
+        return (LivePushState) super.getState();
+    }
+
+    /**
+     * @return the context path of current request or empty string for root context
+     */
+    private static String getContextPath() {
+        final VaadinRequest request = VaadinService.getCurrentRequest();
+        if (request == null || request.getContextPath() == null) {
+            return "";
+        }
+        return request.getContextPath();
+    }
+
+    /**
+     * Gets watched record set IDs of attached extension.
+     * @param token the token of the extension
+     * @return the record set IDs or null if no extension with token is attached.
+     */
+    public static Collection<String> getRecordSetIds(final String token) {
+        if (token == null) {
+            return null;
+        }
+        return RECORD_SET_IDS.get(token);
+    }
+
+    /**
+     * Registers watched record set IDs for token so that long poll requests with the token are accepted.
+     * @param token the token
+     * @param recordSetIds the record set IDs
+     */
+    static void registerRecordSetIds(final String token, final Collection<String> recordSetIds) {
+        RECORD_SET_IDS.put(token, recordSetIds);
+    }
+
+    /**
+     * Unregisters token so that long poll requests with the token are responded with 410 Gone.
+     * @param token the token
+     */
+    static void unregisterRecordSetIds(final String token) {
+        RECORD_SET_IDS.remove(token);
+    }
+
+    /**
+     * Listener for pushes of latest value changes.
+     */
+    public interface PushListener {
+        /**
+         * Invoked in server round trip after latest value of watched record set has changed.
+         */
+        void pushed();
+    }
+}
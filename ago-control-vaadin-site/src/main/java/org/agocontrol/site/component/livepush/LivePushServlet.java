@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.site.component.livepush;
+
+import org.agocontrol.dao.RecordSetLatestDao;
+import org.apache.log4j.Logger;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.servlet.AsyncContext;
+import javax.servlet.AsyncEvent;
+import javax.servlet.AsyncListener;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Long poll servlet for LivePush clients. Request parameters are the extension token and the latest
+ * value cache version the client has. Response is sent when latest value of a record set watched by
+ * the extension changes or timeout elapses and contains the cache version. Unknown tokens are
+ * responded with 410 Gone so that clients of detached extensions stop polling. Requests are held
+ * asynchronously so that open long polls do not occupy container threads.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class LivePushServlet extends HttpServlet {
+    /** Java serialization version UID. */
+    private static final long serialVersionUID = 1L;
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(LivePushServlet.class);
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
+
+    /** The maximum time in milliseconds long poll request is held open. */
+    private long timeoutMillis;
+
+    @Override
+    public void init() {
+        timeoutMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "live-push-timeout-millis"));
+    }
+
+    @Override
+    protected void doGet(final HttpServletRequest request, final HttpServletResponse response)
+            throws IOException {
+        final Collection<String> recordSetIds = LivePush.getRecordSetIds(request.getParameter("token"));
+        if (recordSetIds == null) {
+            response.sendError(HttpServletResponse.SC_GONE);
+            return;
+        }
+        final long version;
+        try {
+            version = Long.parseLong(request.getParameter("version"));
+        } catch (final NumberFormatException e) {
+            response.sendError(HttpServletResponse.SC_BAD_REQUEST);
+            return;
+        }
+
+        final AsyncContext asyncContext = request.startAsync();
+        asyncContext.setTimeout(timeoutMillis);
+        final AtomicBoolean responded = new AtomicBoolean(false);
+        final RecordSetLatestDao.ChangeListener changeListener = new RecordSetLatestDao.ChangeListener() {
+            @Override
+            public void changed(final long newVersion) {
+                // Response is written in container thread instead of the thread committing latest values.
+                asyncContext.start(new Runnable() {
+                    @Override
+                    public void run() {
+                        respond(asyncContext, responded, newVersion);
+                    }
+                });
+            }
+        };
+        asyncContext.addListener(new AsyncListener() {
+            @Override
+            public void onComplete(final AsyncEvent event) {
+                RecordSetLatestDao.removeChangeListener(changeListener);
+            }
+
+            @Override
+            public void onTimeout(final AsyncEvent event) {
+                RecordSetLatestDao.removeChangeListener(changeListener);
+                respond(asyncContext, responded, version);
+            }
+
+            @Override
+            public void onError(final AsyncEvent event) {
+                RecordSetLatestDao.removeChangeListener(changeListener);
+                LOGGER.debug("Live push request failed.", event.getThrowable());
+            }
+
+            @Override
+            public void onStartAsync(final AsyncEvent event) {
+            }
+        });
+        RecordSetLatestDao.addChangeListener(recordSetIds, version, changeListener);
+    }
+
+    /**
+     * Writes cache version to response and completes the long poll request unless it has already
+     * been responded.
+     * @param asyncContext the async context of the request
+     * @param responded true if request has been responded
+     * @param version the cache version
+     */
+    private static void respond(final AsyncContext asyncContext, final AtomicBoolean responded,
+                                final long version) {
+        if (!responded.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            final HttpServletResponse response = (HttpServletResponse) asyncContext.getResponse();
+            response.setContentType("text/plain");
+            response.setHeader("Cache-Control", "no-cache");
+            response.getWriter().write(Long.toString(version));
+        } catch (final Exception e) {
+            LOGGER.debug("Live push response failed.", e);
+        } finally {
+            asyncContext.complete();
+        }
+    }
+}
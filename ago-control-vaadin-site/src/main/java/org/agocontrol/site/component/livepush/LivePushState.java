@@ -0,0 +1,74 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.site.component.livepush;
+
+import com.vaadin.shared.JavaScriptExtensionState;
+
+/**
+ * The live push state.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class LivePushState extends JavaScriptExtensionState {
+    /** The URL of the long poll servlet. */
+    private String url;
+    /** The token identifying watched record sets in long poll requests. */
+    private String token;
+    /** The latest value cache version the client has been updated to. */
+    private long version;
+
+    /**
+     * @return the url
+     */
+    public final String getUrl() {
+        return url;
+    }
+
+    /**
+     * @param url the url to set
+     */
+    public final void setUrl(final String url) {
+        this.url = url;
+    }
+
+    /**
+     * @return the token
+     */
+    public final String getToken() {
+        return token;
+    }
+
+    /**
+     * @param token the token to set
+     */
+    public final void setToken(final String token) {
+        this.token = token;
+    }
+
+    /**
+     * @return the version
+     */
+    public final long getVersion() {
+        return version;
+    }
+
+    /**
+     * @param version the version to set
+     */
+    public final void setVersion(final long version) {
+        this.version = version;
+    }
+}
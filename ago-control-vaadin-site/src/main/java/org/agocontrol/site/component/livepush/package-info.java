@@ -0,0 +1,6 @@
+/**
+ * The live push component package.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+package org.agocontrol.site.component.livepush;
@@ -15,7 +15,6 @@
  */
 package org.agocontrol.site.viewlet.dashboard;
 
-import com.github.wolfie.refresher.Refresher;
 import com.vaadin.server.Resource;
 import com.vaadin.ui.Alignment;
 import com.vaadin.ui.Embedded;
@@ -26,12 +25,13 @@ import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.themes.Reindeer;
 import org.agocontrol.dao.ElementDao;
-import org.agocontrol.dao.RecordDao;
 import org.agocontrol.dao.RecordSetDao;
+import org.agocontrol.dao.RecordSetLatestDao;
 import org.agocontrol.model.Element;
-import org.agocontrol.model.Record;
 import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordSetLatest;
 import org.agocontrol.site.AgoControlSiteUI;
+import org.agocontrol.site.component.livepush.LivePush;
 import org.agocontrol.util.DisplayValueConversionUtil;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.model.Company;
@@ -40,12 +40,11 @@ import org.vaadin.addons.sitekit.site.Site;
 import org.vaadin.addons.sitekit.site.SiteContext;
 
 import javax.persistence.EntityManager;
-import javax.persistence.EntityManagerFactory;
+import java.util.ArrayList;
+import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
 
 /**
  * The building control panel.
@@ -105,18 +104,21 @@ public class BuildingControlPanel extends AbstractViewlet {
      */
     private final Map<String, GridLayout> recordsLayouts = new HashMap<String, GridLayout>();
     /**
-     * The record layouts.
+     * The record sets of the building by record set ID.
      */
-    private final BlockingQueue<List<Record>> recordsQueue = new LinkedBlockingQueue<List<Record>>();
+    private final Map<String, RecordSet> recordSets = new HashMap<String, RecordSet>();
     /**
-     * True if record reader should exit.
+     * The value labels by record set ID.
      */
-    private boolean recordReaderExitRequested = false;
+    private final Map<String, Label> recordLabels = new HashMap<String, Label>();
     /**
-     * The record thread.
+     * The created times of shown values by record set ID.
      */
-    private Thread recordReaderThread = null;
-
+    private final Map<String, Date> recordCreated = new HashMap<String, Date>();
+    /**
+     * The live push of latest value changes.
+     */
+    private final LivePush livePush;
 
     /**
      * Default constructor.
@@ -153,79 +155,22 @@ public class BuildingControlPanel extends AbstractViewlet {
 
         setCompositionRoot(layout);
 
-        // the Refresher polls automatically
-        final Refresher refresher = new Refresher();
-        refresher.setRefreshInterval(200);
-        refresher.addListener(new Refresher.RefreshListener() {
+        // latest value changes of shown record sets are pushed
+        livePush = new LivePush();
+        livePush.addPushListener(new LivePush.PushListener() {
             @Override
-            public void refresh(final Refresher refresher) {
-                while (!recordsQueue.isEmpty()) {
-                    final List<Record> records = recordsQueue.remove();
-                    if (records.size() > 0) {
-                        final Record record = records.get(0);
-                        final RecordSet recordSet = record.getRecordSet();
-                        final Element element = recordSet.getElement();
-
-                        final GridLayout recordsLayout = recordsLayouts.get(element.getElementId());
-                        if (recordsLayout == null) {
-                            continue;
-                        }
-
-                        final int columnIndex = recordSet.getType().ordinal();
-                        final int rowIndex = 0;
-                        if (recordsLayout.getComponent(columnIndex, rowIndex) != null) {
-                            continue;
-                        }
-
-                        final VerticalLayout recordLayout = new VerticalLayout();
-                        recordLayout.setSpacing(true);
-                        final Resource recordIcon;
-                        switch (recordSet.getType()) {
-                            case TEMPERATURE:
-                                recordIcon = temperatureIcon;
-                                break;
-                            case BRIGHTNESS:
-                                recordIcon = brightnessIcon;
-                                break;
-                            case HUMIDITY:
-                                recordIcon = humidityIcon;
-                                break;
-                            default:
-                                recordIcon = eventIcon;
-                                break;
-                        }
-
-                        final Embedded embedded = new Embedded(null, recordIcon);
-                        recordLayout.addComponent(embedded);
-                        recordLayout.setExpandRatio(embedded, 0.1f);
-                        embedded.setWidth(32, Unit.PIXELS);
-                        embedded.setHeight(32, Unit.PIXELS);
-
-
-                        final Label label = new Label();
-                        recordLayout.addComponent(label);
-                        recordLayout.setComponentAlignment(label, Alignment.MIDDLE_LEFT);
-
-                        final String recordUnit = recordSet.getUnit();
-                        final String displayUnit = DisplayValueConversionUtil.getDisplayUnit(recordSet.getType(),
-                                recordUnit);
-
-                        final double displayValue = DisplayValueConversionUtil.convertValue(recordSet.getType(),
-                                recordUnit,
-                                displayUnit, record.getValue());
-
-
-                        final String displayValueString = DisplayValueConversionUtil.formatDouble(displayValue);
-
-                        label.setValue(displayValueString + " " + displayUnit);
-                        label.setDescription(record.getCreated().toString());
-
-                        recordsLayout.addComponent(recordLayout, columnIndex, rowIndex);
+            public void pushed() {
+                for (final RecordSet recordSet : recordSets.values()) {
+                    final RecordSetLatest latest = RecordSetLatestDao.getCachedRecordSetLatest(
+                            recordSet.getRecordSetId());
+                    final Date shownCreated = recordCreated.get(recordSet.getRecordSetId());
+                    if (latest != null && (shownCreated == null || latest.getCreated().after(shownCreated))) {
+                        showLatest(recordSet, latest);
                     }
                 }
             }
         });
-        addExtension(refresher);
+        livePush.extend(this);
 
     }
 
@@ -234,19 +179,12 @@ public class BuildingControlPanel extends AbstractViewlet {
      * @param parameters the parameters
      */
     public final synchronized void enter(final String parameters) {
-        if (recordReaderThread != null) {
-            recordReaderExitRequested = true;
-            recordReaderThread.interrupt();
-            try {
-                recordReaderThread.join();
-            } catch (final InterruptedException e) {
-                LOGGER.debug("Record reader thread death wait interrupted.");
-            }
-        }
         elementLayout.removeAllComponents();
         recordsLayouts.clear();
-        recordsQueue.clear();
-        recordReaderExitRequested = false;
+        recordSets.clear();
+        recordLabels.clear();
+        recordCreated.clear();
+        livePush.setRecordSetIds(recordSets.keySet());
 
         final Company company = siteContext.getObject(Company.class);
         if (company == null || parameters == null || parameters.length() == 0) {
@@ -255,6 +193,7 @@ public class BuildingControlPanel extends AbstractViewlet {
 
         final String buildingId = parameters;
         final List<Element> elements = ElementDao.getElements(entityManager, company);
+        final List<Element> buildingElements = new ArrayList<Element>();
 
         boolean started = false;
         for (final Element element : elements) {
@@ -268,6 +207,7 @@ public class BuildingControlPanel extends AbstractViewlet {
             if (element.getTreeDepth() == 0) {
                 break;
             }
+            buildingElements.add(element);
 
             final HorizontalLayout elementLayout = new HorizontalLayout();
             this.elementLayout.addComponent(elementLayout);
@@ -307,32 +247,84 @@ public class BuildingControlPanel extends AbstractViewlet {
 
         }
 
-        recordReaderThread = new Thread(new Runnable() {
-            @Override
-            public void run() {
-                try {
-                    final EntityManager threadEntityManager = ((EntityManagerFactory) getSite().getSiteContext()
-                            .getObject(EntityManagerFactory.class)).createEntityManager();
-                    for (final Element element : elements) {
-                        final List<RecordSet> recordSets = RecordSetDao.getRecordSets(threadEntityManager, element);
-                        if (recordsLayouts.containsKey(element.getElementId())) {
-                            for (final RecordSet recordSet : recordSets) {
-                                recordsQueue.put(RecordDao.getRecords(threadEntityManager, recordSet, 1));
-                                if (recordReaderExitRequested) {
-                                    break;
-                                }
-                            }
-                        }
-                    }
+        for (final RecordSet recordSet : RecordSetDao.getRecordSets(entityManager, buildingElements)) {
+            recordSets.put(recordSet.getRecordSetId(), recordSet);
+        }
+        livePush.setRecordSetIds(recordSets.keySet());
+        final Map<String, RecordSetLatest> latests = RecordSetLatestDao.getRecordSetLatests(entityManager,
+                recordSets.keySet());
+        for (final RecordSet recordSet : recordSets.values()) {
+            final RecordSetLatest latest = latests.get(recordSet.getRecordSetId());
+            if (latest != null) {
+                showLatest(recordSet, latest);
+            }
+        }
+    }
 
-                    Thread.sleep(10);
-                } catch (InterruptedException e) {
-                }
+    /**
+     * Shows latest value of record set. Adds value label to records layout of the element if not already added.
+     * @param recordSet the record set
+     * @param latest the latest value
+     */
+    private void showLatest(final RecordSet recordSet, final RecordSetLatest latest) {
+        Label label = recordLabels.get(recordSet.getRecordSetId());
+        if (label == null) {
+            final GridLayout recordsLayout = recordsLayouts.get(recordSet.getElement().getElementId());
+            if (recordsLayout == null) {
+                return;
+            }
+
+            final int columnIndex = recordSet.getType().ordinal();
+            final int rowIndex = 0;
+            if (recordsLayout.getComponent(columnIndex, rowIndex) != null) {
+                return;
             }
-        });
-        recordReaderThread.start();
 
+            final VerticalLayout recordLayout = new VerticalLayout();
+            recordLayout.setSpacing(true);
+            final Resource recordIcon;
+            switch (recordSet.getType()) {
+                case TEMPERATURE:
+                    recordIcon = temperatureIcon;
+                    break;
+                case BRIGHTNESS:
+                    recordIcon = brightnessIcon;
+                    break;
+                case HUMIDITY:
+                    recordIcon = humidityIcon;
+                    break;
+                default:
+                    recordIcon = eventIcon;
+                    break;
+            }
+
+            final Embedded embedded = new Embedded(null, recordIcon);
+            recordLayout.addComponent(embedded);
+            recordLayout.setExpandRatio(embedded, 0.1f);
+            embedded.setWidth(32, Unit.PIXELS);
+            embedded.setHeight(32, Unit.PIXELS);
+
+            label = new Label();
+            recordLayout.addComponent(label);
+            recordLayout.setComponentAlignment(label, Alignment.MIDDLE_LEFT);
+
+            recordsLayout.addComponent(recordLayout, columnIndex, rowIndex);
+            recordLabels.put(recordSet.getRecordSetId(), label);
+        }
+
+        final String recordUnit = recordSet.getUnit();
+        final String displayUnit = DisplayValueConversionUtil.getDisplayUnit(recordSet.getType(),
+                recordUnit);
+
+        final double displayValue = DisplayValueConversionUtil.convertValue(recordSet.getType(),
+                recordUnit,
+                displayUnit, latest.getValue());
+
+        final String displayValueString = DisplayValueConversionUtil.formatDouble(displayValue);
+
+        label.setValue(displayValueString + " " + displayUnit);
+        label.setDescription(latest.getCreated().toString());
+        recordCreated.put(recordSet.getRecordSetId(), latest.getCreated());
     }
 
 }
-
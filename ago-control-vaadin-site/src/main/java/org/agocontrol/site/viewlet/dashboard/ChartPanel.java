@@ -26,27 +26,33 @@ import com.vaadin.ui.themes.Reindeer;
 import org.agocontrol.dao.ElementDao;
 import org.agocontrol.dao.RecordDao;
 import org.agocontrol.dao.RecordSetDao;
+import org.agocontrol.dao.RecordSetLatestDao;
 import org.agocontrol.model.Element;
 import org.agocontrol.model.ElementType;
-import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSeries;
 import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordSetLatest;
 import org.agocontrol.model.RecordType;
 import org.agocontrol.site.AgoControlSiteUI;
 import org.agocontrol.site.component.flot.DataSet;
 import org.agocontrol.site.component.flot.Flot;
 import org.agocontrol.site.component.flot.FlotState;
+import org.agocontrol.site.component.livepush.LivePush;
 import org.agocontrol.util.DisplayValueConversionUtil;
+import org.agocontrol.util.SeriesDownsamplingUtil;
 import org.apache.log4j.Logger;
 import org.vaadin.addons.sitekit.model.Company;
 import org.vaadin.addons.sitekit.site.AbstractViewlet;
 import org.vaadin.addons.sitekit.site.Site;
 import org.vaadin.addons.sitekit.site.SiteContext;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
 import sun.security.util.UntrustedCertificates;
 
 import javax.persistence.EntityManager;
 import java.util.ArrayList;
 import java.util.Date;
 import java.util.HashMap;
+import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 
@@ -58,6 +64,10 @@ import java.util.Map;
 public class ChartPanel extends AbstractViewlet {
     /** The logger. */
     private static final Logger LOGGER = Logger.getLogger(ChartPanel.class);
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
+    /** The share of point budget live data sets are downsampled to when they exceed the budget. */
+    private static final double LIVE_DOWNSAMPLE_RATIO = 0.75;
 
     /**
      * The layout.
@@ -101,6 +111,54 @@ public class ChartPanel extends AbstractViewlet {
      */
     private final Resource eventIcon;
     private final Label title;
+    /**
+     * The maximum number of raw records loaded per data set before falling back to rollups.
+     */
+    private final int maxRawPoints;
+    /**
+     * The maximum number of points per data set sent to client.
+     */
+    private final int pointBudget;
+    /**
+     * The default chart range in days.
+     */
+    private final int rangeDays;
+    /**
+     * The time in milliseconds live updates requery before previous load for records committed late.
+     */
+    private final long liveOverlapMillis;
+    /**
+     * The chart.
+     */
+    private Flot flot;
+    /**
+     * The record sets of the chart.
+     */
+    private List<RecordSet> chartRecordSets;
+    /**
+     * The elements of the company by element ID.
+     */
+    private Map<String, Element> chartElementMap;
+    /**
+     * The zoom level currently shown.
+     */
+    private ZoomLevel currentZoomLevel;
+    /**
+     * The previous zoom levels, latest first.
+     */
+    private final LinkedList<ZoomLevel> zoomLevels = new LinkedList<ZoomLevel>();
+    /**
+     * The live zoom level covering the default range up to now.
+     */
+    private ZoomLevel liveZoomLevel;
+    /**
+     * The time until which records have been loaded to live zoom level.
+     */
+    private Date liveUntil;
+    /**
+     * The live push of latest value changes.
+     */
+    private final LivePush livePush;
 
 
     /**
@@ -110,6 +168,11 @@ public class ChartPanel extends AbstractViewlet {
         site = ((AgoControlSiteUI) UI.getCurrent()).getSite();
         siteContext = site.getSiteContext();
         entityManager = siteContext.getObject(EntityManager.class);
+        maxRawPoints = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "chart-max-raw-points"));
+        pointBudget = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "chart-point-budget"));
+        rangeDays = Integer.parseInt(PropertiesUtil.getProperty(PROPERTIES_CATEGORY, "chart-range-days"));
+        liveOverlapMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "chart-live-overlap-millis"));
 
         temperatureIcon = site.getIcon("temperature");
         brightnessIcon = site.getIcon("brightness");
@@ -158,6 +221,16 @@ public class ChartPanel extends AbstractViewlet {
         chartLayout.setSizeFull();
 
         setCompositionRoot(layout);
+
+        // latest value changes of chart record sets are pushed
+        livePush = new LivePush();
+        livePush.addPushListener(new LivePush.PushListener() {
+            @Override
+            public void pushed() {
+                appendLiveValues();
+            }
+        });
+        livePush.extend(this);
     }
 
     /**
@@ -200,7 +273,7 @@ public class ChartPanel extends AbstractViewlet {
         title.setIcon(icon);
 
 
-        final List<RecordSet> recordSets = new ArrayList<RecordSet>();
+        final List<Element> parents = new ArrayList<Element>();
 
         final List<Element> elements = ElementDao.getElements(entityManager, company);
         final Map<String, Element> elementMap = new HashMap<String, Element>();
@@ -222,17 +295,27 @@ public class ChartPanel extends AbstractViewlet {
                 continue;
             }
 
-            recordSets.addAll(RecordSetDao.getRecordSetsByParent(
-                    entityManager, element, recordType));
+            parents.add(element);
         }
 
+        final List<RecordSet> recordSets = RecordSetDao.getRecordSetsByParents(entityManager, parents, recordType);
+
         chartLayout.removeAllComponents();
+        zoomLevels.clear();
+        liveZoomLevel = null;
+        chartRecordSets = recordSets;
+        chartElementMap = elementMap;
+        final List<String> recordSetIds = new ArrayList<String>();
+        for (final RecordSet recordSet : recordSets) {
+            recordSetIds.add(recordSet.getRecordSetId());
+        }
+        livePush.setRecordSetIds(recordSetIds);
 
         if (recordSets.size() == 0) {
             return;
         }
 
-        final Flot flot = new Flot();
+        flot = new Flot();
 
         final String recordUnit = recordSets.get(0).getUnit();
         final String displayUnit = DisplayValueConversionUtil.getDisplayUnit(recordSets.get(0).getType(), recordUnit);
@@ -244,22 +327,31 @@ public class ChartPanel extends AbstractViewlet {
         state.getOptions("xaxis").put("mode", "time");
         state.getOptions("xaxis").put("labelsAngle", Double.valueOf(45));
 
-        final Date since = new Date(System.currentTimeMillis() - 7L * 24L * 60L * 60L * 1000L);
-        for (final RecordSet recordSet : recordSets) {
-            final DataSet dataSet = new DataSet();
-            final Element element = recordSet.getElement();
-            final Element parentElement = elementMap.get(element.getParent().getElementId());
-            dataSet.setLabel(parentElement.getName() + " / " + element.getName());
-
-            final List<Record> records = RecordDao.getRecords(entityManager, recordSet, since);
-            for (final Record record : records) {
-                final double displayValue = DisplayValueConversionUtil.convertValue(recordSet.getType(), recordUnit,
-                        displayUnit, record.getValue());
-                        dataSet.addValue(record.getCreated(), displayValue);
+        final Date until = new Date();
+        final Date since = new Date(until.getTime() - rangeDays * 24L * 60L * 60L * 1000L);
+        liveZoomLevel = loadZoomLevel(since, until, pointBudget);
+        liveUntil = until;
+        showZoomLevel(liveZoomLevel);
+
+        flot.addZoomListener(new Flot.ZoomListener() {
+            @Override
+            public void zoomIn(final long zoomSince, final long zoomUntil, final int width) {
+                if (zoomUntil <= zoomSince) {
+                    return;
+                }
+                zoomLevels.push(currentZoomLevel);
+                showZoomLevel(loadZoomLevel(new Date(zoomSince), new Date(zoomUntil),
+                        width > 0 ? Math.min(2 * width, pointBudget) : pointBudget));
             }
 
-            state.getDataSets().add(dataSet);
-        }
+            @Override
+            public void zoomOut() {
+                if (zoomLevels.isEmpty()) {
+                    return;
+                }
+                showZoomLevel(zoomLevels.pop());
+            }
+        });
 
         flot.setHeight(280, Unit.PIXELS);
         //setWidth(400, Unit.PIXELS);
@@ -268,4 +360,191 @@ public class ChartPanel extends AbstractViewlet {
 
     }
 
+    /**
+     * Loads data sets of chart record sets in time range. Raw records are loaded if they fit in the raw
+     * point limit, otherwise rollups of matching resolution, and each series is downsampled to the point
+     * budget.
+     * @param since the range start
+     * @param until the range end
+     * @param budget the maximum number of points per data set
+     * @return the zoom level
+     */
+    private ZoomLevel loadZoomLevel(final Date since, final Date until, final int budget) {
+        final String recordUnit = chartRecordSets.get(0).getUnit();
+        final String displayUnit = DisplayValueConversionUtil.getDisplayUnit(chartRecordSets.get(0).getType(),
+                recordUnit);
+
+        final List<DataSet> dataSets = new ArrayList<DataSet>();
+        final long[] lastTimes = new long[chartRecordSets.size()];
+        final Map<String, RecordSeries> seriesMap = RecordDao.getRecordSeries(entityManager, chartRecordSets,
+                since, until, maxRawPoints);
+        for (int i = 0; i < chartRecordSets.size(); i++) {
+            final RecordSet recordSet = chartRecordSets.get(i);
+            final Element element = recordSet.getElement();
+            final Element parentElement = chartElementMap.get(element.getParent().getElementId());
+
+            final RecordSeries loadedSeries = seriesMap.get(recordSet.getRecordSetId());
+            lastTimes[i] = loadedSeries.size() > 0 ? loadedSeries.getTimes()[loadedSeries.size() - 1]
+                    : Long.MIN_VALUE;
+            final RecordSeries series = SeriesDownsamplingUtil.downsample(loadedSeries, budget);
+            final double[] values = series.getValues();
+            for (int j = 0; j < values.length; j++) {
+                values[j] = DisplayValueConversionUtil.convertValue(recordSet.getType(), recordUnit,
+                        displayUnit, values[j]);
+            }
+
+            dataSets.add(new DataSet(parentElement.getName() + " / " + element.getName(), series.getTimes(),
+                    values));
+        }
+        return new ZoomLevel(since, until, dataSets, lastTimes);
+    }
+
+    /**
+     * Shows zoom level in chart.
+     * @param zoomLevel the zoom level
+     */
+    private void showZoomLevel(final ZoomLevel zoomLevel) {
+        currentZoomLevel = zoomLevel;
+        final FlotState state = flot.getState();
+        if (zoomLevel == liveZoomLevel) {
+            // Live range follows appended values.
+            state.getOptions("xaxis").remove("min");
+            state.getOptions("xaxis").remove("max");
+        } else {
+            state.getOptions("xaxis").put("min", Double.valueOf(zoomLevel.since.getTime()));
+            state.getOptions("xaxis").put("max", Double.valueOf(zoomLevel.until.getTime()));
+        }
+        state.setDataSets(zoomLevel.dataSets);
+    }
+
+    /**
+     * Appends records created after previous load to live zoom level and trims values older than
+     * the default range. Invoked when latest value of chart record set has been pushed. Record sets
+     * are checked from latest value cache first so that database is queried only when there are
+     * new records. Query overlaps previous load by live overlap so that records committed after
+     * previous load but created before it are included, and records not newer than the last record
+     * appended to the series are skipped. Data sets growing over the point budget are downsampled and
+     * sent to client in full, otherwise only the appended values are sent if live zoom level is shown.
+     */
+    private void appendLiveValues() {
+        if (liveZoomLevel == null) {
+            return;
+        }
+        final Date since = new Date(liveUntil.getTime() - liveOverlapMillis);
+        boolean newRecords = false;
+        for (final RecordSet recordSet : chartRecordSets) {
+            final RecordSetLatest latest = RecordSetLatestDao.getCachedRecordSetLatest(recordSet.getRecordSetId());
+            if (latest != null && !latest.getCreated().before(since)) {
+                newRecords = true;
+                break;
+            }
+        }
+        if (!newRecords) {
+            return;
+        }
+
+        final Date until = new Date();
+        final long windowStart = until.getTime() - rangeDays * 24L * 60L * 60L * 1000L;
+        final String recordUnit = chartRecordSets.get(0).getUnit();
+        final String displayUnit = DisplayValueConversionUtil.getDisplayUnit(chartRecordSets.get(0).getType(),
+                recordUnit);
+        final Map<String, RecordSeries> seriesMap = RecordDao.getRecordSeries(entityManager, chartRecordSets,
+                since, until, maxRawPoints);
+        liveUntil = until;
+
+        final List<Integer> indexes = new ArrayList<Integer>();
+        final List<RecordSeries> appendedSeries = new ArrayList<RecordSeries>();
+        boolean overBudget = false;
+        for (int i = 0; i < chartRecordSets.size(); i++) {
+            final RecordSet recordSet = chartRecordSets.get(i);
+            final RecordSeries series = seriesMap.get(recordSet.getRecordSetId());
+            final long lastTime = liveZoomLevel.lastTimes[i];
+            int first = 0;
+            while (first < series.size() && series.getTimes()[first] <= lastTime) {
+                first++;
+            }
+            final int count = series.size() - first;
+            if (count == 0) {
+                continue;
+            }
+            final long[] times = new long[count];
+            final double[] values = new double[count];
+            for (int j = 0; j < count; j++) {
+                times[j] = series.getTimes()[first + j];
+                values[j] = DisplayValueConversionUtil.convertValue(recordSet.getType(), recordUnit,
+                        displayUnit, series.getValues()[first + j]);
+            }
+            liveZoomLevel.lastTimes[i] = times[count - 1];
+            indexes.add(i);
+            appendedSeries.add(new RecordSeries(times, values));
+            if (liveZoomLevel.dataSets.get(i).getTimes().length + count > pointBudget) {
+                overBudget = true;
+            }
+        }
+        if (indexes.size() == 0) {
+            return;
+        }
+
+        if (currentZoomLevel == liveZoomLevel && !overBudget) {
+            final int[] indexArray = new int[indexes.size()];
+            final long[][] times = new long[indexes.size()][];
+            final double[][] values = new double[indexes.size()][];
+            for (int i = 0; i < indexArray.length; i++) {
+                indexArray[i] = indexes.get(i);
+                times[i] = appendedSeries.get(i).getTimes();
+                values[i] = appendedSeries.get(i).getValues();
+            }
+            flot.appendValues(indexArray, times, values, windowStart);
+            return;
+        }
+
+        for (int i = 0; i < indexes.size(); i++) {
+            liveZoomLevel.dataSets.get(indexes.get(i)).appendValues(appendedSeries.get(i).getTimes(),
+                    appendedSeries.get(i).getValues(), windowStart);
+        }
+        if (overBudget) {
+            // Downsampling below the budget leaves room for appends before next full state update.
+            final int threshold = (int) (pointBudget * LIVE_DOWNSAMPLE_RATIO);
+            for (final DataSet dataSet : liveZoomLevel.dataSets) {
+                if (dataSet.getTimes().length > pointBudget) {
+                    final RecordSeries series = SeriesDownsamplingUtil.downsample(
+                            new RecordSeries(dataSet.getTimes(), dataSet.getValues()), threshold);
+                    dataSet.setTimes(series.getTimes());
+                    dataSet.setValues(series.getValues());
+                }
+            }
+            if (currentZoomLevel == liveZoomLevel) {
+                showZoomLevel(liveZoomLevel);
+            }
+        }
+    }
+
+    /**
+     * Chart range with its loaded data sets. Previous zoom levels are kept for instant zoom out.
+     */
+    private static final class ZoomLevel {
+        /** The range start. */
+        private final Date since;
+        /** The range end. */
+        private final Date until;
+        /** The data sets. */
+        private final List<DataSet> dataSets;
+        /** The time stamps of last loaded or appended record of each data set. */
+        private final long[] lastTimes;
+
+        /**
+         * @param since the range start
+         * @param until the range end
+         * @param dataSets the data sets
+         * @param lastTimes the time stamps of last loaded record of each data set
+         */
+        private ZoomLevel(final Date since, final Date until, final List<DataSet> dataSets,
+                          final long[] lastTimes) {
+            this.since = since;
+            this.until = until;
+            this.dataSets = dataSets;
+            this.lastTimes = lastTimes;
+        }
+    }
+
 }
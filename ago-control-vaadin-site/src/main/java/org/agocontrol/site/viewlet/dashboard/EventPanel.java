@@ -21,6 +21,7 @@ import com.vaadin.ui.HorizontalLayout;
 import com.vaadin.ui.Label;
 import com.vaadin.ui.Panel;
 import com.vaadin.ui.Table;
+import com.vaadin.ui.TextField;
 import com.vaadin.ui.UI;
 import com.vaadin.ui.VerticalLayout;
 import com.vaadin.ui.themes.Reindeer;
@@ -73,6 +74,10 @@ public class EventPanel extends AbstractViewlet {
 
         final List<FieldDescriptor> fieldDescriptors = AgoControlSiteFields.getFieldDescriptors(org.agocontrol.model.Event.class);
         final List<FilterDescriptor> filterDefinitions = new ArrayList<FilterDescriptor>();
+        filterDefinitions.add(new FilterDescriptor("subject", "subject", "Subject", new TextField(),
+                200, "=", String.class, ""));
+        filterDefinitions.add(new FilterDescriptor("elementId", "elementId", "Element", new TextField(),
+                150, "=", String.class, ""));
 
         final Site site = ((AgoControlSiteUI) UI.getCurrent()).getSite();
         final EntityManager entityManager = site.getSiteContext().getObject(EntityManager.class);
@@ -94,6 +99,8 @@ public class EventPanel extends AbstractViewlet {
         //grid.setSizeUndefined();
 
         table.setColumnCollapsed("eventId", true);
+        table.setColumnCollapsed("elementId", true);
+        table.setColumnCollapsed("content", true);
         table.setColumnCollapsed("modified", true);
         table.setColumnCollapsed("processed", true);
         table.setColumnCollapsed("processingError", true);
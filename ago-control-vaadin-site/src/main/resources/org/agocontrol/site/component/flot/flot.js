@@ -7,14 +7,51 @@ window.org_agocontrol_site_component_flot_Flot = function() {
         return obj3;
     }
 
+    var self = this;
+    var observing = false;
+    var container, dataSets, options, graph;
+
+    // Draw graph with default options, overwriting with passed options
+    function drawGraph (opts) {
+
+      // Clone the options, so the 'options' variable always keeps intact.
+      var o = Flotr._.extend(Flotr._.clone(options), opts || {});
+
+      // Return a new graph.
+      return Flotr.draw(
+        container,
+        dataSets,
+        o
+      );
+    }
+
+    // Appends live values to drawn data sets, trims values older than window start and redraws.
+    this.appendValues = function(indexes, times, values, windowStart) {
+      for (var i = 0; i < indexes.length; i++) {
+        var data = dataSets[indexes[i]].data;
+        for (var j = 0; j < times[i].length; j++) {
+          // Late values are inserted to their place in time order.
+          var k = data.length;
+          while (k > 0 && data[k - 1][0] > times[i][j]) {
+            k--;
+          }
+          data.splice(k, 0, [times[i][j], values[i][j]]);
+        }
+        var trimmed = 0;
+        while (trimmed < data.length && data[trimmed][0] < windowStart) {
+          trimmed++;
+        }
+        data.splice(0, trimmed);
+      }
+      graph = drawGraph();
+    }
+
     this.onStateChange = function() {
-          var container = this.getElement()
+          container = this.getElement()
           var
             d1    = [],
             start = new Date("2009/01/01 01:00").getTime(),
-            options,
-            graph,
-            i, x, o;
+            i, x;
 
           for (i = 0; i < 100; i++) {
             x = start+(i*1000*3600*24*36.5);
@@ -23,41 +60,42 @@ window.org_agocontrol_site_component_flot_Flot = function() {
 
 
 
-          var dataSets = this.getState().dataSets;
+          // Zip primitive time and value arrays of state data sets to flot data pairs.
+          var stateDataSets = this.getState().dataSets;
+          dataSets = [];
+          for (i = 0; i < stateDataSets.length; i++) {
+            var times = stateDataSets[i].times;
+            var values = stateDataSets[i].values;
+            var data = new Array(times.length);
+            for (var j = 0; j < times.length; j++) {
+              data[j] = [times[j], values[j]];
+            }
+            dataSets.push({label: stateDataSets[i].label, data: data});
+          }
 
           var nestedOptions =  this.getState().options;
           options = nestedOptions.options;
           options = mergeOptions(options, nestedOptions);
 
+          graph = drawGraph();
 
-          // Draw graph with default options, overwriting with passed options
-          function drawGraph (opts) {
-
-            // Clone the options, so the 'options' variable always keeps intact.
-            o = Flotr._.extend(Flotr._.clone(options), opts || {});
+          // Selection and click are observed once as the container is kept over state changes.
+          if (!observing) {
+            observing = true;
+            Flotr.EventAdapter.observe(container, 'flotr:select', function(area){
+              // Draw selected area immediately and let server refetch the range at chart resolution.
+              var opts = Flotr._.extend(Flotr._.clone(options), {});
+              opts.xaxis.min = area.x1;
+              opts.xaxis.max = area.x2;
+              opts.yaxis.min = area.y1;
+              opts.yaxis.max = area.y2;
+              graph = drawGraph(opts);
+              self.onZoomIn(area.x1, area.x2, container.clientWidth);
+            });
 
-            // Return a new graph.
-            return Flotr.draw(
-              container,
-              dataSets,
-              o
-            );
+            // When graph is clicked, return to previous range.
+            Flotr.EventAdapter.observe(container, 'flotr:click', function () { self.onZoomOut(); });
           }
 
-          graph = drawGraph();
-
-          Flotr.EventAdapter.observe(container, 'flotr:select', function(area){
-            // Draw selected area
-            var opts = Flotr._.extend(Flotr._.clone(options), {});
-            opts.xaxis.min = area.x1;
-            opts.xaxis.max = area.x2;
-            opts.yaxis.min = area.y1;
-            opts.yaxis.max = area.y2;
-            graph = drawGraph(opts);
-          });
-
-          // When graph is clicked, draw the graph with default area.
-          Flotr.EventAdapter.observe(container, 'flotr:click', function () { graph = drawGraph(); });
-
     }
 }
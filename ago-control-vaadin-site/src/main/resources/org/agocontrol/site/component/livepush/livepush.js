@@ -0,0 +1,46 @@
+window.org_agocontrol_site_component_livepush_LivePush = function() {
+
+    var self = this;
+    var polling = false;
+    var stopped = false;
+    var version;
+
+    // Long polls the servlet and requests server round trip when watched record sets have changed.
+    function poll() {
+        var state = self.getState();
+        var request = new XMLHttpRequest();
+        request.open('GET', state.url + '?token=' + encodeURIComponent(state.token) + '&version=' + version, true);
+        request.onreadystatechange = function() {
+            if (request.readyState != 4 || stopped) {
+                return;
+            }
+            if (request.status == 200) {
+                var newVersion = parseInt(request.responseText, 10);
+                if (newVersion != version) {
+                    version = newVersion;
+                    self.onPush();
+                }
+                poll();
+            } else if (request.status == 410) {
+                // Extension has been detached.
+                polling = false;
+            } else {
+                // Retry after delay on server or network errors.
+                setTimeout(poll, 5000);
+            }
+        };
+        request.send(null);
+    }
+
+    this.onStateChange = function() {
+        version = this.getState().version;
+        if (!polling) {
+            polling = true;
+            poll();
+        }
+    }
+
+    this.onUnregister = function() {
+        stopped = true;
+    }
+}
@@ -0,0 +1,217 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.apache.log4j.BasicConfigurator;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Test class for batch writer journal replay order.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class BatchWriterTest {
+    /** The maximum number of items in batch. */
+    private static final int BATCH_SIZE = 2;
+    /** The in-memory queue capacity. */
+    private static final int QUEUE_CAPACITY = 4;
+    /** The journal segment size in bytes. */
+    private static final int SEGMENT_SIZE = 64;
+
+    static {
+        BasicConfigurator.configure();
+    }
+
+    /** The journal directory. */
+    private File journalDirectory;
+    /** True if database is simulated to be unavailable. */
+    private volatile boolean databaseDown;
+    /** The saved items in commit order. */
+    private final List<String> savedItems = Collections.synchronizedList(new ArrayList<String>());
+
+    /**
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        journalDirectory = File.createTempFile("batch-writer-test", "");
+        Assert.assertTrue(journalDirectory.delete());
+    }
+
+    /**
+     * Removes journal directory.
+     */
+    @After
+    public void tearDown() {
+        final File[] files = journalDirectory.listFiles();
+        if (files != null) {
+            for (final File file : files) {
+                file.delete();
+            }
+        }
+        journalDirectory.delete();
+    }
+
+    /**
+     * Tests that in-flight batch and queued items are replayed before items spilled earlier
+     * when writer is closed while database is unavailable.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testCloseWhileDatabaseDownPreservesOrder() throws Exception {
+        databaseDown = true;
+        final BatchWriter<String> writer = createWriter();
+        final List<String> expected = write(writer, 0, 20);
+        waitForRetry(writer);
+        writer.close();
+
+        Assert.assertEquals("Nothing should be saved while database is down.", 0, savedItems.size());
+        assertReplayOrder(expected);
+    }
+
+    /**
+     * Tests that items queued while journal batch is retried are replayed after the journal batch
+     * when writer is closed while database is unavailable.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testCloseWhileDatabaseDownDuringJournalReplayPreservesOrder() throws Exception {
+        databaseDown = true;
+        final BatchWriter<String> firstWriter = createWriter();
+        final List<String> expected = write(firstWriter, 0, 10);
+        firstWriter.close();
+
+        final BatchWriter<String> secondWriter = createWriter();
+        waitForRetry(secondWriter);
+        expected.addAll(write(secondWriter, 10, 20));
+        secondWriter.close();
+
+        Assert.assertEquals("Nothing should be saved while database is down.", 0, savedItems.size());
+        assertReplayOrder(expected);
+    }
+
+    /**
+     * Reopens writer with database available and asserts that items are saved in write order.
+     * @param expected the items in write order
+     * @throws Exception if exception occurs in writer.
+     */
+    private void assertReplayOrder(final List<String> expected) throws Exception {
+        databaseDown = false;
+        final BatchWriter<String> writer = createWriter();
+        writer.close();
+        Assert.assertEquals(0, writer.getJournalEntryCount());
+        Assert.assertEquals(expected, savedItems);
+    }
+
+    /**
+     * Writes numbered items.
+     * @param writer the writer
+     * @param from the first item number
+     * @param to the item number after the last item
+     * @return the written items
+     */
+    private List<String> write(final BatchWriter<String> writer, final int from, final int to) {
+        final List<String> items = new ArrayList<String>();
+        for (int i = from; i < to; i++) {
+            final String item = "item-" + i;
+            writer.write(item);
+            items.add(item);
+        }
+        return items;
+    }
+
+    /**
+     * Waits until writer is retrying a batch.
+     * @param writer the writer
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitForRetry(final BatchWriter<String> writer) throws InterruptedException {
+        final long startTimeMillis = System.currentTimeMillis();
+        while (writer.getRetryCount() == 0 && System.currentTimeMillis() - startTimeMillis < 10000) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue("Writer should retry batch while database is down.", writer.getRetryCount() > 0);
+    }
+
+    /**
+     * Creates batch writer which fails to save while database is simulated to be down.
+     * @return the writer
+     * @throws IOException if journal can not be opened.
+     */
+    private BatchWriter<String> createWriter() throws IOException {
+        return new BatchWriter<String>(createEntityManagerFactory(), "test", BATCH_SIZE, 10, QUEUE_CAPACITY,
+                journalDirectory, SEGMENT_SIZE) {
+            @Override
+            protected void saveBatch(final EntityManager entityManager, final List<String> batch) {
+                if (databaseDown) {
+                    throw new IllegalStateException("Database down.");
+                }
+                savedItems.addAll(batch);
+            }
+
+            @Override
+            protected byte[] serialize(final String item) throws IOException {
+                return item.getBytes("UTF-8");
+            }
+
+            @Override
+            protected String deserialize(final EntityManager entityManager, final byte[] data) throws IOException {
+                return new String(data, "UTF-8");
+            }
+        };
+    }
+
+    /**
+     * Creates entity manager factory whose entity managers fail queries while database is simulated to be down.
+     * @return the entity manager factory
+     */
+    private EntityManagerFactory createEntityManagerFactory() {
+        final EntityManager entityManager = (EntityManager) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] {EntityManager.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("createQuery") && databaseDown) {
+                    throw new IllegalStateException("Database down.");
+                }
+                return null;
+            }
+        });
+        return (EntityManagerFactory) Proxy.newProxyInstance(getClass().getClassLoader(),
+                new Class[] {EntityManagerFactory.class}, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                if (method.getName().equals("createEntityManager")) {
+                    return entityManager;
+                }
+                return null;
+            }
+        });
+    }
+}
@@ -0,0 +1,151 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.model.Bus;
+import org.agocontrol.model.BusConnectionStatus;
+import org.agocontrol.model.Element;
+import org.agocontrol.model.ElementType;
+import org.apache.log4j.BasicConfigurator;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.model.PostalAddress;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Arrays;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class for bus client commands against in-memory broker.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class BusClientCommandTest {
+    /** The properties category used in instantiating default services. */
+    private static final String PROPERTIES_CATEGORY = "test";
+    /** The persistence unit to be used. */
+    public static final String PERSISTENCE_UNIT = "ago-control-vaadin-site";
+    /** The maximum time to wait for initial inventory request to be replied. */
+    private static final long INVENTORY_WAIT_MILLIS = 10000;
+    /** The entity manager factory for test. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    static {
+        BasicConfigurator.configure();
+        @SuppressWarnings("rawtypes")
+        final Map properties = new HashMap();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_DRIVER));
+        properties.put(PersistenceUnitProperties.JDBC_URL,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_URL));
+        properties.put(PersistenceUnitProperties.JDBC_USER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_USER));
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_PASSWORD));
+        properties.put(PersistenceUnitProperties.DDL_GENERATION,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.DDL_GENERATION));
+        entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+    }
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The owning company. */
+    private Company owner;
+    /** The bus. */
+    private Bus bus;
+    /** The in-memory broker. */
+    private InMemoryBroker broker;
+
+    /**
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        entityManager = entityManagerFactory.createEntityManager();
+
+        entityManager.getTransaction().begin();
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", invoicingAddress, deliveryAddress);
+        entityManager.persist(owner);
+        bus = new Bus(owner, "Command Test Bus", "localhost", 5672, "agocontrol", "letmein", new Date());
+        bus.setConnectionStatus(BusConnectionStatus.Disconnected);
+        bus.setInventorySynchronized(new Date());
+        bus.setModified(new Date());
+        entityManager.persist(bus);
+        entityManager.getTransaction().commit();
+
+        broker = new InMemoryBroker();
+    }
+
+    /**
+     * Closes broker and entity manager.
+     */
+    @After
+    public void tearDown() {
+        broker.close();
+        entityManager.close();
+    }
+
+    /**
+     * Tests that device in room is saved when replies carry no correlation ID as AgoClient replies do.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testSaveDeviceWithUncorrelatedReplies() throws Exception {
+        broker.setReplyCorrelated(false);
+        final BusClient client = new BusClient(entityManagerFactory, bus, null, broker.getConnectionFactory());
+        try {
+            waitForInventoryRequest(client);
+
+            final Element room = new Element(owner, ElementType.ROOM, "Test Room", "room");
+            final Element device = new Element(room, owner, ElementType.DEVICE, "Test Device", "switch");
+            Assert.assertTrue(client.saveElement(device));
+
+            Assert.assertEquals(Arrays.asList("inventory", "setdevicename", "setdeviceroom"), broker.getCommands());
+            Assert.assertEquals(0, client.getUnmatchedReplyCount());
+            Assert.assertEquals(0, client.getPendingCommandCount());
+        } finally {
+            client.close();
+        }
+    }
+
+    /**
+     * Waits until the inventory request sent at connect has been replied so that it is not pending
+     * together with the tested commands.
+     * @param client the bus client
+     * @throws InterruptedException if thread is interrupted.
+     */
+    private void waitForInventoryRequest(final BusClient client) throws InterruptedException {
+        final long endTimeMillis = System.currentTimeMillis() + INVENTORY_WAIT_MILLIS;
+        while ((broker.getCommands().isEmpty() || client.getPendingCommandCount() > 0)
+                && System.currentTimeMillis() < endTimeMillis) {
+            Thread.sleep(10);
+        }
+        Assert.assertEquals(Arrays.asList("inventory"), broker.getCommands());
+    }
+}
@@ -0,0 +1,156 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.model.Bus;
+import org.agocontrol.model.BusConnectionStatus;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.model.PostalAddress;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class for measuring bus client event consumption throughput against in-memory broker.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class BusClientThroughputTest {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(BusClientThroughputTest.class);
+    /** The properties category used in instantiating default services. */
+    private static final String PROPERTIES_CATEGORY = "test";
+    /** The persistence unit to be used. */
+    public static final String PERSISTENCE_UNIT = "ago-control-vaadin-site";
+    /** The number of events to publish. */
+    private static final int EVENT_COUNT = 10000;
+    /** The minimum required events per second. */
+    private static final int MINIMUM_EVENTS_PER_SECOND = 1000;
+    /** The entity manager factory for test. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    static {
+        BasicConfigurator.configure();
+        @SuppressWarnings("rawtypes")
+        final Map properties = new HashMap();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_DRIVER));
+        properties.put(PersistenceUnitProperties.JDBC_URL,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_URL));
+        properties.put(PersistenceUnitProperties.JDBC_USER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_USER));
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_PASSWORD));
+        properties.put(PersistenceUnitProperties.DDL_GENERATION,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.DDL_GENERATION));
+        entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+    }
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The owning company. */
+    private Company owner;
+    /** The bus. */
+    private Bus bus;
+    /** The in-memory broker. */
+    private InMemoryBroker broker;
+
+    /**
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        entityManager = entityManagerFactory.createEntityManager();
+
+        entityManager.getTransaction().begin();
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", invoicingAddress, deliveryAddress);
+        entityManager.persist(owner);
+        bus = new Bus(owner, "Throughput Test Bus", "localhost", 5672, "agocontrol", "letmein", new Date());
+        bus.setConnectionStatus(BusConnectionStatus.Disconnected);
+        bus.setInventorySynchronized(new Date());
+        bus.setModified(new Date());
+        entityManager.persist(bus);
+        entityManager.getTransaction().commit();
+
+        broker = new InMemoryBroker();
+    }
+
+    /**
+     * Closes broker and entity manager.
+     */
+    @After
+    public void tearDown() {
+        broker.close();
+        entityManager.close();
+    }
+
+    /**
+     * Tests that bus client consumes and stores thousands of events per second.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testEventThroughput() throws Exception {
+        final BusClient client = new BusClient(entityManagerFactory, bus, null, broker.getConnectionFactory());
+
+        final long startTimeMillis = System.currentTimeMillis();
+        for (int i = 0; i < EVENT_COUNT; i++) {
+            final Map<String, Object> values = new HashMap<String, Object>();
+            values.put("uuid", "9d1abba9-cd75-4a12-929c-ef28e1965fc4");
+            values.put("level", Integer.toString(i));
+            values.put("unit", "C");
+            broker.publish("event.environment.temperaturechanged", values);
+        }
+
+        long storedCount = 0;
+        while (storedCount < EVENT_COUNT && System.currentTimeMillis() - startTimeMillis < 60000) {
+            Thread.sleep(50);
+            storedCount = countEvents();
+        }
+        final long elapsedMillis = System.currentTimeMillis() - startTimeMillis;
+        client.close();
+
+        final long eventsPerSecond = storedCount * 1000 / Math.max(1, elapsedMillis);
+        LOGGER.info("Stored " + storedCount + " events in " + elapsedMillis + " ms ("
+                + eventsPerSecond + " events/s).");
+        Assert.assertEquals(EVENT_COUNT, storedCount);
+        Assert.assertTrue("Event throughput too low: " + eventsPerSecond + " events/s.",
+                eventsPerSecond >= MINIMUM_EVENTS_PER_SECOND);
+    }
+
+    /**
+     * @return number of events stored for test company
+     */
+    private long countEvents() {
+        return (Long) entityManager.createQuery("select count(e) from Event as e where e.owner=:owner")
+                .setParameter("owner", owner).getSingleResult();
+    }
+}
@@ -0,0 +1,152 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import org.agocontrol.dao.EventDao;
+import org.agocontrol.model.Event;
+import org.apache.log4j.BasicConfigurator;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.model.PostalAddress;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Test class for event processor.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class EventProcessorTest {
+    /** The properties category used in instantiating default services. */
+    private static final String PROPERTIES_CATEGORY = "test";
+    /** The persistence unit to be used. */
+    public static final String PERSISTENCE_UNIT = "ago-control-vaadin-site";
+    /** The maximum time in milliseconds to wait for event to be processed. */
+    private static final long PROCESSING_TIMEOUT_MILLIS = 30000;
+    /** The entity manager factory for test. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    static {
+        BasicConfigurator.configure();
+        @SuppressWarnings("rawtypes")
+        final Map properties = new HashMap();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_DRIVER));
+        properties.put(PersistenceUnitProperties.JDBC_URL,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_URL));
+        properties.put(PersistenceUnitProperties.JDBC_USER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_USER));
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_PASSWORD));
+        properties.put(PersistenceUnitProperties.DDL_GENERATION,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.DDL_GENERATION));
+        entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+    }
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The owning company. */
+    private Company owner;
+    /** The event processor. */
+    private EventProcessor eventProcessor;
+
+    /**
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        entityManager = entityManagerFactory.createEntityManager();
+
+        entityManager.getTransaction().begin();
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", invoicingAddress, deliveryAddress);
+        entityManager.persist(owner);
+        entityManager.getTransaction().commit();
+
+        eventProcessor = new EventProcessor(entityManagerFactory);
+    }
+
+    /**
+     * Closes event processor and entity manager.
+     * @throws Exception if exception occurs in tear down.
+     */
+    @After
+    public void tearDown() throws Exception {
+        eventProcessor.close();
+        entityManager.close();
+    }
+
+    /**
+     * Tests that event committed after the watermark has passed its created time is processed.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testLateCommittedEventIsProcessed() throws Exception {
+        final Event event = saveEvent(new Date(System.currentTimeMillis() - 60000));
+        waitForProcessed(event);
+        final Date watermarkCreated = EventDao.getEventWatermark(entityManager, owner).getLastEventCreated();
+        Assert.assertEquals(event.getCreated().getTime(), watermarkCreated.getTime());
+
+        final Event lateEvent = saveEvent(new Date(System.currentTimeMillis() - 120000));
+        waitForProcessed(lateEvent);
+        entityManager.clear();
+        Assert.assertEquals("Late event should not move watermark backwards.", watermarkCreated.getTime(),
+                EventDao.getEventWatermark(entityManager, owner).getLastEventCreated().getTime());
+    }
+
+    /**
+     * Saves event of unknown element.
+     * @param created the created time of the event
+     * @return the event
+     */
+    private Event saveEvent(final Date created) {
+        final Event event = new Event(owner, "00000000-0000-0000-0000-000000000000",
+                "event.environment.temperaturechanged", "C", "20", null, created);
+        EventDao.saveEvents(entityManager, Collections.singletonList(event));
+        return event;
+    }
+
+    /**
+     * Waits for event to be marked processed.
+     * @param event the event
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitForProcessed(final Event event) throws InterruptedException {
+        final long startTimeMillis = System.currentTimeMillis();
+        while (System.currentTimeMillis() - startTimeMillis < PROCESSING_TIMEOUT_MILLIS) {
+            entityManager.clear();
+            if (EventDao.getEvent(entityManager, event.getEventId()).getProcessed() != null) {
+                return;
+            }
+            Thread.sleep(100);
+        }
+        Assert.fail("Event was not processed in " + PROCESSING_TIMEOUT_MILLIS + " ms: " + event.getEventId());
+    }
+}
@@ -0,0 +1,378 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import javax.jms.Connection;
+import javax.jms.ConnectionFactory;
+import javax.jms.Destination;
+import javax.jms.MapMessage;
+import javax.jms.Message;
+import javax.jms.MessageConsumer;
+import javax.jms.MessageListener;
+import javax.jms.MessageProducer;
+import javax.jms.Session;
+import javax.jms.TemporaryQueue;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * In-memory stand-in for the ago control qpid broker. Implements the subset of JMS used by BusClient
+ * with dynamic proxies. Messages sent to temporary queues are delivered to the queue consumers and all
+ * other messages are delivered to every topic consumer. Commands with reply destination are answered
+ * with empty map message carrying the command correlation ID unless replies are uncorrelated as
+ * AgoClient replies are.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public final class InMemoryBroker {
+    /** The topic consumers. */
+    private final List<Consumer> topicConsumers = new CopyOnWriteArrayList<Consumer>();
+    /** The temporary queue consumers. */
+    private final List<Consumer> queueConsumers = new CopyOnWriteArrayList<Consumer>();
+    /** The names of commands received in order. */
+    private final List<String> commands = new CopyOnWriteArrayList<String>();
+    /** True if replies carry the command correlation ID. */
+    private volatile boolean replyCorrelated = true;
+
+    /**
+     * @return connection factory connecting to this broker
+     */
+    public ConnectionFactory getConnectionFactory() {
+        return proxy(ConnectionFactory.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getName().equals("createConnection")) {
+                    return createConnection();
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Publishes event to all topic consumers.
+     * @param subject the qpid subject
+     * @param values the map message values
+     */
+    public void publish(final String subject, final Map<String, Object> values) {
+        final MapMessage message = createMapMessage();
+        try {
+            message.setStringProperty("qpid.subject", subject);
+            for (final String key : values.keySet()) {
+                message.setObject(key, values.get(key));
+            }
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+        route(null, message);
+    }
+
+    /**
+     * @param replyCorrelated false to answer commands without correlation ID as AgoClient does
+     */
+    public void setReplyCorrelated(final boolean replyCorrelated) {
+        this.replyCorrelated = replyCorrelated;
+    }
+
+    /**
+     * @return the names of commands received in order
+     */
+    public List<String> getCommands() {
+        return new ArrayList<String>(commands);
+    }
+
+    /**
+     * Stops consumer dispatch threads.
+     */
+    public void close() {
+        for (final Consumer consumer : topicConsumers) {
+            consumer.close();
+        }
+        for (final Consumer consumer : queueConsumers) {
+            consumer.close();
+        }
+    }
+
+    /**
+     * Routes message to consumers.
+     * @param destination the destination or null for topic
+     * @param message the message
+     */
+    private void route(final Destination destination, final Message message) {
+        if (destination instanceof TemporaryQueue) {
+            for (final Consumer consumer : queueConsumers) {
+                if (consumer.destination == destination) {
+                    consumer.queue.add(message);
+                }
+            }
+            return;
+        }
+        for (final Consumer consumer : topicConsumers) {
+            consumer.queue.add(message);
+        }
+        try {
+            if (message instanceof MapMessage && ((MapMessage) message).itemExists("command")
+                    && message.getJMSReplyTo() != null) {
+                commands.add(((MapMessage) message).getString("command"));
+                final MapMessage reply = createMapMessage();
+                if (replyCorrelated) {
+                    reply.setJMSCorrelationID(message.getJMSCorrelationID());
+                }
+                route(message.getJMSReplyTo(), reply);
+            }
+        } catch (final Exception e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    /**
+     * @return new connection proxy
+     */
+    private Connection createConnection() {
+        final List<Consumer> connectionConsumers = new CopyOnWriteArrayList<Consumer>();
+        return proxy(Connection.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getName().equals("createSession")) {
+                    return createSession(connectionConsumers);
+                }
+                if (method.getName().equals("close")) {
+                    for (final Consumer consumer : connectionConsumers) {
+                        consumer.close();
+                        topicConsumers.remove(consumer);
+                        queueConsumers.remove(consumer);
+                    }
+                    return null;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * @param connectionConsumers the consumers of the owning connection
+     * @return new session proxy
+     */
+    private Session createSession(final List<Consumer> connectionConsumers) {
+        return proxy(Session.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+                if (method.getName().equals("createMapMessage")) {
+                    return createMapMessage();
+                }
+                if (method.getName().equals("createTemporaryQueue")) {
+                    return proxy(TemporaryQueue.class, new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            return defaultValue(proxy, method, args);
+                        }
+                    });
+                }
+                if (method.getName().equals("createProducer")) {
+                    final Destination destination = (Destination) args[0];
+                    return proxy(MessageProducer.class, new InvocationHandler() {
+                        @Override
+                        public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                            if (method.getName().equals("send")) {
+                                route(destination, (Message) args[0]);
+                                return null;
+                            }
+                            return defaultValue(proxy, method, args);
+                        }
+                    });
+                }
+                if (method.getName().equals("createConsumer")) {
+                    final Consumer consumer = new Consumer((Destination) args[0]);
+                    connectionConsumers.add(consumer);
+                    if (args[0] instanceof TemporaryQueue) {
+                        queueConsumers.add(consumer);
+                    } else {
+                        topicConsumers.add(consumer);
+                    }
+                    return consumer.proxy;
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * @return new map message proxy
+     */
+    MapMessage createMapMessage() {
+        final Map<String, Object> values = new HashMap<String, Object>();
+        final Map<String, Object> properties = new HashMap<String, Object>();
+        final Map<String, Object> headers = new HashMap<String, Object>();
+        return proxy(MapMessage.class, new InvocationHandler() {
+            @Override
+            public Object invoke(final Object proxy, final Method method, final Object[] args) {
+                final String name = method.getName();
+                if (name.equals("getMapNames")) {
+                    return Collections.enumeration(values.keySet());
+                } else if (name.equals("itemExists")) {
+                    return values.containsKey(args[0]);
+                } else if (name.startsWith("get") && name.endsWith("Property")) {
+                    return properties.get(args[0]);
+                } else if (name.startsWith("set") && name.endsWith("Property")) {
+                    properties.put((String) args[0], args[1]);
+                    return null;
+                } else if (name.startsWith("getJMS")) {
+                    return headers.get(name.substring(3));
+                } else if (name.startsWith("setJMS")) {
+                    headers.put(name.substring(3), args[0]);
+                    return null;
+                } else if (name.startsWith("get") && args != null && args.length == 1) {
+                    return values.get(args[0]);
+                } else if (name.startsWith("set") && args != null && args.length == 2) {
+                    values.put((String) args[0], args[1]);
+                    return null;
+                } else if (name.equals("toString")) {
+                    return values.toString();
+                }
+                return defaultValue(proxy, method, args);
+            }
+        });
+    }
+
+    /**
+     * Creates proxy for given interface.
+     * @param type the interface
+     * @param handler the invocation handler
+     * @param <T> the interface type
+     * @return the proxy
+     */
+    private static <T> T proxy(final Class<T> type, final InvocationHandler handler) {
+        return type.cast(Proxy.newProxyInstance(InMemoryBroker.class.getClassLoader(), new Class[] {type}, handler));
+    }
+
+    /**
+     * Returns default value for method not implemented by the stand-in.
+     * @param proxy the proxy
+     * @param method the method
+     * @param args the arguments
+     * @return the default value
+     */
+    private static Object defaultValue(final Object proxy, final Method method, final Object[] args) {
+        if (method.getName().equals("equals")) {
+            return proxy == args[0];
+        }
+        if (method.getName().equals("hashCode")) {
+            return System.identityHashCode(proxy);
+        }
+        if (method.getName().equals("toString")) {
+            return method.getDeclaringClass().getSimpleName() + "@" + System.identityHashCode(proxy);
+        }
+        if (method.getReturnType() == boolean.class) {
+            return false;
+        }
+        if (method.getReturnType() == int.class || method.getReturnType() == long.class) {
+            return method.getReturnType() == int.class ? (Object) 0 : (Object) 0L;
+        }
+        return null;
+    }
+
+    /**
+     * Consumer which dispatches messages to listener from own thread as qpid session would.
+     */
+    private static final class Consumer {
+        /** The destination. */
+        private final Destination destination;
+        /** The pending messages. */
+        private final BlockingQueue<Message> queue = new LinkedBlockingQueue<Message>();
+        /** The consumer proxy. */
+        private final MessageConsumer proxy;
+        /** The dispatch thread. */
+        private Thread dispatchThread;
+        /** True if consumer is closed. */
+        private volatile boolean closed = false;
+
+        /**
+         * @param destination the destination
+         */
+        private Consumer(final Destination destination) {
+            this.destination = destination;
+            this.proxy = proxy(MessageConsumer.class, new InvocationHandler() {
+                @Override
+                public Object invoke(final Object proxy, final Method method, final Object[] args)
+                        throws Throwable {
+                    if (method.getName().equals("setMessageListener")) {
+                        startDispatch((MessageListener) args[0]);
+                        return null;
+                    }
+                    if (method.getName().equals("receive")) {
+                        return args == null ? queue.take() : queue.poll((Long) args[0], TimeUnit.MILLISECONDS);
+                    }
+                    if (method.getName().equals("close")) {
+                        close();
+                        return null;
+                    }
+                    return defaultValue(proxy, method, args);
+                }
+            });
+        }
+
+        /**
+         * Starts dispatching messages to listener.
+         * @param listener the listener
+         */
+        private synchronized void startDispatch(final MessageListener listener) {
+            dispatchThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    while (!closed) {
+                        try {
+                            final Message message = queue.poll(100, TimeUnit.MILLISECONDS);
+                            if (message != null) {
+                                listener.onMessage(message);
+                            }
+                        } catch (final InterruptedException e) {
+                            return;
+                        }
+                    }
+                }
+            });
+            dispatchThread.start();
+        }
+
+        /**
+         * Closes the consumer and waits for listener in progress to return.
+         */
+        private void close() {
+            final Thread thread;
+            synchronized (this) {
+                closed = true;
+                thread = dispatchThread;
+            }
+            if (thread != null && thread != Thread.currentThread()) {
+                try {
+                    thread.join();
+                } catch (final InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,153 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.client;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.junit.Assert;
+import org.junit.Test;
+
+import javax.jms.JMSException;
+import javax.jms.MapMessage;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.Charset;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Benchmark comparing allocation rate of streaming map message encoder against converting message
+ * to map and serializing the map with object mapper.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class MapMessageJsonEncoderBenchmarkTest {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(MapMessageJsonEncoderBenchmarkTest.class);
+    /** The number of warm up iterations. */
+    private static final int WARM_UP_ITERATIONS = 20000;
+    /** The number of measured iterations. */
+    private static final int ITERATIONS = 100000;
+
+    static {
+        BasicConfigurator.configure();
+    }
+    /** JSON object mapper. */
+    private final ObjectMapper mapper = new ObjectMapper();
+
+    /**
+     * Measures bytes allocated per encoded event for both encoders.
+     * @throws Exception if exception occurs during benchmark.
+     */
+    @Test
+    public void testAllocationRate() throws Exception {
+        final MapMessage message = createEventMessage();
+        final MapMessageJsonEncoder encoder = new MapMessageJsonEncoder();
+
+        Assert.assertEquals(mapper.readValue(encodeWithMap(message), HashMap.class),
+                mapper.readValue(encoder.encode(message, "event.environment.temperaturechanged"), HashMap.class));
+
+        final java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        if (!(threadMXBean instanceof com.sun.management.ThreadMXBean)) {
+            LOGGER.info("Thread allocation measurement not supported, skipping benchmark.");
+            return;
+        }
+        final com.sun.management.ThreadMXBean allocationMXBean = (com.sun.management.ThreadMXBean) threadMXBean;
+        final long threadId = Thread.currentThread().getId();
+
+        for (int i = 0; i < WARM_UP_ITERATIONS; i++) {
+            encodeWithMap(message);
+            encoder.encode(message, "event.environment.temperaturechanged");
+        }
+
+        long startBytes = allocationMXBean.getThreadAllocatedBytes(threadId);
+        long startTimeNanos = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encodeWithMap(message);
+        }
+        final long mapBytesPerEvent = (allocationMXBean.getThreadAllocatedBytes(threadId) - startBytes) / ITERATIONS;
+        final long mapNanosPerEvent = (System.nanoTime() - startTimeNanos) / ITERATIONS;
+
+        startBytes = allocationMXBean.getThreadAllocatedBytes(threadId);
+        startTimeNanos = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            encoder.encode(message, "event.environment.temperaturechanged");
+        }
+        final long streamBytesPerEvent = (allocationMXBean.getThreadAllocatedBytes(threadId) - startBytes)
+                / ITERATIONS;
+        final long streamNanosPerEvent = (System.nanoTime() - startTimeNanos) / ITERATIONS;
+
+        LOGGER.info("Map and object mapper: " + mapBytesPerEvent + " bytes/event " + mapNanosPerEvent
+                + " ns/event");
+        LOGGER.info("Streaming encoder: " + streamBytesPerEvent + " bytes/event " + streamNanosPerEvent
+                + " ns/event");
+        Assert.assertTrue("Streaming encoder allocates more than map conversion.",
+                streamBytesPerEvent < mapBytesPerEvent);
+    }
+
+    /**
+     * @return event message with string, UTF-8 byte array and nested map values
+     * @throws JMSException if exception occurs in message construction.
+     */
+    private MapMessage createEventMessage() throws JMSException {
+        final Charset utf8 = Charset.forName("UTF-8");
+        final MapMessage message = new InMemoryBroker().createMapMessage();
+        message.setStringProperty("qpid.subject", "event.environment.temperaturechanged");
+        message.setObject("uuid", "9d1abba9-cd75-4a12-929c-ef28e1965fc4");
+        message.setObject("level", "21.5".getBytes(utf8));
+        message.setObject("unit", "\u00b0C".getBytes(utf8));
+        final Map<String, Object> source = new HashMap<String, Object>();
+        source.put("handled-by", "zwave".getBytes(utf8));
+        source.put("node", 12);
+        message.setObject("source", source);
+        return message;
+    }
+
+    /**
+     * Encodes message by converting it to map and serializing the map with object mapper.
+     * @param message the message
+     * @return the JSON string
+     * @throws Exception if exception occurs in encoding.
+     */
+    private String encodeWithMap(final MapMessage message) throws Exception {
+        final Map<String, Object> map = new HashMap<String, Object>();
+        final Enumeration<String> keys = message.getMapNames();
+        while (keys.hasMoreElements()) {
+            final String key = keys.nextElement();
+            map.put(key, message.getObject(key));
+        }
+        convertByteArrayValuesToStrings(map);
+        map.put("event", "event.environment.temperaturechanged");
+        return mapper.writeValueAsString(map);
+    }
+
+    /**
+     * Converts byte array values to string recursively.
+     * @param map the map
+     */
+    private void convertByteArrayValuesToStrings(final Map<String, Object> map) {
+        for (final String key : map.keySet()) {
+            final Object object = map.get(key);
+            if (object instanceof Map) {
+                convertByteArrayValuesToStrings((Map) object);
+            }
+            if (object instanceof byte[]) {
+                map.put(key, new String((byte[]) object, Charset.forName("UTF-8")));
+            }
+        }
+    }
+}
@@ -0,0 +1,248 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.Element;
+import org.agocontrol.model.ElementType;
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSeries;
+import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordType;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.eclipse.persistence.sessions.SessionEvent;
+import org.eclipse.persistence.sessions.SessionEventAdapter;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.model.PostalAddress;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Test class for asserting that chart data of a building is loaded with constant number of queries
+ * regardless of the number of rooms and record sets.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordSeriesQueryCountTest {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(RecordSeriesQueryCountTest.class);
+    /** The properties category used in instantiating default services. */
+    private static final String PROPERTIES_CATEGORY = "test";
+    /** The persistence unit to be used. */
+    public static final String PERSISTENCE_UNIT = "ago-control-vaadin-site";
+    /** The number of rooms in building. */
+    private static final int ROOM_COUNT = 3;
+    /** The number of devices in room. */
+    private static final int DEVICE_COUNT = 6;
+    /** The maximum number of points per series. */
+    private static final int MAX_POINTS = 4;
+    /** The maximum number of queries in loading record sets. */
+    private static final int MAX_RECORD_SET_QUERIES = 1;
+    /** The maximum number of queries in loading series: rollup counts, raw records and rollups. */
+    private static final int MAX_SERIES_QUERIES = 3;
+    /** The entity manager factory for test. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    static {
+        BasicConfigurator.configure();
+        @SuppressWarnings("rawtypes")
+        final Map properties = new HashMap();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_DRIVER));
+        properties.put(PersistenceUnitProperties.JDBC_URL,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_URL));
+        properties.put(PersistenceUnitProperties.JDBC_USER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_USER));
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_PASSWORD));
+        properties.put(PersistenceUnitProperties.DDL_GENERATION,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.DDL_GENERATION));
+        properties.put(PersistenceUnitProperties.SESSION_EVENT_LISTENER_CLASS, QueryCounter.class.getName());
+        entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+    }
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The rooms of the building. */
+    private List<Element> rooms;
+    /** The number of records by record set ID. */
+    private Map<String, Integer> recordCounts;
+
+    /**
+     * Creates building with rooms and devices which have temperature and humidity record sets
+     * and another building which should not be included.
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        entityManager = entityManagerFactory.createEntityManager();
+
+        entityManager.getTransaction().begin();
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        final Company owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", invoicingAddress,
+                deliveryAddress);
+        entityManager.persist(owner);
+        entityManager.getTransaction().commit();
+
+        final Date now = new Date();
+        final List<Element> elements = new ArrayList<Element>();
+        final List<RecordSet> recordSets = new ArrayList<RecordSet>();
+        final List<Record> records = new ArrayList<Record>();
+        final List<RecordSet> temperatureRecordSets = new ArrayList<RecordSet>();
+        final List<Integer> temperatureRecordCounts = new ArrayList<Integer>();
+        rooms = new ArrayList<Element>();
+        recordCounts = new HashMap<String, Integer>();
+
+        for (int b = 0; b < 2; b++) {
+            final Element building = new Element(owner, ElementType.BUILDING, "Building " + b, "building");
+            elements.add(building);
+            for (int r = 0; r < ROOM_COUNT; r++) {
+                final Element room = new Element(building, owner, ElementType.ROOM, "Room " + r, "room");
+                elements.add(room);
+                if (b == 0) {
+                    rooms.add(room);
+                }
+                for (int d = 0; d < DEVICE_COUNT; d++) {
+                    final Element device = new Element(room, owner, ElementType.DEVICE, "Device " + d,
+                            "temperaturesensor");
+                    elements.add(device);
+                    final RecordSet temperature = new RecordSet(owner, device, "temperature",
+                            RecordType.TEMPERATURE, "degC", now);
+                    final RecordSet humidity = new RecordSet(owner, device, "humidity",
+                            RecordType.HUMIDITY, "%", now);
+                    recordSets.add(temperature);
+                    recordSets.add(humidity);
+                    for (int i = 0; i <= d; i++) {
+                        final Date created = new Date(now.getTime() - (d - i) * 1000L);
+                        records.add(new Record(owner, temperature, 20 + i, created));
+                        records.add(new Record(owner, humidity, 50 + i, created));
+                    }
+                    temperatureRecordSets.add(temperature);
+                    temperatureRecordCounts.add(d + 1);
+                }
+            }
+        }
+
+        ElementDao.saveElements(entityManager, elements);
+        RecordDao.saveRecords(entityManager, recordSets, records);
+        for (int i = 0; i < temperatureRecordSets.size(); i++) {
+            recordCounts.put(temperatureRecordSets.get(i).getRecordSetId(), temperatureRecordCounts.get(i));
+        }
+    }
+
+    /**
+     * Closes entity manager.
+     */
+    @After
+    public void tearDown() {
+        entityManager.close();
+    }
+
+    /**
+     * Tests that record sets of building and their series are loaded with constant number of queries.
+     */
+    @Test
+    public void testBuildingSeriesQueryCount() {
+        final Date until = new Date(System.currentTimeMillis() + 60000L);
+        final Date since = new Date(until.getTime() - 7L * 24L * 60L * 60L * 1000L);
+
+        QueryCounter.reset();
+        final List<RecordSet> recordSets = RecordSetDao.getRecordSetsByParents(entityManager, rooms,
+                RecordType.TEMPERATURE);
+        final int recordSetQueries = QueryCounter.getCount();
+
+        QueryCounter.reset();
+        final Map<String, RecordSeries> seriesMap = RecordDao.getRecordSeries(entityManager, recordSets,
+                since, until, MAX_POINTS);
+        final int seriesQueries = QueryCounter.getCount();
+
+        LOGGER.info("Loaded " + recordSets.size() + " record sets with " + recordSetQueries
+                + " queries and their series with " + seriesQueries + " queries.");
+
+        Assert.assertEquals(ROOM_COUNT * DEVICE_COUNT, recordSets.size());
+        Assert.assertEquals(ROOM_COUNT * DEVICE_COUNT, seriesMap.size());
+        Assert.assertTrue("Too many record set queries: " + recordSetQueries,
+                recordSetQueries <= MAX_RECORD_SET_QUERIES);
+        Assert.assertTrue("Too many series queries: " + seriesQueries, seriesQueries <= MAX_SERIES_QUERIES);
+
+        for (final RecordSet recordSet : recordSets) {
+            Assert.assertEquals(RecordType.TEMPERATURE, recordSet.getType());
+            Assert.assertTrue(rooms.contains(recordSet.getElement().getParent()));
+            final int recordCount = recordCounts.get(recordSet.getRecordSetId());
+            final RecordSeries series = seriesMap.get(recordSet.getRecordSetId());
+            if (recordCount <= MAX_POINTS) {
+                Assert.assertEquals(recordCount, series.size());
+                for (int i = 0; i < series.size(); i++) {
+                    Assert.assertEquals(20 + i, series.getValues()[i], 0.0001);
+                }
+            } else {
+                Assert.assertTrue(series.size() > 0);
+                Assert.assertTrue(series.size() <= MAX_POINTS);
+                for (int i = 0; i < series.size(); i++) {
+                    Assert.assertTrue(series.getValues()[i] >= 20);
+                    Assert.assertTrue(series.getValues()[i] < 20 + recordCount);
+                }
+            }
+            for (int i = 1; i < series.size(); i++) {
+                Assert.assertTrue(series.getTimes()[i - 1] <= series.getTimes()[i]);
+            }
+        }
+    }
+
+    /**
+     * Session event listener counting SQL calls executed against database.
+     */
+    public static final class QueryCounter extends SessionEventAdapter {
+        /** The number of calls since reset. */
+        private static final AtomicInteger COUNT = new AtomicInteger();
+
+        @Override
+        public void postExecuteCall(final SessionEvent event) {
+            COUNT.incrementAndGet();
+        }
+
+        /**
+         * Resets call count.
+         */
+        public static void reset() {
+            COUNT.set(0);
+        }
+
+        /**
+         * @return number of calls since reset
+         */
+        public static int getCount() {
+            return COUNT.get();
+        }
+    }
+}
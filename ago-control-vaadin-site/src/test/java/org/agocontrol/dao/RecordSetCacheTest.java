@@ -0,0 +1,59 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.junit.Assert;
+import org.junit.Test;
+
+/**
+ * Test class for record set cache.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordSetCacheTest {
+
+    /**
+     * Tests that element looked up before invalidation is not cached as unknown.
+     */
+    @Test
+    public void testUnknownElementNotCachedAfterInvalidation() {
+        final long generation = RecordSetCache.getGeneration();
+        RecordSetCache.invalidate();
+        RecordSetCache.putUnknownElement("unknown-1", generation);
+        Assert.assertFalse(RecordSetCache.isUnknownElement("unknown-1"));
+
+        RecordSetCache.putUnknownElement("unknown-1", RecordSetCache.getGeneration());
+        Assert.assertTrue(RecordSetCache.isUnknownElement("unknown-1"));
+        RecordSetCache.invalidate();
+        Assert.assertFalse(RecordSetCache.isUnknownElement("unknown-1"));
+    }
+
+    /**
+     * Tests that element owned by another company is cached per company until invalidation.
+     */
+    @Test
+    public void testForeignElementCached() {
+        final long generation = RecordSetCache.getGeneration();
+        RecordSetCache.putForeignElement("foreign-1", "company-1", generation);
+        Assert.assertTrue(RecordSetCache.isForeignElement("foreign-1", "company-1"));
+        Assert.assertFalse(RecordSetCache.isForeignElement("foreign-1", "company-2"));
+
+        RecordSetCache.invalidate();
+        Assert.assertFalse(RecordSetCache.isForeignElement("foreign-1", "company-1"));
+        RecordSetCache.putForeignElement("foreign-1", "company-1", generation);
+        Assert.assertFalse(RecordSetCache.isForeignElement("foreign-1", "company-1"));
+    }
+}
@@ -0,0 +1,149 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.Element;
+import org.agocontrol.model.ElementType;
+import org.agocontrol.model.Record;
+import org.agocontrol.model.RecordSet;
+import org.agocontrol.model.RecordType;
+import org.apache.log4j.BasicConfigurator;
+import org.eclipse.persistence.config.PersistenceUnitProperties;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.model.Company;
+import org.vaadin.addons.sitekit.model.PostalAddress;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.persistence.EntityManager;
+import javax.persistence.EntityManagerFactory;
+import javax.persistence.Persistence;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Test class for record set DAO.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordSetDaoTest {
+    /** The properties category used in instantiating default services. */
+    private static final String PROPERTIES_CATEGORY = "test";
+    /** The persistence unit to be used. */
+    public static final String PERSISTENCE_UNIT = "ago-control-vaadin-site";
+    /** The entity manager factory for test. */
+    private static EntityManagerFactory entityManagerFactory;
+
+    static {
+        BasicConfigurator.configure();
+        @SuppressWarnings("rawtypes")
+        final Map properties = new HashMap();
+        properties.put(PersistenceUnitProperties.JDBC_DRIVER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_DRIVER));
+        properties.put(PersistenceUnitProperties.JDBC_URL,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_URL));
+        properties.put(PersistenceUnitProperties.JDBC_USER,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_USER));
+        properties.put(PersistenceUnitProperties.JDBC_PASSWORD,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.JDBC_PASSWORD));
+        properties.put(PersistenceUnitProperties.DDL_GENERATION,
+                PropertiesUtil.getProperty(PROPERTIES_CATEGORY, PersistenceUnitProperties.DDL_GENERATION));
+        entityManagerFactory = Persistence.createEntityManagerFactory(PERSISTENCE_UNIT, properties);
+    }
+
+    /** The entity manager for test. */
+    private EntityManager entityManager;
+    /** The record set. */
+    private RecordSet recordSet;
+
+    /**
+     * Creates record set with records, rollups and latest value.
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        entityManager = entityManagerFactory.createEntityManager();
+
+        entityManager.getTransaction().begin();
+        final PostalAddress invoicingAddress = new PostalAddress("", "", "", "", "", "");
+        final PostalAddress deliveryAddress = new PostalAddress("", "", "", "", "", "");
+        entityManager.persist(invoicingAddress);
+        entityManager.persist(deliveryAddress);
+        final Company owner = new Company("1", "2", "3", "4", "5", "6", "7", "8", "9", "10", invoicingAddress,
+                deliveryAddress);
+        entityManager.persist(owner);
+        entityManager.getTransaction().commit();
+
+        final Element device = new Element(owner, ElementType.DEVICE, "Device", "temperaturesensor");
+        ElementDao.saveElements(entityManager, Collections.singletonList(device));
+
+        final Date now = new Date();
+        recordSet = new RecordSet(owner, device, "temperature", RecordType.TEMPERATURE, "degC", now);
+        final List<Record> records = new ArrayList<Record>();
+        for (int i = 0; i < 10; i++) {
+            records.add(new Record(owner, recordSet, 20 + i, new Date(now.getTime() - i * 60000L)));
+        }
+        RecordDao.saveRecords(entityManager, Collections.singletonList(recordSet), records);
+    }
+
+    /**
+     * Closes entity manager.
+     */
+    @After
+    public void tearDown() {
+        entityManager.close();
+    }
+
+    /**
+     * Tests that record set which has records is removed together with its records, rollups and latest value.
+     */
+    @Test
+    public void testRemoveRecordSetWithRecords() {
+        Assert.assertEquals(10L, count("Record"));
+        Assert.assertTrue(count("RecordRollup") > 0);
+        Assert.assertEquals(1L, count("RecordSetLatest"));
+
+        RecordSetDao.removeRecordSet(entityManager, recordSet);
+        entityManager.clear();
+
+        Assert.assertEquals(0L, count("Record"));
+        Assert.assertEquals(0L, count("RecordRollup"));
+        Assert.assertEquals(0L, count("RecordSetLatest"));
+        Assert.assertEquals(0L, ((Number) entityManager.createQuery(
+                "select count(e) from RecordSet as e where e.recordSetId=:recordSetId")
+                .setParameter("recordSetId", recordSet.getRecordSetId()).getSingleResult()).longValue());
+        Assert.assertNull(RecordSetLatestDao.getCachedRecordSetLatest(recordSet.getRecordSetId()));
+    }
+
+    /**
+     * Counts entities of the record set.
+     * @param entityName the entity name
+     * @return the number of entities
+     */
+    private long count(final String entityName) {
+        final String recordSetPath = entityName.equals("RecordSetLatest")
+                ? "e.recordSetId" : "e.recordSet.recordSetId";
+        return ((Number) entityManager.createQuery("select count(e) from " + entityName + " as e where "
+                + recordSetPath + "=:recordSetId").setParameter("recordSetId", recordSet.getRecordSetId())
+                .getSingleResult()).longValue();
+    }
+}
@@ -0,0 +1,136 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.dao;
+
+import org.agocontrol.model.RecordSetLatest;
+import org.junit.Assert;
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Test class for latest value change notifications of record set latest DAO.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class RecordSetLatestDaoTest {
+
+    /**
+     * Tests that listener is notified of change of listened record set with new cache version.
+     */
+    @Test
+    public void testChangeNotified() {
+        final long version = RecordSetLatestDao.getVersion();
+        final TestChangeListener changeListener = new TestChangeListener();
+        RecordSetLatestDao.addChangeListener(Arrays.asList("notified-1", "notified-2"), version, changeListener);
+        Assert.assertEquals(0, changeListener.getNotifications());
+
+        cache("notified-2", 21.5);
+        Assert.assertEquals(1, changeListener.getNotifications());
+        Assert.assertEquals(RecordSetLatestDao.getVersion(), changeListener.getVersion());
+        Assert.assertTrue(changeListener.getVersion() > version);
+
+        cache("notified-1", 22.5);
+        Assert.assertEquals("Listener should be notified only once.", 1, changeListener.getNotifications());
+    }
+
+    /**
+     * Tests that listener is not notified of changes of other record sets.
+     */
+    @Test
+    public void testOtherChangeNotNotified() {
+        final TestChangeListener changeListener = new TestChangeListener();
+        RecordSetLatestDao.addChangeListener(Collections.singletonList("watched-1"),
+                RecordSetLatestDao.getVersion(), changeListener);
+
+        cache("other-1", 21.5);
+        Assert.assertEquals(0, changeListener.getNotifications());
+
+        RecordSetLatestDao.removeChangeListener(changeListener);
+    }
+
+    /**
+     * Tests that listener is notified immediately if change has happened after given version.
+     */
+    @Test
+    public void testPastChangeNotified() {
+        final long version = RecordSetLatestDao.getVersion();
+        cache("past-1", 21.5);
+
+        final TestChangeListener changeListener = new TestChangeListener();
+        RecordSetLatestDao.addChangeListener(Collections.singletonList("past-1"), version, changeListener);
+        Assert.assertEquals(1, changeListener.getNotifications());
+        Assert.assertEquals(RecordSetLatestDao.getVersion(), changeListener.getVersion());
+    }
+
+    /**
+     * Tests that removed listener is not notified.
+     */
+    @Test
+    public void testRemovedNotNotified() {
+        final TestChangeListener changeListener = new TestChangeListener();
+        RecordSetLatestDao.addChangeListener(Collections.singletonList("removed-1"),
+                RecordSetLatestDao.getVersion(), changeListener);
+        RecordSetLatestDao.removeChangeListener(changeListener);
+
+        cache("removed-1", 21.5);
+        Assert.assertEquals(0, changeListener.getNotifications());
+    }
+
+    /**
+     * Adds committed latest value to cache.
+     * @param recordSetId the record set ID
+     * @param value the value
+     */
+    private void cache(final String recordSetId, final double value) {
+        final List<RecordSetLatest> latests = Collections.singletonList(
+                new RecordSetLatest(recordSetId, null, value, new Date()));
+        RecordSetLatestDao.cacheRecordSetLatests(latests);
+    }
+
+    /**
+     * Change listener recording notifications.
+     */
+    private static final class TestChangeListener implements RecordSetLatestDao.ChangeListener {
+        /** The number of notifications. */
+        private int notifications = 0;
+        /** The version of the last notification. */
+        private long version = -1;
+
+        @Override
+        public void changed(final long version) {
+            notifications++;
+            this.version = version;
+        }
+
+        /**
+         * @return the number of notifications
+         */
+        public int getNotifications() {
+            return notifications;
+        }
+
+        /**
+         * @return the version of the last notification
+         */
+        public long getVersion() {
+            return version;
+        }
+    }
+}
@@ -0,0 +1,346 @@
+/**
+ * Copyright 2013 Tommi S.E. Laukkanen
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.agocontrol.site.component.livepush;
+
+import org.agocontrol.dao.RecordSetLatestDao;
+import org.agocontrol.model.RecordSetLatest;
+import org.apache.log4j.BasicConfigurator;
+import org.apache.log4j.Logger;
+import org.eclipse.jetty.server.Server;
+import org.eclipse.jetty.servlet.FilterHolder;
+import org.eclipse.jetty.servlet.ServletContextHandler;
+import org.eclipse.jetty.servlet.ServletHolder;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.vaadin.addons.sitekit.util.PropertiesUtil;
+
+import javax.servlet.DispatcherType;
+import javax.servlet.Filter;
+import javax.servlet.FilterChain;
+import javax.servlet.FilterConfig;
+import javax.servlet.ServletException;
+import javax.servlet.ServletRequest;
+import javax.servlet.ServletResponse;
+import javax.servlet.http.HttpServlet;
+import javax.servlet.http.HttpServletRequest;
+import javax.servlet.http.HttpServletResponse;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.net.HttpURLConnection;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Date;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Benchmark of requests per second received from an idle dashboard session with Refresher polling and
+ * with live push long polling. LivePushServlet runs in embedded Jetty and a filter counts the requests
+ * it and the UIDL endpoint receive. The browser side is emulated: Refresher mode sends UIDL request at
+ * the refresher interval and live push mode long polls as livepush.js does, sending UIDL request only
+ * when a watched record set has changed. Other record sets are written during measurement so that
+ * idle refers to the record sets shown by the session. UIDL requests are answered by a stand-in as
+ * the emulated clients do not process UIDL responses.
+ *
+ * @author Tommi S.E. Laukkanen
+ */
+public class LivePushIdleRequestRateTest {
+    /** The logger. */
+    private static final Logger LOGGER = Logger.getLogger(LivePushIdleRequestRateTest.class);
+    /** The properties category. */
+    private static final String PROPERTIES_CATEGORY = "ago-control-vaadin-site";
+    /** The context path of the test web application. */
+    private static final String CONTEXT_PATH = "/agocontrol";
+    /** The servlet path of the live push servlet. */
+    private static final String LIVE_SERVLET_PATH = "/live";
+    /** The servlet path of the Vaadin servlet. */
+    private static final String SITE_SERVLET_PATH = "/site";
+    /** The UIDL path. */
+    private static final String UIDL_PATH = SITE_SERVLET_PATH + "/UIDL/?v-uiId=0";
+    /** The measurement duration per mode. */
+    private static final long MEASUREMENT_MILLIS = 5000;
+    /** The refresher interval used by dashboard before live push. */
+    private static final long REFRESHER_INTERVAL_MILLIS = 200;
+    /** The interval of writing latest values of other record sets. */
+    private static final long WRITE_INTERVAL_MILLIS = 50;
+    /** The record sets watched by the idle session. */
+    private static final List<String> WATCHED_RECORD_SET_IDS = Arrays.asList("watched-1", "watched-2");
+
+    static {
+        BasicConfigurator.configure();
+    }
+
+    /** The request counting filter. */
+    private final RequestCountingFilter requestCountingFilter = new RequestCountingFilter();
+    /** The embedded server. */
+    private Server server;
+    /** The base URL of the test web application. */
+    private String baseUrl;
+    /** The thread writing latest values of other record sets. */
+    private Thread writerThread;
+    /** True if writer should exit. */
+    private volatile boolean writerExitRequested = false;
+
+    /**
+     * Starts embedded server and writer of other record sets.
+     * @throws Exception if exception occurs in setup.
+     */
+    @Before
+    public void setUp() throws Exception {
+        server = new Server(0);
+        final ServletContextHandler context = new ServletContextHandler();
+        context.setContextPath(CONTEXT_PATH);
+        final ServletHolder livePushServletHolder = new ServletHolder(new LivePushServlet());
+        livePushServletHolder.setAsyncSupported(true);
+        context.addServlet(livePushServletHolder, LIVE_SERVLET_PATH + "/*");
+        context.addServlet(new ServletHolder(new UidlServlet()), SITE_SERVLET_PATH + "/*");
+        final FilterHolder requestCountingFilterHolder = new FilterHolder(requestCountingFilter);
+        requestCountingFilterHolder.setAsyncSupported(true);
+        context.addFilter(requestCountingFilterHolder, "/*", EnumSet.of(DispatcherType.REQUEST));
+        server.setHandler(context);
+        server.start();
+        baseUrl = "http://localhost:" + server.getConnectors()[0].getLocalPort() + CONTEXT_PATH;
+
+        writerThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                int i = 0;
+                while (!writerExitRequested) {
+                    RecordSetLatestDao.cacheRecordSetLatests(Collections.singletonList(
+                            new RecordSetLatest("other-1", null, i++, new Date())));
+                    try {
+                        Thread.sleep(WRITE_INTERVAL_MILLIS);
+                    } catch (final InterruptedException e) {
+                        return;
+                    }
+                }
+            }
+        });
+        writerThread.start();
+    }
+
+    /**
+     * Stops writer and embedded server.
+     * @throws Exception if exception occurs in tear down.
+     */
+    @After
+    public void tearDown() throws Exception {
+        writerExitRequested = true;
+        writerThread.join();
+        server.stop();
+    }
+
+    /**
+     * Measures requests per second received from idle session with Refresher polling and live push.
+     * @throws Exception if exception occurs during test.
+     */
+    @Test
+    public void testIdleRequestRate() throws Exception {
+        requestCountingFilter.reset();
+        long startTimeMillis = System.currentTimeMillis();
+        pollWithRefresher(startTimeMillis + MEASUREMENT_MILLIS);
+        long elapsedMillis = System.currentTimeMillis() - startTimeMillis;
+        final long refresherUidlRequests = requestCountingFilter.getCount(SITE_SERVLET_PATH);
+        final long refresherLiveRequests = requestCountingFilter.getCount(LIVE_SERVLET_PATH);
+        logRequestRates("Refresher", refresherUidlRequests, refresherLiveRequests, elapsedMillis);
+
+        final String token = UUID.randomUUID().toString();
+        LivePush.registerRecordSetIds(token, WATCHED_RECORD_SET_IDS);
+        requestCountingFilter.reset();
+        startTimeMillis = System.currentTimeMillis();
+        pollWithLivePush(token, startTimeMillis + MEASUREMENT_MILLIS);
+        elapsedMillis = System.currentTimeMillis() - startTimeMillis;
+        final long livePushUidlRequests = requestCountingFilter.getCount(SITE_SERVLET_PATH);
+        final long livePushLiveRequests = requestCountingFilter.getCount(LIVE_SERVLET_PATH);
+        LivePush.unregisterRecordSetIds(token);
+        logRequestRates("Live push", livePushUidlRequests, livePushLiveRequests, elapsedMillis);
+
+        // Idle long poll is renewed once per timeout.
+        final long timeoutMillis = Long.parseLong(PropertiesUtil.getProperty(PROPERTIES_CATEGORY,
+                "live-push-timeout-millis"));
+        Assert.assertTrue("Refresher sent fewer UIDL requests than expected: " + refresherUidlRequests,
+                refresherUidlRequests >= MEASUREMENT_MILLIS / REFRESHER_INTERVAL_MILLIS / 2);
+        Assert.assertEquals("Idle live push should not invoke UIDL requests.", 0, livePushUidlRequests);
+        Assert.assertTrue("Idle live push renewed long poll too often: " + livePushLiveRequests,
+                livePushLiveRequests <= 1 + MEASUREMENT_MILLIS / timeoutMillis);
+    }
+
+    /**
+     * Sends UIDL request at refresher interval as Refresher extension does.
+     * @param endTimeMillis the end time of measurement
+     * @throws Exception if exception occurs in polling.
+     */
+    private void pollWithRefresher(final long endTimeMillis) throws Exception {
+        while (System.currentTimeMillis() < endTimeMillis) {
+            post(baseUrl + UIDL_PATH);
+            Thread.sleep(REFRESHER_INTERVAL_MILLIS);
+        }
+    }
+
+    /**
+     * Long polls live push servlet as livepush.js does and sends UIDL request when watched record sets
+     * have changed. Long poll held open at the end of measurement is abandoned.
+     * @param token the token of the extension
+     * @param endTimeMillis the end time of measurement
+     * @throws Exception if exception occurs in polling.
+     */
+    private void pollWithLivePush(final String token, final long endTimeMillis) throws Exception {
+        long version = RecordSetLatestDao.getVersion();
+        while (System.currentTimeMillis() < endTimeMillis) {
+            final HttpURLConnection connection = (HttpURLConnection) new URL(baseUrl + LivePush.PATH
+                    + "?token=" + token + "&version=" + version).openConnection();
+            connection.setReadTimeout((int) Math.max(1, endTimeMillis - System.currentTimeMillis()));
+            final String response;
+            try {
+                Assert.assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+                response = read(connection.getInputStream());
+            } catch (final SocketTimeoutException e) {
+                connection.disconnect();
+                return;
+            }
+            final long newVersion = Long.parseLong(response.trim());
+            if (newVersion != version) {
+                version = newVersion;
+                post(baseUrl + UIDL_PATH);
+            }
+        }
+    }
+
+    /**
+     * Logs request rates of measured mode.
+     * @param mode the mode
+     * @param uidlRequests the number of UIDL requests
+     * @param liveRequests the number of live push requests
+     * @param elapsedMillis the measurement duration
+     */
+    private void logRequestRates(final String mode, final long uidlRequests, final long liveRequests,
+                                 final long elapsedMillis) {
+        LOGGER.info(mode + " idle session requests per second: UIDL " + uidlRequests * 1000.0 / elapsedMillis
+                + ", live push " + liveRequests * 1000.0 / elapsedMillis + " (" + uidlRequests + " UIDL and "
+                + liveRequests + " live push request(s) in " + elapsedMillis + " ms).");
+    }
+
+    /**
+     * Posts empty request.
+     * @param url the URL
+     * @throws IOException if exception occurs in request.
+     */
+    private void post(final String url) throws IOException {
+        final HttpURLConnection connection = (HttpURLConnection) new URL(url).openConnection();
+        connection.setRequestMethod("POST");
+        connection.setDoOutput(true);
+        connection.getOutputStream().close();
+        Assert.assertEquals(HttpServletResponse.SC_OK, connection.getResponseCode());
+        read(connection.getInputStream());
+    }
+
+    /**
+     * Reads input stream to string and closes it.
+     * @param inputStream the input stream
+     * @return the string
+     * @throws IOException if exception occurs in reading.
+     */
+    private String read(final InputStream inputStream) throws IOException {
+        final StringBuilder builder = new StringBuilder();
+        final Reader reader = new InputStreamReader(inputStream, "UTF-8");
+        try {
+            final char[] buffer = new char[1024];
+            int length;
+            while ((length = reader.read(buffer)) != -1) {
+                builder.append(buffer, 0, length);
+            }
+        } finally {
+            reader.close();
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Filter counting received requests by servlet path.
+     */
+    private static final class RequestCountingFilter implements Filter {
+        /** The request counts by servlet path. */
+        private final Map<String, AtomicLong> counts = new ConcurrentHashMap<String, AtomicLong>();
+
+        @Override
+        public void init(final FilterConfig filterConfig) {
+        }
+
+        @Override
+        public void doFilter(final ServletRequest request, final ServletResponse response, final FilterChain chain)
+                throws IOException, ServletException {
+            getCounter(((HttpServletRequest) request).getServletPath()).incrementAndGet();
+            chain.doFilter(request, response);
+        }
+
+        @Override
+        public void destroy() {
+        }
+
+        /**
+         * @param servletPath the servlet path
+         * @return the number of requests received to the servlet path
+         */
+        private long getCount(final String servletPath) {
+            return getCounter(servletPath).get();
+        }
+
+        /**
+         * Resets request counts.
+         */
+        private synchronized void reset() {
+            counts.clear();
+        }
+
+        /**
+         * @param servletPath the servlet path
+         * @return the request counter of the servlet path
+         */
+        private synchronized AtomicLong getCounter(final String servletPath) {
+            AtomicLong counter = counts.get(servletPath);
+            if (counter == null) {
+                counter = new AtomicLong();
+                counts.put(servletPath, counter);
+            }
+            return counter;
+        }
+    }
+
+    /**
+     * Stand-in for UIDL endpoint of Vaadin servlet responding with empty change set.
+     */
+    private static final class UidlServlet extends HttpServlet {
+        /** Java serialization version UID. */
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected void doPost(final HttpServletRequest request, final HttpServletResponse response)
+                throws IOException {
+            response.setContentType("application/json");
+            response.getWriter().write("for(;;);[{}]");
+        }
+    }
+}